@@ -43,8 +43,19 @@ class ReplacerImpl implements Replacer {
 	
 	@Override
 	public Map<String, Collection<String>> replaceGroups(String hn) {
+		return matchGroups(hn);
+	}
+	
+	@Override
+	public Map<String, Collection<String>> replaceGroups(CharSequence hn) {
+		return matchGroups(hn);
+	}
+	
+	// groovy dispatches by runtime type, so both overloads delegate here
+	private Map<String, Collection<String>> matchGroups(CharSequence hn) {
 		
 		def replaces = [:];
+		def full = hn.toString();
 		
 		def matcher = pattern.matcher(hn);
 		while(matcher.find()) {
@@ -57,7 +68,7 @@ class ReplacerImpl implements Replacer {
 			def text = template.make([
 				'SU': StringUtils, 
 				'groups': groups, 
-				'full': hn]);
+				'full': full]);
 			
 			def group = [] as Set;
 			
@@ -12,6 +12,8 @@ import me.osm.gazetteer.search.imp.addr.UpdateStreetsRefsCountOptions;
 import me.osm.gazetteer.search.imp.addr.UpdateStreetsUsage;
 import me.osm.gazetteer.search.imp.osmdoc.DocImportOptions;
 import me.osm.gazetteer.search.imp.osmdoc.OSMDocImport;
+import me.osm.gazetteer.search.query.CompileConfigOptions;
+import me.osm.gazetteer.search.query.ConfigCompiler;
 import me.osm.gazetteer.search.server.REServer;
 
 public class GazetteerSearch {
@@ -23,6 +25,7 @@ public class GazetteerSearch {
 		ServerOptions serve = new ServerOptions();
 		MassGeocodeOptions csv = new MassGeocodeOptions();
 		UpdateStreetsRefsCountOptions streetRefs = new UpdateStreetsRefsCountOptions();
+		CompileConfigOptions compileConfig = new CompileConfigOptions();
 		
 		JCommander jc = JCommander.newBuilder()
 				.programName("gazetteer-search")
@@ -31,6 +34,7 @@ public class GazetteerSearch {
 				.addCommand("serve", serve)
 				.addCommand("geocode-csv", csv)
 				.addCommand("count-streets-refs", streetRefs)
+				.addCommand("compile-config", compileConfig)
 				.build();
 		
 		if(Arrays.stream(args).anyMatch(a -> "--help".equals(a) || "-h".equals(a))) {
@@ -59,7 +63,10 @@ public class GazetteerSearch {
 			new CSVGeocode(csv);
 		}
 		else if ("count-streets-refs".equals(parsedCommand)) {
-			new UpdateStreetsUsage(streetRefs.getRegion()).run();
+			new UpdateStreetsUsage(streetRefs).run();
+		}
+		else if ("compile-config".equals(parsedCommand)) {
+			new ConfigCompiler(compileConfig).run();
 		}
 		else {
 			REServer.getInstance(serve);
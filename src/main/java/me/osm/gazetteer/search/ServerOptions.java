@@ -17,6 +17,13 @@ public class ServerOptions {
 	
 	@Parameter(names= {"--osmdoc", "-o"})
 	private String osmdocPath = "jar";
+	
+	@Parameter(names= {"--query-budget-ms"}, description="Time limit for query regexps, "
+			+ "queries over the limit are analyzed without replacers. 0 - no limit")
+	private long queryBudgetMs = 100;
+	
+	@Parameter(names= {"--query-budget-steps"}, description="Limit of chars read by query regexps. 0 - no limit")
+	private long queryBudgetSteps = 0;
 
 	public int getPort() {
 		return port;
@@ -49,5 +56,21 @@ public class ServerOptions {
 	public void setOsmdocPath(String osmdocPath) {
 		this.osmdocPath = osmdocPath;
 	}
+
+	public long getQueryBudgetMs() {
+		return queryBudgetMs;
+	}
+
+	public void setQueryBudgetMs(long queryBudgetMs) {
+		this.queryBudgetMs = queryBudgetMs;
+	}
+
+	public long getQueryBudgetSteps() {
+		return queryBudgetSteps;
+	}
+
+	public void setQueryBudgetSteps(long queryBudgetSteps) {
+		this.queryBudgetSteps = queryBudgetSteps;
+	}
 	
-}
\ No newline at end of file
+}
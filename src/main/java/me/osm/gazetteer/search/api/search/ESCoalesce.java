@@ -21,6 +21,7 @@ public class ESCoalesce {
 	private long queryTime = 0;
 	private Double lat;
 	private Double lon;
+	private String[] indices = new String[] {IndexHolder.ADDRESSES_INDEX};
 
 	public ESCoalesce(List<JSONObject> queries, String[] fetchSourceInclude) {
 		this.queries = queries;
@@ -39,7 +40,7 @@ public class ESCoalesce {
 			}
 			
 			SearchRequestBuilder searchRequestBuilder = ESServer.getInstance().client()
-					.prepareSearch(IndexHolder.ADDRESSES_INDEX)
+					.prepareSearch(indices)
 					.setTypes(IndexHolder.ADDR_ROW_TYPE)
 					.setFetchSource(fetchSourceInclude, new String[] {"json.address.parts.names"})
 					.setQuery(QueryBuilders.wrapperQuery(q.toString()))
@@ -75,6 +76,13 @@ public class ESCoalesce {
 		return queryTime;
 	}
 
+	/**
+	 * Indices to query, addresses alias by default
+	 * */
+	public void setIndices(String[] indices) {
+		this.indices = indices;
+	}
+
 	public void setDistanceSort(Double lat, Double lon) {
 		this.lat = lat;
 		this.lon = lon;
@@ -42,6 +42,7 @@ public class ESDefaultSearch implements Search {
 
 	private QueryAnalyzer analyzer = new QueryAnalyzerImpl();
 	private MainAddressQueryBuilder addrQueryBuilder = new MainAddressQueryBuilder();
+	private RegionSelector regionSelector = new RegionSelector();
 
 	private static final boolean POI_IMPORTED = new POIClassIndexHolder().exists();
 	
@@ -144,7 +145,19 @@ public class ESDefaultSearch implements Search {
 		}
 		
 		try {
+			RegionSelector.Selection regions = regionSelector.select(tokens, options);
+			if (regions != null) {
+				coalesce.setIndices(regions.getIndices());
+			}
+			
 			SearchResponse response = coalesce.execute(0, 20);
+			
+			// Selected regions were only a guess
+			if (regions != null && regions.isSoft() && response.getHits().totalHits == 0) {
+				coalesce.setIndices(new String[] {IndexHolder.ADDRESSES_INDEX});
+				response = coalesce.execute(0, 20);
+			}
+			
 			int trim = trimResponse(response);
 			
 			results.setDebugQuery(coalesce.getExecutedQuery().toString(2));
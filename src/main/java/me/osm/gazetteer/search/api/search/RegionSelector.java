@@ -0,0 +1,186 @@
+package me.osm.gazetteer.search.api.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import me.osm.gazetteer.search.esclient.ESServer;
+import me.osm.gazetteer.search.esclient.IndexHolder;
+import me.osm.gazetteer.search.esclient.RegionIndices;
+import me.osm.gazetteer.search.esclient.RegionIndices.RegionInfo;
+import me.osm.gazetteer.search.query.QToken;
+
+/**
+ * Selects region indices for a query, if addresses are imported
+ * with an index per region.
+ *
+ * bbox and references select the regions which might have results,
+ * admin tokens and lat/lon only prefer some of them, so the query
+ * should be repeated against the alias if nothing was found.
+ * */
+public class RegionSelector {
+
+	private static final Logger log = LoggerFactory.getLogger(RegionSelector.class);
+
+	private static final long RELOAD_MS = 60 * 1000;
+
+	private static volatile List<RegionInfo> regions = Collections.emptyList();
+	private static volatile long loaded = 0;
+
+	public static final class Selection {
+
+		private final String[] indices;
+		private final boolean soft;
+
+		private Selection(String[] indices, boolean soft) {
+			this.indices = indices;
+			this.soft = soft;
+		}
+
+		public String[] getIndices() {
+			return indices;
+		}
+
+		/**
+		 * @return selection is a guess, empty result should be
+		 * checked against all the regions
+		 * */
+		public boolean isSoft() {
+			return soft;
+		}
+	}
+
+	/**
+	 * @return indices to query or null for the alias
+	 * */
+	public Selection select(List<QToken> tokens, SearchOptions options) {
+		List<RegionInfo> all = getRegions();
+		if (all.size() < 2) {
+			return null;
+		}
+
+		Set<String> hard = null;
+
+		double[] bbox = options.getBbox();
+		if (bbox != null && bbox.length == 4) {
+			hard = new HashSet<>();
+			for (RegionInfo region : all) {
+				if (region.intersects(bbox)) {
+					hard.add(region.getIndex());
+				}
+			}
+		}
+
+		if (options.getReferences() != null && !options.getReferences().isEmpty()) {
+			Set<String> referenced = findReferenced(options.getReferences());
+			if (hard == null) {
+				hard = referenced;
+			}
+			else {
+				hard.retainAll(referenced);
+			}
+		}
+
+		Set<String> soft = selectByTokens(all, tokens);
+		if (soft.isEmpty() && options.getLat() != null && options.getLon() != null) {
+			for (RegionInfo region : all) {
+				if (region.contains(options.getLat(), options.getLon())) {
+					soft.add(region.getIndex());
+				}
+			}
+		}
+
+		if (hard != null) {
+			Set<String> both = new HashSet<>(hard);
+			both.retainAll(soft);
+			return both.isEmpty() ? selection(hard, false) : selection(both, true);
+		}
+
+		return soft.isEmpty() ? null : selection(soft, true);
+	}
+
+	private static Selection selection(Set<String> indices, boolean soft) {
+		// Empty hard selection still should be a valid query
+		if (indices.isEmpty()) {
+			return null;
+		}
+		return new Selection(indices.toArray(new String[indices.size()]), soft);
+	}
+
+	private static Set<String> selectByTokens(List<RegionInfo> all, List<QToken> tokens) {
+		Set<String> result = new HashSet<>();
+		for (QToken t : tokens) {
+			if (t.isOptional() || t.isHasNumbers()) {
+				continue;
+			}
+			for (RegionInfo region : all) {
+				if (region.hasAdminToken(t.toString()) || hasAny(region, t.getVariants())) {
+					result.add(region.getIndex());
+				}
+			}
+		}
+
+		// Token of every region tells nothing
+		if (result.size() == all.size()) {
+			result.clear();
+		}
+
+		return result;
+	}
+
+	private static boolean hasAny(RegionInfo region, List<String> variants) {
+		for (String v : variants) {
+			if (region.hasAdminToken(v)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Set<String> findReferenced(Collection<String> references) {
+		SearchResponse response = ESServer.getInstance().client()
+				.prepareSearch(IndexHolder.ADDRESSES_INDEX)
+				.setTypes(IndexHolder.ADDR_ROW_TYPE)
+				.setQuery(QueryBuilders.termsQuery("id", references))
+				.setSize(0)
+				.addAggregation(AggregationBuilders.terms("indices").field("_index"))
+				.get();
+
+		Set<String> result = new HashSet<>();
+		Terms indices = response.getAggregations().get("indices");
+		for (Terms.Bucket bucket : indices.getBuckets()) {
+			result.add(bucket.getKeyAsString());
+		}
+		return result;
+	}
+
+	private static List<RegionInfo> getRegions() {
+		long now = System.currentTimeMillis();
+		if (now - loaded > RELOAD_MS) {
+			synchronized (RegionSelector.class) {
+				if (now - loaded > RELOAD_MS) {
+					try {
+						regions = new ArrayList<>(RegionIndices.list());
+					}
+					catch (Exception e) {
+						log.warn("Failed to read regions of {}: {}", IndexHolder.ADDRESSES_INDEX, e.getMessage());
+						regions = Collections.emptyList();
+					}
+					loaded = now;
+				}
+			}
+		}
+		return regions;
+	}
+
+}
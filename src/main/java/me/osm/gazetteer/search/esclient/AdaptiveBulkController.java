@@ -0,0 +1,101 @@
+package me.osm.gazetteer.search.esclient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts bulk size and number of concurrent bulks
+ * of a {@link BulkWriter} in AIMD manner.
+ *
+ * Rejections and slow bulks cut the bulk size in half
+ * and take one concurrent request away, fast bulks without
+ * rejections grow the bulk size by a constant step and
+ * after a few of them get one concurrent request back.
+ * */
+public class AdaptiveBulkController {
+
+	private static final Logger log = LoggerFactory.getLogger(AdaptiveBulkController.class);
+
+	public static final int DEFAULT_MIN_ACTIONS = 50;
+	public static final int DEFAULT_MAX_ACTIONS = 10000;
+	public static final long DEFAULT_TARGET_LATENCY_MS = 2000;
+
+	// Number of good bulks in a row before concurrency is increased
+	private static final int CONCURRENCY_INCREASE_AFTER = 10;
+
+	private final int minActions;
+	private final int maxActions;
+	private final int maxConcurrency;
+	private final int step;
+	private final long targetLatency;
+
+	private int actions;
+	private int concurrency;
+	private int goodInARow = 0;
+
+	public AdaptiveBulkController(int initialActions, int maxActions,
+			int maxConcurrency, long targetLatency) {
+
+		this.minActions = Math.min(DEFAULT_MIN_ACTIONS, initialActions);
+		this.maxActions = Math.max(initialActions, maxActions);
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		this.targetLatency = targetLatency;
+
+		this.actions = initialActions;
+		this.concurrency = this.maxConcurrency;
+		this.step = Math.max(1, initialActions / 10);
+	}
+
+	public void init(BulkWriter writer) {
+		writer.setMaxActions(actions);
+		writer.setConcurrentRequests(concurrency);
+	}
+
+	/**
+	 * Called by the writer for every bulk attempt.
+	 *
+	 * @param bulkActions number of actions sent
+	 * @param latency bulk request latency in ms
+	 * @param rejected number of actions rejected by the cluster
+	 * */
+	public synchronized void onBulk(BulkWriter writer, int bulkActions, long latency, int rejected) {
+		int oldActions = actions;
+		int oldConcurrency = concurrency;
+
+		if (rejected > 0) {
+			actions = Math.max(minActions, actions / 2);
+			concurrency = Math.max(1, concurrency - 1);
+			goodInARow = 0;
+		}
+		else if (latency > targetLatency) {
+			actions = Math.max(minActions, actions / 2);
+			goodInARow = 0;
+		}
+		// Don't grow on partial bulks, they say nothing about the bigger ones
+		else if (bulkActions >= actions) {
+			actions = Math.min(maxActions, actions + step);
+
+			if (++goodInARow >= CONCURRENCY_INCREASE_AFTER) {
+				concurrency = Math.min(maxConcurrency, concurrency + 1);
+				goodInARow = 0;
+			}
+		}
+
+		if (oldActions != actions || oldConcurrency != concurrency) {
+			log.debug("Bulk size {} -> {}, concurrency {} -> {} (latency {} ms, rejected {})",
+					oldActions, actions, oldConcurrency, concurrency, latency, rejected);
+
+			writer.setMaxActions(actions);
+			writer.setConcurrentRequests(concurrency);
+		}
+	}
+
+	public synchronized int getActions() {
+		return actions;
+	}
+
+	public synchronized int getConcurrency() {
+		return concurrency;
+	}
+
+}
@@ -1,9 +1,25 @@
 package me.osm.gazetteer.search.esclient;
 
+/**
+ * Addresses are routed by import.region, so operations
+ * with one region touch only one shard.
+ * */
 public class AddressesIndexHolder extends IndexHolder {
 
 	public AddressesIndexHolder() {
 		super(IndexHolder.ADDRESSES_INDEX, IndexHolder.ADDR_ROW_TYPE, "es_mappings/addr_row.json");
 	}
+	
+	@Override
+	protected boolean isRoutingRequired() {
+		return true;
+	}
+	
+	/**
+	 * @return routing for the rows with given import.region
+	 * */
+	public static String getRouting(String region) {
+		return region == null ? null : region.toLowerCase();
+	}
 
 }
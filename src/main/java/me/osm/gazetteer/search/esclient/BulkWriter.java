@@ -0,0 +1,578 @@
+package me.osm.gazetteer.search.esclient;
+
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import me.osm.gazetteer.search.util.TimePeriodFormatter;
+
+/**
+ * Collects write requests into bulks and sends them asynchronously.
+ *
+ * Bulk is sent when it has maxActions requests, maxBytes of data
+ * or when it's older than flush interval.
+ *
+ * No more than concurrentRequests bulks are executed at the same time,
+ * and no more than maxInFlightBytes are sent but not acknowledged yet,
+ * producers are blocked until there is a room for the next bulk.
+ *
+ * Actions rejected by the cluster (429) are retried with exponential
+ * backoff, other failures are rethrown to producers.
+ *
+ * Several producers sharing the writer should add their requests
+ * through their own {@link Producer}, to wait only for their bulks
+ * and get only their failures.
+ *
+ * Thread safe.
+ * */
+public class BulkWriter implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(BulkWriter.class);
+
+	public static final long MB = 1024 * 1024;
+
+	public static final int DEFAULT_MAX_ACTIONS = 1000;
+	public static final long DEFAULT_MAX_BYTES = 5 * MB;
+	public static final int DEFAULT_CONCURRENT_REQUESTS = 2;
+	public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 64 * MB;
+	public static final long DEFAULT_FLUSH_INTERVAL_MS = 10000;
+	public static final int DEFAULT_MAX_RETRIES = 10;
+
+	private static final long INITIAL_BACKOFF_MS = 500;
+	private static final long MAX_BACKOFF_MS = 60000;
+
+	public static final class BulkException extends RuntimeException {
+
+		private static final long serialVersionUID = -3006376545102420307L;
+
+		public BulkException(String msg) {
+			super(msg);
+		}
+
+		public BulkException(String msg, Throwable cause) {
+			super(msg, cause);
+		}
+	}
+
+	/**
+	 * Requests of one producer. Bulks are shared with other producers,
+	 * but {@link #awaitPending()} waits only for the bulks with requests
+	 * of this producer and rethrows only their failures.
+	 * */
+	public final class Producer {
+
+		private final String producerName;
+
+		// Guarded by inFlightMonitor
+		private int pending = 0;
+		private Throwable producerFailure;
+
+		private Producer(String producerName) {
+			this.producerName = producerName;
+		}
+
+		public void add(DocWriteRequest<?> request) {
+			checkFailure();
+			BulkWriter.this.add(request, this);
+		}
+
+		/**
+		 * Send collected requests, doesn't wait for the response.
+		 * */
+		public void flush() {
+			checkFailure();
+			BulkWriter.this.flush(false);
+		}
+
+		/**
+		 * Wait until all flushed requests of this producer are acknowledged.
+		 * */
+		public void awaitPending() {
+			synchronized (inFlightMonitor) {
+				while (pending > 0) {
+					waitInFlight();
+				}
+			}
+			checkFailure();
+		}
+
+		private void checkFailure() {
+			Throwable t;
+			synchronized (inFlightMonitor) {
+				t = producerFailure;
+			}
+			if (t != null) {
+				throw new BulkException(name + ": bulk request of " + producerName + " failed", t);
+			}
+		}
+	}
+
+	/**
+	 * Taken bulk with its producers
+	 * */
+	private static final class Bulk {
+		private final BulkRequest request;
+		private final long size;
+		private final Producer[] producers;
+
+		private Bulk(BulkRequest request, Producer[] producers) {
+			this.request = request;
+			this.size = request.estimatedSizeInBytes();
+			this.producers = producers;
+		}
+	}
+
+	private final TransportClient client = ESServer.getInstance().client();
+	private final String name;
+
+	// Changed by the controller from the listener threads
+	private volatile int maxActions = DEFAULT_MAX_ACTIONS;
+	private volatile long maxBytes = DEFAULT_MAX_BYTES;
+	private int concurrentRequests = DEFAULT_CONCURRENT_REQUESTS;
+	private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+	private long flushInterval = DEFAULT_FLUSH_INTERVAL_MS;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+
+	private volatile AdaptiveBulkController controller;
+
+	private BulkRequest current = new BulkRequest();
+	private final Set<Producer> currentProducers = new HashSet<>();
+	private long currentCreated = System.currentTimeMillis();
+
+	private final Object inFlightMonitor = new Object();
+	private int inFlightRequests = 0;
+	private long inFlightBytes = 0;
+
+	// Bulks taken from current and not completed yet, including
+	// the ones waiting for a room to be sent
+	private int pendingBulks = 0;
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	// Retries never block, flush timer might block in acquire
+	// and should not delay the retries which release the room
+	private volatile ScheduledExecutorService scheduler;
+	private volatile ScheduledExecutorService flushTimer;
+
+	private final long started = System.currentTimeMillis();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong actionsSent = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong rejectedActions = new AtomicLong();
+
+	public BulkWriter(String name) {
+		this.name = name;
+	}
+
+	public BulkWriter setMaxActions(int maxActions) {
+		this.maxActions = Math.max(1, maxActions);
+		return this;
+	}
+
+	public BulkWriter setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	public BulkWriter setConcurrentRequests(int concurrentRequests) {
+		synchronized (inFlightMonitor) {
+			this.concurrentRequests = Math.max(1, concurrentRequests);
+			inFlightMonitor.notifyAll();
+		}
+		return this;
+	}
+
+	public BulkWriter setMaxInFlightBytes(long maxInFlightBytes) {
+		synchronized (inFlightMonitor) {
+			this.maxInFlightBytes = maxInFlightBytes;
+			inFlightMonitor.notifyAll();
+		}
+		return this;
+	}
+
+	/**
+	 * @param flushInterval in milliseconds, 0 or negative to disable
+	 * */
+	public BulkWriter setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+		return this;
+	}
+
+	public BulkWriter setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	public BulkWriter setController(AdaptiveBulkController controller) {
+		this.controller = controller;
+		controller.init(this);
+		return this;
+	}
+
+	/**
+	 * @param name name of the producer for the logs
+	 * */
+	public Producer producer(String name) {
+		return new Producer(name);
+	}
+
+	public void add(DocWriteRequest<?> request) {
+		checkFailure();
+		add(request, null);
+	}
+
+	private void add(DocWriteRequest<?> request, Producer producer) {
+		startFlushTimer();
+
+		Bulk full = null;
+		synchronized (this) {
+			if (current.numberOfActions() == 0) {
+				currentCreated = System.currentTimeMillis();
+			}
+
+			current.add(request);
+			if (producer != null) {
+				currentProducers.add(producer);
+			}
+
+			if (current.numberOfActions() >= maxActions || current.estimatedSizeInBytes() >= maxBytes) {
+				full = take();
+			}
+		}
+
+		if (full != null) {
+			send(full);
+		}
+	}
+
+	/**
+	 * Send collected requests, doesn't wait for the response.
+	 * */
+	public void flush() {
+		flush(true);
+	}
+
+	private void flush(boolean check) {
+		if (check) {
+			checkFailure();
+		}
+
+		Bulk bulk = null;
+		synchronized (this) {
+			if (current.numberOfActions() > 0) {
+				bulk = take();
+			}
+		}
+
+		if (bulk != null) {
+			send(bulk);
+		}
+	}
+
+	/**
+	 * Wait until all flushed requests are acknowledged.
+	 * */
+	public void awaitPending() {
+		synchronized (inFlightMonitor) {
+			while (pendingBulks > 0) {
+				waitInFlight();
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Flush and wait for all requests to be acknowledged.
+	 * */
+	@Override
+	public void close() {
+		try {
+			flush();
+			awaitPending();
+		}
+		finally {
+			shutdown(flushTimer);
+			shutdown(scheduler);
+		}
+
+		long took = System.currentTimeMillis() - started;
+		log.info("{}: {} actions in {} bulks, {} MB, {} rejected actions retried, done in {}, avg bulk latency {} ms",
+				name, actionsSent.get(), flushes.get(), bytesSent.get() / MB, rejectedActions.get(),
+				TimePeriodFormatter.printDuration(took),
+				flushes.get() > 0 ? totalLatency.get() / flushes.get() : 0);
+	}
+
+	/**
+	 * Replace current bulk with a new one, the taken bulk is pending
+	 * from now on, so it's awaited even before it gets a room to be sent.
+	 * 
+	 * Should be called holding this monitor.
+	 * */
+	private Bulk take() {
+		Bulk taken = new Bulk(current, currentProducers.toArray(new Producer[currentProducers.size()]));
+		current = new BulkRequest();
+		currentProducers.clear();
+		synchronized (inFlightMonitor) {
+			pendingBulks++;
+			for (Producer p : taken.producers) {
+				p.pending++;
+			}
+		}
+		return taken;
+	}
+
+	private void send(Bulk bulk) {
+		try {
+			acquire(bulk.size);
+		}
+		catch (RuntimeException e) {
+			complete(bulk, e, false);
+			throw e;
+		}
+		execute(bulk, bulk.request, 0);
+	}
+
+	/**
+	 * In flight bytes are released when request is finally
+	 * acknowledged or failed, but not in between the retries.
+	 * */
+	private void execute(Bulk bulk, BulkRequest request, int attempt) {
+		final long start = System.currentTimeMillis();
+		try {
+			client.bulk(request, new ActionListener<BulkResponse>() {
+
+				@Override
+				public void onResponse(BulkResponse response) {
+					try {
+						handleResponse(bulk, request, response, attempt, System.currentTimeMillis() - start);
+					}
+					catch (Throwable t) {
+						fail(t, bulk);
+					}
+				}
+
+				@Override
+				public void onFailure(Exception e) {
+					long latency = System.currentTimeMillis() - start;
+					if (ExceptionsHelper.status(e) == RestStatus.TOO_MANY_REQUESTS) {
+						report(request.numberOfActions(), request.estimatedSizeInBytes(), latency, request.numberOfActions());
+						retry(bulk, request, attempt);
+					}
+					else {
+						fail(new BulkException(name + " bulk request failed", e), bulk);
+					}
+				}
+
+			});
+		}
+		catch (Throwable t) {
+			fail(t, bulk);
+		}
+	}
+
+	private void handleResponse(Bulk bulk, BulkRequest request, BulkResponse response, 
+			int attempt, long latency) {
+		
+		BulkRequest rejected = new BulkRequest();
+		boolean fatal = false;
+		
+		if (response.hasFailures()) {
+			for (BulkItemResponse item : response.getItems()) {
+				if (item.isFailed()) {
+					if (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+						rejected.add(request.requests().get(item.getItemId()));
+					}
+					else {
+						fatal = true;
+					}
+				}
+			}
+		}
+		
+		report(request.numberOfActions(), request.estimatedSizeInBytes(), latency, rejected.numberOfActions());
+		
+		if (fatal) {
+			fail(new BulkException(response.buildFailureMessage()), bulk);
+		}
+		else if (rejected.numberOfActions() > 0) {
+			retry(bulk, rejected, attempt);
+		}
+		else {
+			complete(bulk, null, true);
+		}
+	}
+
+	private void retry(Bulk bulk, BulkRequest request, int attempt) {
+		if (attempt >= maxRetries) {
+			fail(new BulkException(name + ": " + request.numberOfActions() 
+					+ " actions are still rejected after " + attempt + " retries"), bulk);
+			return;
+		}
+		
+		rejectedActions.addAndGet(request.numberOfActions());
+		
+		long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << attempt);
+		log.warn("{}: {} actions rejected, retry {} of {} in {} ms", 
+				name, request.numberOfActions(), attempt + 1, maxRetries, delay);
+		
+		try {
+			scheduler().schedule(() -> execute(bulk, request, attempt + 1), delay, TimeUnit.MILLISECONDS);
+		}
+		catch (Throwable t) {
+			fail(t, bulk);
+		}
+	}
+
+	private void fail(Throwable t, Bulk bulk) {
+		failure.compareAndSet(null, t);
+		complete(bulk, t, true);
+	}
+
+	/**
+	 * Stats of every completed bulk attempt, including partially rejected ones
+	 * */
+	private void report(int actions, long size, long latency, int rejected) {
+		AdaptiveBulkController c = controller;
+		if (c != null) {
+			c.onBulk(this, actions, latency, rejected);
+		}
+		
+		long n = flushes.incrementAndGet();
+		long total = actionsSent.addAndGet(actions - rejected);
+		bytesSent.addAndGet(size);
+		totalLatency.addAndGet(latency);
+
+		double docsPerSec = latency > 0 ? actions * 1000.0 / latency : actions;
+		log.info(String.format(Locale.US, "%s: bulk %d, %d actions (%d rejected), %d KB in %d ms (%.0f docs/s), %,d actions total",
+				name, n, actions, rejected, size / 1024, latency, docsPerSec, total));
+	}
+
+	private void acquire(long size) {
+		synchronized (inFlightMonitor) {
+			// Let the bulk go if nothing else is in flight, even if it's bigger than the cap
+			while (inFlightRequests >= concurrentRequests
+					|| (inFlightRequests > 0 && inFlightBytes + size > maxInFlightBytes)) {
+				waitInFlight();
+			}
+			inFlightRequests++;
+			inFlightBytes += size;
+		}
+	}
+
+	/**
+	 * Bulk is finally acknowledged or failed
+	 * 
+	 * @param sent bulk has got a room and holds in flight request and bytes 
+	 * */
+	private void complete(Bulk bulk, Throwable t, boolean sent) {
+		synchronized (inFlightMonitor) {
+			if (sent) {
+				inFlightRequests--;
+				inFlightBytes -= bulk.size;
+			}
+			pendingBulks--;
+			for (Producer p : bulk.producers) {
+				p.pending--;
+				if (t != null && p.producerFailure == null) {
+					p.producerFailure = t;
+				}
+			}
+			inFlightMonitor.notifyAll();
+		}
+	}
+
+	private void waitInFlight() {
+		try {
+			inFlightMonitor.wait();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BulkException(name + " interrupted while waiting for bulk requests", e);
+		}
+	}
+
+	private void checkFailure() {
+		Throwable t = failure.get();
+		if (t != null) {
+			if (t instanceof BulkException) {
+				throw (BulkException) t;
+			}
+			throw new BulkException(name + " bulk request failed", t);
+		}
+	}
+
+	private ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			synchronized (this) {
+				if (scheduler == null) {
+					scheduler = newScheduler(name + "-bulk-retry");
+				}
+			}
+		}
+		return scheduler;
+	}
+
+	private void startFlushTimer() {
+		if (flushTimer == null && flushInterval > 0) {
+			synchronized (this) {
+				if (flushTimer == null) {
+					long period = Math.max(100, flushInterval / 2);
+					ScheduledExecutorService timer = newScheduler(name + "-bulk-flush");
+					timer.scheduleWithFixedDelay(this::flushIfExpired, period, period, TimeUnit.MILLISECONDS);
+					flushTimer = timer;
+				}
+			}
+		}
+	}
+
+	private static ScheduledExecutorService newScheduler(String threadName) {
+		return Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static void shutdown(ScheduledExecutorService executor) {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void flushIfExpired() {
+		try {
+			boolean expired;
+			synchronized (this) {
+				expired = current.numberOfActions() > 0
+						&& System.currentTimeMillis() - currentCreated >= flushInterval;
+			}
+
+			if (expired) {
+				flush();
+			}
+		}
+		catch (Throwable t) {
+			// Will be rethrown to producer
+			failure.compareAndSet(null, t);
+		}
+	}
+
+}
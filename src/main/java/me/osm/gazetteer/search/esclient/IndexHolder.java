@@ -1,12 +1,50 @@
 package me.osm.gazetteer.search.esclient;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
 import org.apache.commons.io.IOUtils;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeResponse;
 import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 
+/**
+ * Index with its type and mapping.
+ * 
+ * Index name might be an alias for one of the versions of the index,
+ * named as index_yyyyMMddHHmmss. New version is built with 
+ * {@link #createVersion()}, prepared for search with 
+ * {@link #finishBulkLoad(String, int, int)} and published with 
+ * {@link #swap(String, String...)}.
+ * */
 public class IndexHolder {
 	
+	private static final Logger log = LoggerFactory.getLogger(IndexHolder.class);
+	
+	private static final TimeValue HEALTH_TIMEOUT = TimeValue.timeValueMinutes(30);
+	
+	// index.number_of_replicas of a new index if there is no previous one
+	private static final int DEFAULT_REPLICAS = 1;
+	
 	public static final String ADDRESSES_INDEX = "addresses";
 	public static final String ADDR_ROW_TYPE = "addr_row";
 	
@@ -23,6 +61,9 @@ public class IndexHolder {
 		this.mapping = mapping;
 	}
 	
+	/**
+	 * @return index or alias name used for search
+	 * */
 	public String getIndex() {
 		return index;
 	}
@@ -38,7 +79,10 @@ public class IndexHolder {
     		.prepareExists(index).execute().actionGet().isExists();
 		
 		if (!indexExists) {
-			indicesAdminClient.prepareCreate(index).get();
+			indicesAdminClient.prepareCreate(index)
+				.addMapping(type, readMappingForCreate().toString(), XContentType.JSON)
+				.get();
+			return;
 		}
 
 		indicesAdminClient.preparePutMapping(index)
@@ -46,10 +90,278 @@ public class IndexHolder {
 			.setSource(readMapping().toString(), XContentType.JSON)
 			.get();
 	}
+	
+	/**
+	 * Documents of new indices must be written with routing.
+	 * Existing indices keep their settings, so check 
+	 * {@link #isRouted(String)} before using routing.
+	 * */
+	protected boolean isRoutingRequired() {
+		return false;
+	}
+	
+	/**
+	 * @param name index or alias
+	 * @return all the indices behind the name require routing
+	 * */
+	public boolean isRouted(String name) {
+		ImmutableOpenMap<String, ImmutableOpenMap<String, MappingMetaData>> mappings = 
+				ESServer.getInstance().indicesAdminClient()
+					.prepareGetMappings(name).setTypes(type).get().getMappings();
+		
+		if (mappings.isEmpty()) {
+			return false;
+		}
+		
+		for (ObjectCursor<ImmutableOpenMap<String, MappingMetaData>> indexMappings : mappings.values()) {
+			MappingMetaData mapping = indexMappings.value.get(type);
+			if (mapping == null || !mapping.routing().required()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private JSONObject readMappingForCreate() {
+		JSONObject mapping = readMapping();
+		if (isRoutingRequired()) {
+			mapping.getJSONObject(type).put("_routing", new JSONObject().put("required", true));
+		}
+		return mapping;
+	}
 
+	/**
+	 * Drop the index or all the indices behind the alias
+	 * */
 	public void drop() {
 		IndicesAdminClient indicesAdminClient = ESServer.getInstance().indicesAdminClient();
-		indicesAdminClient.prepareDelete(index).get();
+		List<String> concrete = getConcreteIndices();
+		if (!concrete.isEmpty()) {
+			indicesAdminClient.prepareDelete(concrete.toArray(new String[concrete.size()])).get();
+		}
+	}
+	
+	/**
+	 * @return indices behind the alias, the index itself if it isn't an alias
+	 * or empty list if there is no such index
+	 * */
+	public List<String> getConcreteIndices() {
+		IndicesAdminClient indicesAdminClient = ESServer.getInstance().indicesAdminClient();
+		
+		boolean exists = indicesAdminClient.prepareExists(index).get().isExists();
+		if (!exists) {
+			return Collections.emptyList();
+		}
+		
+		return Arrays.asList(indicesAdminClient.prepareGetIndex().setIndices(index).get().getIndices());
+	}
+	
+	public boolean isAlias() {
+		return ESServer.getInstance().indicesAdminClient()
+				.prepareAliasesExist(index).get().exists();
+	}
+	
+	/**
+	 * @return names of the versions of this index, sorted from the oldest
+	 * */
+	public List<String> listVersions() {
+		String[] indices = ESServer.getInstance().indicesAdminClient()
+				.prepareGetIndex().setIndices(index + "_*").get().getIndices();
+		
+		List<String> versions = new ArrayList<>();
+		for (String name : indices) {
+			if (isVersion(name)) {
+				versions.add(name);
+			}
+		}
+		
+		Collections.sort(versions);
+		return versions;
+	}
+	
+	private boolean isVersion(String name) {
+		String suffix = name.substring(index.length() + 1);
+		return suffix.length() == 14 && suffix.chars().allMatch(Character::isDigit);
+	}
+	
+	/**
+	 * Create new version of the index with the mapping
+	 * and settings for bulk load: no refresh and no replicas.
+	 * 
+	 * @return name of the new index
+	 * */
+	public String createVersion() {
+		String version = index + "_" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+		
+		ESServer.getInstance().indicesAdminClient().prepareCreate(version)
+			.setSettings(Settings.builder()
+					.put("index.refresh_interval", "-1")
+					.put("index.number_of_replicas", 0))
+			.addMapping(type, readMappingForCreate().toString(), XContentType.JSON)
+			.get();
+		
+		log.info("Created {} for bulk load", version);
+		
+		return version;
+	}
+	
+	/**
+	 * Merge segments, restore refresh and replicas, wait
+	 * until the replicas are allocated and warm up the caches.
+	 * 
+	 * @param maxSegments merge down to given number of segments per shard, 0 to skip merge
+	 * @param replicas number of replicas, negative to use the number of 
+	 * replicas of the current index
+	 * */
+	public void finishBulkLoad(String version, int maxSegments, int replicas) {
+		IndicesAdminClient indicesAdminClient = ESServer.getInstance().indicesAdminClient();
+		
+		indicesAdminClient.prepareRefresh(version).get();
+		
+		if (maxSegments > 0) {
+			log.info("Force merge {} to {} segments", version, maxSegments);
+			ForceMergeResponse merge = indicesAdminClient.prepareForceMerge(version)
+					.setMaxNumSegments(maxSegments).get();
+			
+			if (merge.getFailedShards() > 0) {
+				log.warn("Force merge of {} failed for {} shards", version, merge.getFailedShards());
+			}
+		}
+		
+		if (replicas < 0) {
+			replicas = getCurrentReplicas();
+		}
+		
+		indicesAdminClient.prepareUpdateSettings(version)
+			.setSettings(Settings.builder()
+					.putNull("index.refresh_interval")
+					.put("index.number_of_replicas", replicas))
+			.get();
+		
+		log.info("Wait for {} replicas of {}", replicas, version);
+		ClusterHealthResponse health = ESServer.getInstance().client().admin().cluster()
+				.prepareHealth(version)
+				.setWaitForGreenStatus()
+				.setTimeout(HEALTH_TIMEOUT)
+				.get();
+		
+		if (health.isTimedOut()) {
+			log.warn("{} is {} after {}, not all replicas are allocated", 
+					version, health.getStatus(), HEALTH_TIMEOUT);
+		}
+		
+		warm(version);
+	}
+	
+	private int getCurrentReplicas() {
+		List<String> concrete = getConcreteIndices();
+		if (concrete.isEmpty()) {
+			return DEFAULT_REPLICAS;
+		}
+		
+		String replicas = ESServer.getInstance().indicesAdminClient()
+				.prepareGetSettings(concrete.get(0)).get()
+				.getSetting(concrete.get(0), "index.number_of_replicas");
+		
+		return replicas != null ? Integer.parseInt(replicas) : DEFAULT_REPLICAS;
+	}
+	
+	/**
+	 * Load terms dictionaries and doc values used by the searches
+	 * before the index gets requests
+	 * */
+	private void warm(String version) {
+		long started = System.currentTimeMillis();
+		
+		ESServer.getInstance().client().prepareSearch(version)
+			.setQuery(QueryBuilders.matchAllQuery())
+			.setSize(0)
+			.addAggregation(AggregationBuilders.terms("type").field("type"))
+			.addAggregation(AggregationBuilders.terms("region").field("import.region"))
+			.get();
+		
+		ESServer.getInstance().client().prepareSearch(version)
+			.setQuery(QueryBuilders.matchAllQuery())
+			.addSort(SortBuilders.fieldSort("id"))
+			.setSize(1)
+			.get();
+		
+		log.info("{} warmed up in {} ms", version, System.currentTimeMillis() - started);
+	}
+	
+	/**
+	 * Atomically point the alias to the version. Index with the 
+	 * same name as the alias, left from the imports without versions,
+	 * is deleted in the same request.
+	 * 
+	 * @param readAliases other aliases moved from the previous version
+	 * to the new one in the same request
+	 * */
+	public void swap(String version, String... readAliases) {
+		IndicesAliasesRequestBuilder aliases = ESServer.getInstance().indicesAdminClient().prepareAliases();
+		
+		List<String> previous = addSwapActions(aliases, version, readAliases);
+		aliases.get();
+		
+		log.info("{} points to {} instead of {}", index, version, previous);
+	}
+	
+	/**
+	 * Add the actions of {@link #swap(String, String...)} to the request,
+	 * to swap several indices at once
+	 * 
+	 * @return indices the alias points to before the request
+	 * */
+	public List<String> addSwapActions(IndicesAliasesRequestBuilder aliases, 
+			String version, String... readAliases) {
+		
+		IndicesAdminClient indicesAdminClient = ESServer.getInstance().indicesAdminClient();
+		
+		List<String> previous = getConcreteIndices();
+		boolean alias = !previous.isEmpty() && isAlias();
+		
+		aliases.addAlias(version, index);
+		
+		for (String readAlias : readAliases) {
+			aliases.addAlias(version, readAlias);
+		}
+		
+		ImmutableOpenMap<String, List<AliasMetaData>> previousAliases = alias && readAliases.length > 0 
+				? indicesAdminClient.prepareGetAliases(readAliases)
+						.setIndices(previous.toArray(new String[previous.size()])).get().getAliases()
+				: ImmutableOpenMap.<String, List<AliasMetaData>>of();
+		
+		for (String name : previous) {
+			if (alias) {
+				aliases.removeAlias(name, index);
+				
+				List<AliasMetaData> has = previousAliases.get(name);
+				for (int i = 0; has != null && i < has.size(); i++) {
+					aliases.removeAlias(name, has.get(i).alias());
+				}
+			}
+			else {
+				aliases.removeIndex(name);
+			}
+		}
+		
+		return previous;
+	}
+	
+	/**
+	 * Delete old versions, which aren't behind the alias
+	 * 
+	 * @param keep number of the newest not aliased versions to keep
+	 * */
+	public void deleteOldVersions(int keep) {
+		List<String> versions = listVersions();
+		versions.removeAll(getConcreteIndices());
+		
+		for (int i = 0; i < versions.size() - keep; i++) {
+			log.info("Delete old version {}", versions.get(i));
+			ESServer.getInstance().indicesAdminClient().prepareDelete(versions.get(i)).get();
+		}
 	}
 	
 	public boolean exists() {
@@ -0,0 +1,249 @@
+package me.osm.gazetteer.search.esclient;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.geobounds.GeoBounds;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+
+/**
+ * Index per region layout.
+ *
+ * Rows of a region are in addresses-region index, which is an alias
+ * for the versions of the region, built as in swap mode. Read alias
+ * {@link IndexHolder#ADDRESSES_INDEX} points to the current versions
+ * of all the regions.
+ *
+ * Mapping _meta of a region version keeps the region, bounds of the
+ * rows and admin0, admin1 tokens, used to select indices for a query.
+ * */
+public class RegionIndices {
+
+	private static final Logger log = LoggerFactory.getLogger(RegionIndices.class);
+
+	private static final String META_REGION = "region";
+	private static final String META_BOUNDS = "bounds";
+	private static final String META_ADMIN0 = "admin0";
+	private static final String META_ADMIN1 = "admin1";
+
+	/**
+	 * Region of one index from its mapping _meta
+	 * */
+	public static final class RegionInfo {
+
+		private final String index;
+		private final String region;
+
+		// min lon, min lat, max lon, max lat or null for empty region
+		private final double[] bounds;
+
+		// null if tokens weren't collected
+		private final Set<String> admin0;
+		private final Set<String> admin1;
+
+		private RegionInfo(String index, String region, double[] bounds,
+				Set<String> admin0, Set<String> admin1) {
+			this.index = index;
+			this.region = region;
+			this.bounds = bounds;
+			this.admin0 = admin0;
+			this.admin1 = admin1;
+		}
+
+		public String getIndex() {
+			return index;
+		}
+
+		public String getRegion() {
+			return region;
+		}
+
+		public boolean contains(double lat, double lon) {
+			return bounds != null
+					&& lat >= bounds[1] && lat <= bounds[3]
+					&& lonIntersects(bounds[0], bounds[2], lon, lon);
+		}
+
+		/**
+		 * @param bbox min lon, min lat, max lon, max lat,
+		 * min lon is greater than max lon if it crosses the antimeridian
+		 * */
+		public boolean intersects(double[] bbox) {
+			return bounds != null
+					&& bbox[1] <= bounds[3] && bbox[3] >= bounds[1]
+					&& lonIntersects(bounds[0], bounds[2], bbox[0], bbox[2]);
+		}
+
+		public boolean hasAdminToken(String token) {
+			return (admin0 != null && admin0.contains(token))
+					|| (admin1 != null && admin1.contains(token));
+		}
+	}
+
+	/**
+	 * Longitude ranges with min greater than max cross the antimeridian
+	 * */
+	private static boolean lonIntersects(double min1, double max1, double min2, double max2) {
+		if (min1 > max1) {
+			return lonIntersects(min1, 180, min2, max2) || lonIntersects(-180, max1, min2, max2);
+		}
+		if (min2 > max2) {
+			return lonIntersects(min1, max1, min2, 180) || lonIntersects(min1, max1, -180, max2);
+		}
+		return min1 <= max2 && max1 >= min2;
+	}
+
+	/**
+	 * @param region import.region
+	 * */
+	public static IndexHolder holder(String region) {
+		return new IndexHolder(IndexHolder.ADDRESSES_INDEX + "-" + region,
+				IndexHolder.ADDR_ROW_TYPE, "es_mappings/addr_row.json");
+	}
+
+	/**
+	 * Save region, bounds and admin tokens into the mapping _meta
+	 * of the loaded version
+	 *
+	 * @param admin0 admin0 tokens or null if they weren't collected
+	 * @param admin1 admin1 tokens or null if they weren't collected
+	 * */
+	public static void describe(String version, String region,
+			Collection<String> admin0, Collection<String> admin1) {
+
+		SearchResponse response = ESServer.getInstance().client().prepareSearch(version)
+				.setQuery(QueryBuilders.matchAllQuery())
+				.setSize(0)
+				// Regions crossing the antimeridian get the whole longitude range
+				.addAggregation(AggregationBuilders.geoBounds(META_BOUNDS).field("centroid").wrapLongitude(false))
+				.get();
+
+		JSONObject meta = new JSONObject();
+		meta.put(META_REGION, region);
+
+		GeoBounds bounds = response.getAggregations().get(META_BOUNDS);
+		GeoPoint topLeft = bounds.topLeft();
+		GeoPoint bottomRight = bounds.bottomRight();
+		if (topLeft != null && bottomRight != null) {
+			meta.put(META_BOUNDS, new JSONArray()
+					.put(topLeft.getLon()).put(bottomRight.getLat())
+					.put(bottomRight.getLon()).put(topLeft.getLat()));
+		}
+
+		if (admin0 != null && admin1 != null) {
+			meta.put(META_ADMIN0, new JSONArray(admin0));
+			meta.put(META_ADMIN1, new JSONArray(admin1));
+		}
+
+		ESServer.getInstance().indicesAdminClient().preparePutMapping(version)
+			.setType(IndexHolder.ADDR_ROW_TYPE)
+			.setSource(new JSONObject().put(IndexHolder.ADDR_ROW_TYPE,
+					new JSONObject().put("_meta", meta)).toString(), XContentType.JSON)
+			.get();
+
+		log.info("{} of {}: bounds {}, {} admin0 and {} admin1 tokens", version, region,
+				meta.opt(META_BOUNDS),
+				admin0 == null ? "no" : admin0.size(),
+				admin1 == null ? "no" : admin1.size());
+	}
+
+	/**
+	 * Point the regions aliases and the read alias to the versions
+	 * in one request, so the search sees either all the old versions
+	 * or all the new ones.
+	 *
+	 * @param versions region to version
+	 * @param replaceIndex delete concrete index with the name of the read alias
+	 * in the same request
+	 * */
+	public static void swap(Map<String, String> versions, boolean replaceIndex) {
+		IndicesAliasesRequestBuilder aliases = ESServer.getInstance().indicesAdminClient().prepareAliases();
+
+		if (replaceIndex) {
+			aliases.removeIndex(IndexHolder.ADDRESSES_INDEX);
+		}
+
+		Map<String, List<String>> previous = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : versions.entrySet()) {
+			previous.put(entry.getKey(), holder(entry.getKey())
+					.addSwapActions(aliases, entry.getValue(), IndexHolder.ADDRESSES_INDEX));
+		}
+
+		aliases.get();
+
+		for (Map.Entry<String, String> entry : versions.entrySet()) {
+			log.info("{} points to {} instead of {}", holder(entry.getKey()).getIndex(),
+					entry.getValue(), previous.get(entry.getKey()));
+		}
+	}
+
+	/**
+	 * @return regions behind the read alias, empty if it points to
+	 * an index without regions
+	 * */
+	@SuppressWarnings("unchecked")
+	public static List<RegionInfo> list() {
+		IndexHolder addresses = new AddressesIndexHolder();
+		if (!addresses.isAlias()) {
+			return Collections.emptyList();
+		}
+
+		ImmutableOpenMap<String, ImmutableOpenMap<String, MappingMetaData>> mappings =
+				ESServer.getInstance().indicesAdminClient()
+					.prepareGetMappings(IndexHolder.ADDRESSES_INDEX)
+					.setTypes(IndexHolder.ADDR_ROW_TYPE).get().getMappings();
+
+		List<RegionInfo> result = new ArrayList<>();
+		for (ObjectObjectCursor<String, ImmutableOpenMap<String, MappingMetaData>> c : mappings) {
+			MappingMetaData mapping = c.value.get(IndexHolder.ADDR_ROW_TYPE);
+			Map<String, Object> meta = mapping == null ? null
+					: (Map<String, Object>) mapping.getSourceAsMap().get("_meta");
+
+			if (meta == null || meta.get(META_REGION) == null) {
+				return Collections.emptyList();
+			}
+
+			result.add(new RegionInfo(c.key, (String) meta.get(META_REGION),
+					asBounds((List<Number>) meta.get(META_BOUNDS)),
+					asSet((List<String>) meta.get(META_ADMIN0)),
+					asSet((List<String>) meta.get(META_ADMIN1))));
+		}
+
+		return result;
+	}
+
+	private static double[] asBounds(List<Number> list) {
+		if (list == null || list.size() != 4) {
+			return null;
+		}
+		double[] bounds = new double[4];
+		for (int i = 0; i < 4; i++) {
+			bounds[i] = list.get(i).doubleValue();
+		}
+		return bounds;
+	}
+
+	private static Set<String> asSet(List<String> list) {
+		return list == null ? null : new HashSet<>(list);
+	}
+
+}
@@ -2,10 +2,12 @@ package me.osm.gazetteer.search.imp;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,8 +40,10 @@ public class DefaultScoreBuilder implements ScoreBuilder {
 		
 		double score = 1.0;
 		
-		JSONObject source = obj.getSource();
-		JSONObject tags = source.getJSONObject("tags");
+		Map<String, String> tags = obj.getTags();
+		if (tags == null) {
+			throw new JSONException("Row has no tags");
+		}
 		
 		String type = obj.getType();
 		
@@ -52,7 +56,10 @@ public class DefaultScoreBuilder implements ScoreBuilder {
 				score /= 10.0;
 			}
 			
-			String highwayType = tags.getString("highway");
+			String highwayType = tags.get("highway");
+			if (highwayType == null) {
+				throw new JSONException("Highway has no highway tag");
+			}
 			double typeWeight = highwayTypeWeights.optDouble(highwayType, 0.0);
 			
 			if (!highwayTypeWeights.has(highwayType)) {
@@ -63,7 +70,7 @@ public class DefaultScoreBuilder implements ScoreBuilder {
 			score = score * typeWeight;
 		}
 		
-		String placeType = StringUtils.stripToNull(tags.optString("place"));
+		String placeType = StringUtils.stripToNull(tags.get("place"));
 		if (placeType != null) {
 			double placeWeight = placeTypeWeights.optDouble(placeType, 0.0);
 			
@@ -2,17 +2,22 @@ package me.osm.gazetteer.search.imp;
 
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.json.JSONObject;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 
+import me.osm.gazetteer.search.esclient.AdaptiveBulkController;
+import me.osm.gazetteer.search.esclient.BulkWriter;
 import me.osm.gazetteer.search.imp.osmdoc.OSMDoc;
+import me.osm.gazetteer.search.query.IndexAnalyzer;
 
 @Parameters(commandDescription="Import data to ES Index")
 public class ImportOptions {
@@ -20,8 +25,16 @@ public class ImportOptions {
 	@Parameter(names={"--drop", "-d"}, description="Drop and create the whole index")
 	private boolean drop;
 	
-	@Parameter(names= {"--source", "-s"}, description="Path to file to import. Use - for stdin")
-	private String source = "-";
+	@Parameter(names= {"--source", "-s"}, variableArity=true,
+			description="Files, directories or globs to import. Use - for stdin. "
+					+ "With several files region is taken from the file name")
+	private List<String> sources = new ArrayList<>(Arrays.asList("-"));
+
+	@Parameter(names={"--parallel-sources"}, description="Number of sources imported concurrently")
+	private int parallelSources = 4;
+
+	@Parameter(names={"--splits"}, description="Read large uncompressed files by given number of ranges concurrently")
+	private int splits = 1;
 	
 	@Parameter(names= {"--osm-doc"}, description="Path to OSMDoc")
 	private String osmdocPath = "jar";
@@ -41,8 +54,79 @@ public class ImportOptions {
 	@Parameter(names={"--translit"}, description="Transliterate names")
 	private boolean translit;
 	
-	@Parameter(names={"--mode"}, description="Import mode")
+	@Parameter(names={"--mode"}, description="Import mode. "
+			+ "Swap builds a new version of the index from the sources and moves the alias to it")
 	private ImportMode importMode = ImportMode.update;
+	
+	@Parameter(names={"--index-per-region"}, description="Import each region into its own index, "
+			+ "addresses alias points to all of them. Region is rebuilt and swapped as in swap mode")
+	private boolean indexPerRegion;
+	
+	@Parameter(names={"--merge-segments"}, description="In swap mode, force merge new index to given number of segments, 0 to skip")
+	private int mergeSegments = 1;
+	
+	@Parameter(names={"--replicas"}, description="In swap mode, number of replicas of the new index. "
+			+ "By default the same as the current one has")
+	private int replicas = -1;
+	
+	@Parameter(names={"--keep-versions"}, description="In swap mode, number of previous index versions to keep")
+	private int keepVersions = 1;
+	
+	@Parameter(names={"--skip-unchanged"}, description="In update mode, don't reindex rows with the same content fingerprint")
+	private boolean skipUnchanged;
+	
+	@Parameter(names={"--fingerprints"}, description="Local file with rows fingerprints, used instead of fetching them from the index. "
+			+ "Directory for several sources")
+	private String fingerprints;
+	
+	@Parameter(names={"--checkpoint"}, description="Periodically save import state to this file. "
+			+ "Directory for several sources")
+	private String checkpoint;
+	
+	@Parameter(names={"--checkpoint-interval"}, description="Save import state after given number of lines")
+	private long checkpointInterval = 1000000;
+	
+	@Parameter(names={"--resume"}, description="Continue interrupted import from the --checkpoint")
+	private boolean resume;
+	
+	@Parameter(names={"--threads"}, description="Number of threads used to parse and analyze rows")
+	private int threads = Runtime.getRuntime().availableProcessors();
+	
+	@Parameter(names={"--analysis-cache-size"}, description="Number of analyzed names cached per source, 0 to disable")
+	private int analysisCacheSize = IndexAnalyzer.DEFAULT_CACHE_SIZE;
+	
+	@Parameter(names={"--translit-cache-size"}, description="Number of transliterated tokens cached per source, 0 to disable")
+	private int translitCacheSize = IndexAnalyzer.DEFAULT_TRANSLIT_CACHE_SIZE;
+	
+	@Parameter(names={"--bulk-actions"}, description="Max number of actions in one bulk request")
+	private int bulkActions = BulkWriter.DEFAULT_MAX_ACTIONS;
+	
+	@Parameter(names={"--bulk-size-mb"}, description="Max size of one bulk request in megabytes")
+	private int bulkSizeMb = (int) (BulkWriter.DEFAULT_MAX_BYTES / BulkWriter.MB);
+	
+	@Parameter(names={"--bulk-concurrency"}, description="Number of bulk requests executed concurrently")
+	private int bulkConcurrency = BulkWriter.DEFAULT_CONCURRENT_REQUESTS;
+	
+	@Parameter(names={"--bulk-in-flight-mb"}, description="Block import when sent but not acknowledged bulks exceed this size")
+	private int bulkInFlightMb = (int) (BulkWriter.DEFAULT_MAX_IN_FLIGHT_BYTES / BulkWriter.MB);
+	
+	@Parameter(names={"--bulk-flush-interval"}, description="Flush not full bulk after given number of seconds")
+	private int bulkFlushInterval = (int) (BulkWriter.DEFAULT_FLUSH_INTERVAL_MS / 1000);
+	
+	@Parameter(names={"--bulk-fixed-size"}, description="Do not adapt bulk size and concurrency to cluster load")
+	private boolean bulkFixedSize;
+	
+	@Parameter(names={"--bulk-max-actions"}, description="Upper limit for adaptive bulk size")
+	private int bulkMaxActions = AdaptiveBulkController.DEFAULT_MAX_ACTIONS;
+	
+	@Parameter(names={"--bulk-target-latency"}, description="Shrink bulks which take longer than given number of milliseconds")
+	private long bulkTargetLatency = AdaptiveBulkController.DEFAULT_TARGET_LATENCY_MS;
+	
+	@Parameter(names={"--bulk-format"}, description="Documents encoding for bulk requests: json, smile or cbor")
+	private XContentType bulkFormat = XContentType.JSON;
+	
+	@Parameter(names={"--bulk-retries"}, description="Number of retries for actions rejected by the cluster")
+	private int bulkRetries = BulkWriter.DEFAULT_MAX_RETRIES;
 
 	public boolean isDrop() {
 		return drop;
@@ -52,12 +136,20 @@ public class ImportOptions {
 		this.drop = drop;
 	}
 
-	public String getSource() {
-		return source;
+	public List<String> getSources() {
+		return sources;
 	}
 
 	public void setSource(String source) {
-		this.source = source;
+		this.sources = new ArrayList<>(Arrays.asList(source));
+	}
+
+	public int getParallelSources() {
+		return parallelSources;
+	}
+
+	public int getSplits() {
+		return splits;
 	}
 
 	public OSMDoc getOSMDoc() {
@@ -80,6 +172,82 @@ public class ImportOptions {
 		return importMode;
 	}
 	
+	public boolean isIndexPerRegion() {
+		return indexPerRegion;
+	}
+	
+	public int getMergeSegments() {
+		return mergeSegments;
+	}
+	
+	public int getReplicas() {
+		return replicas;
+	}
+	
+	public int getKeepVersions() {
+		return keepVersions;
+	}
+	
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+	
+	public String getFingerprints() {
+		return fingerprints;
+	}
+	
+	public String getCheckpoint() {
+		return checkpoint;
+	}
+	
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+	
+	public boolean isResume() {
+		return resume;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public int getAnalysisCacheSize() {
+		return analysisCacheSize;
+	}
+	
+	public int getTranslitCacheSize() {
+		return translitCacheSize;
+	}
+	
+	public XContentType getBulkFormat() {
+		if (bulkFormat != XContentType.JSON && bulkFormat != XContentType.SMILE && bulkFormat != XContentType.CBOR) {
+			throw new IllegalArgumentException("Unsupported bulk format " + bulkFormat);
+		}
+		return bulkFormat;
+	}
+	
+	public BulkWriter createBulkWriter(String name) {
+		BulkWriter writer = new BulkWriter(name)
+				.setMaxActions(bulkActions)
+				.setMaxBytes(bulkSizeMb * BulkWriter.MB)
+				.setConcurrentRequests(bulkConcurrency)
+				.setMaxInFlightBytes(bulkInFlightMb * BulkWriter.MB)
+				.setFlushInterval(bulkFlushInterval * 1000L)
+				.setMaxRetries(bulkRetries);
+		
+		if (!bulkFixedSize) {
+			writer.setController(new AdaptiveBulkController(
+					bulkActions, bulkMaxActions, bulkConcurrency, bulkTargetLatency));
+		}
+		
+		return writer;
+	}
+	
 	public POIIgnore getPoiCfg() {
 		if (skipPoi) {
 			return null;
@@ -0,0 +1,174 @@
+package me.osm.gazetteer.search.imp;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * One input of the import: a file or stdin, and the region it belongs to.
+ * */
+public class ImportSource {
+
+	public static final String STDIN = "-";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final String[] EXTENSIONS = {".gz", ".json"};
+
+	private final String path;
+	private final String region;
+
+	public ImportSource(String path, String region) {
+		this.path = path;
+		this.region = region;
+	}
+
+	/**
+	 * Expand files, directories, globs and - for stdin.
+	 *
+	 * @param region region for a single source, several sources
+	 * get regions from their file names
+	 * */
+	public static List<ImportSource> resolve(List<String> specs, String region) throws IOException {
+		List<String> paths = new ArrayList<>();
+		for (String spec : specs) {
+			if (STDIN.equals(spec)) {
+				paths.add(STDIN);
+			}
+			else if (new File(spec).isDirectory()) {
+				try (Stream<Path> files = Files.list(Paths.get(spec))) {
+					paths.addAll(files.filter(Files::isRegularFile)
+							.filter(p -> hasKnownExtension(p.getFileName().toString()))
+							.map(Path::toString).sorted().collect(Collectors.toList()));
+				}
+			}
+			else if (StringUtils.containsAny(spec, "*?[{")) {
+				paths.addAll(glob(spec));
+			}
+			else {
+				paths.add(spec);
+			}
+		}
+
+		if (paths.isEmpty()) {
+			throw new IllegalArgumentException("No files found for " + specs);
+		}
+
+		if (paths.size() == 1) {
+			return Arrays.asList(new ImportSource(paths.get(0), region));
+		}
+
+		if (paths.stream().filter(STDIN::equals).count() > 0) {
+			throw new IllegalArgumentException("stdin can't be mixed with other sources");
+		}
+
+		List<ImportSource> result = new ArrayList<>();
+		Set<String> regions = new HashSet<>();
+		for (String p : paths) {
+			String fileRegion = regionFromFileName(p);
+			if (!regions.add(fileRegion)) {
+				throw new IllegalArgumentException("Several sources for region " + fileRegion);
+			}
+			result.add(new ImportSource(p, fileRegion));
+		}
+
+		return result;
+	}
+
+	private static List<String> glob(String spec) throws IOException {
+		// Walk from the longest path prefix without wildcards
+		String prefix = spec.substring(0, StringUtils.indexOfAny(spec, "*?[{"));
+		int lastSeparator = prefix.lastIndexOf(File.separatorChar);
+		Path base = Paths.get(lastSeparator >= 0 ? prefix.substring(0, lastSeparator + 1) : ".");
+
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec);
+		boolean relative = lastSeparator < 0;
+
+		try (Stream<Path> files = Files.walk(base)) {
+			return files.filter(Files::isRegularFile)
+					.filter(p -> matcher.matches(relative ? base.relativize(p) : p))
+					.map(Path::toString).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static boolean hasKnownExtension(String name) {
+		return StringUtils.endsWithAny(name, EXTENSIONS);
+	}
+
+	private static String regionFromFileName(String path) {
+		String name = new File(path).getName();
+		boolean stripped = true;
+		while (stripped) {
+			stripped = false;
+			for (String ext : EXTENSIONS) {
+				if (name.endsWith(ext) && name.length() > ext.length()) {
+					name = name.substring(0, name.length() - ext.length());
+					stripped = true;
+				}
+			}
+		}
+		return name.toLowerCase();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return region or null
+	 * */
+	public String getRegion() {
+		return region;
+	}
+
+	public boolean isStdin() {
+		return STDIN.equals(path);
+	}
+
+	public boolean isCompressed() {
+		return path.endsWith(".gz");
+	}
+
+	/**
+	 * Open decompressed stream, gzipped stdin is detected by magic bytes
+	 * */
+	public InputStream open() throws IOException {
+		if (isStdin()) {
+			BufferedInputStream is = new BufferedInputStream(System.in);
+			is.mark(2);
+			int b1 = is.read();
+			int b2 = is.read();
+			is.reset();
+			if (b1 == 0x1f && b2 == 0x8b) {
+				return new GZIPInputStream(is, BUFFER_SIZE);
+			}
+			return is;
+		}
+
+		InputStream is = new FileInputStream(path);
+		return isCompressed() ? new GZIPInputStream(is, BUFFER_SIZE) : is;
+	}
+
+	@Override
+	public String toString() {
+		return region == null ? path : path + " (" + region + ")";
+	}
+
+}
@@ -0,0 +1,155 @@
+package me.osm.gazetteer.search.imp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads \n separated lines as raw bytes, without decoding them.
+ *
+ * Keeps track of the number of lines read and the number of
+ * bytes consumed from the underlying stream.
+ *
+ * Not thread safe.
+ * */
+public class LineReader implements Closeable {
+
+	/**
+	 * Line with its position in the stream
+	 * */
+	public static final class Line {
+
+		private final byte[] bytes;
+		private final long number;
+		private final long end;
+
+		public Line(byte[] bytes, long number, long end) {
+			this.bytes = bytes;
+			this.number = number;
+			this.end = end;
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return 1 based line number
+		 * */
+		public long getNumber() {
+			return number;
+		}
+
+		/**
+		 * @return offset of the next line
+		 * */
+		public long getEnd() {
+			return end;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream is;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+
+	private byte[] line = new byte[1024];
+
+	private long offset = 0;
+	private long lines = 0;
+
+	public LineReader(InputStream is) {
+		this(is, 0, 0);
+	}
+
+	/**
+	 * Continue reading a stream already positioned at the given offset
+	 * */
+	public LineReader(InputStream is, long lines, long offset) {
+		this.is = is;
+		this.lines = lines;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return next line with its position or null at the end of the stream
+	 * */
+	public Line next() throws IOException {
+		byte[] bytes = readLine();
+		return bytes == null ? null : new Line(bytes, lines, offset);
+	}
+
+	/**
+	 * @return next line without line separator or null at the end of the stream
+	 * */
+	public byte[] readLine() throws IOException {
+		int length = 0;
+		boolean eol = false;
+
+		while (!eol) {
+			if (pos >= limit) {
+				limit = is.read(buffer, 0, buffer.length);
+				pos = 0;
+				if (limit <= 0) {
+					limit = 0;
+					if (length == 0) {
+						return null;
+					}
+					break;
+				}
+			}
+
+			int start = pos;
+			while (pos < limit && buffer[pos] != '\n') {
+				pos++;
+			}
+
+			int chunk = pos - start;
+			if (length + chunk > line.length) {
+				line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+			}
+			System.arraycopy(buffer, start, line, length, chunk);
+			length += chunk;
+			offset += chunk;
+
+			if (pos < limit) {
+				// skip \n
+				pos++;
+				offset++;
+				eol = true;
+			}
+		}
+
+		lines++;
+
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+
+		return Arrays.copyOf(line, length);
+	}
+
+	/**
+	 * @return number of lines read so far
+	 * */
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return number of bytes consumed from the stream so far
+	 * */
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		is.close();
+	}
+
+}
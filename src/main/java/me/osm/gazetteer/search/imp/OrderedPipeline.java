@@ -0,0 +1,131 @@
+package me.osm.gazetteer.search.imp;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader -> workers -> sink pipeline.
+ *
+ * One thread reads the input and hands every item to a pool of workers,
+ * results are passed to the sink along with their inputs in the same
+ * order as they were read, so the sink might keep order sensitive state.
+ *
+ * Reader is blocked when there are too many not consumed results.
+ * */
+public class OrderedPipeline<I, O> {
+
+	private static final Logger log = LoggerFactory.getLogger(OrderedPipeline.class);
+
+	public static interface Source<I> {
+		/**
+		 * @return next item or null for the end of input
+		 * */
+		public I next() throws IOException;
+	}
+
+	private final String name;
+	private final int threads;
+	private final int capacity;
+
+	private static final class Pending<I, O> {
+		private final I input;
+		private final Future<O> result;
+
+		public Pending(I input, Future<O> result) {
+			this.input = input;
+			this.result = result;
+		}
+	}
+
+	private final Pending<I, O> endOfInput = new Pending<>(null, CompletableFuture.completedFuture(null));
+
+	private volatile Throwable readerError;
+
+	public OrderedPipeline(String name, int threads, int capacity) {
+		this.name = name;
+		this.threads = Math.max(1, threads);
+		this.capacity = Math.max(this.threads, capacity);
+	}
+
+	/**
+	 * Read whole source and pass results to the sink.
+	 * Sink is called from the caller thread.
+	 * */
+	public void run(Source<I> source, Function<I, O> worker, BiConsumer<I, O> sink)
+			throws InterruptedException, ExecutionException {
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads, threadFactory(name + "-worker"));
+		BlockingQueue<Pending<I, O>> pending = new ArrayBlockingQueue<>(capacity);
+
+		Thread reader = threadFactory(name + "-reader").newThread(() -> {
+			try {
+				I item = source.next();
+				while (item != null && !Thread.currentThread().isInterrupted()) {
+					final I input = item;
+					pending.put(new Pending<>(input, workers.submit(() -> worker.apply(input))));
+					item = source.next();
+				}
+			}
+			catch (InterruptedException e) {
+				// Pipeline was canceled
+			}
+			catch (Throwable t) {
+				readerError = t;
+			}
+			finally {
+				try {
+					pending.put(endOfInput);
+				}
+				catch (InterruptedException e) {
+					// Pipeline was canceled, nobody waits for the end marker
+				}
+			}
+		});
+
+		reader.start();
+
+		try {
+			Pending<I, O> next = pending.take();
+			while (next != endOfInput) {
+				sink.accept(next.input, next.result.get());
+				next = pending.take();
+			}
+
+			if (readerError != null) {
+				throw new ExecutionException("Failed to read input", readerError);
+			}
+		}
+		finally {
+			reader.interrupt();
+			workers.shutdownNow();
+
+			// Unblock reader if it waits for free space in the queue
+			pending.clear();
+		}
+
+		log.trace("Pipeline {} done", name);
+	}
+
+	private static ThreadFactory threadFactory(String prefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return r -> {
+			Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+}
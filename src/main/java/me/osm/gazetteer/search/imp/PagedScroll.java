@@ -1,89 +1,288 @@
 package me.osm.gazetteer.search.imp;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.slice.SliceBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import me.osm.gazetteer.search.backendquery.es.builders.BooleanPart;
 import me.osm.gazetteer.search.esclient.ESServer;
 import me.osm.gazetteer.search.esclient.IndexHolder;
 
+/**
+ * Reads all rows of a type page by page.
+ *
+ * One slice is read with search_after by id, several slices are read
+ * concurrently with sliced scroll. Next page of a slice is fetched
+ * while the handlers process the previous ones.
+ *
+ * Handler is called from a pool of threads, it should be thread safe
+ * if there is more than one thread. Pages come in order of their slice
+ * only if there is one slice and one thread.
+ * */
 public class PagedScroll {
-	
+
+	private static final Logger log = LoggerFactory.getLogger(PagedScroll.class);
+
 	public static interface PageHandler {
 		public void page(SearchResponse response);
 	}
-	
+
 	private static final TransportClient client = ESServer.getInstance().client();
-	
+
+	private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
 	private String type;
 	private String[] fetchSource;
 
 	private int pageSize;
 
 	private String region = null;
+	private String index = IndexHolder.ADDRESSES_INDEX;
+	private String routing = null;
+
+	private int slices = 1;
+	private int threads = 1;
+
+	private final AtomicLong totalHits = new AtomicLong();
 
 	public PagedScroll(int pageSize, String type, String[] fetchSource) {
 		this.type = type;
 		this.fetchSource = fetchSource;
 		this.pageSize = pageSize;
 	}
-	
+
 	public void setRegion(String region) {
 		this.region = region;
 	}
-	
+
+	/**
+	 * Read only the shard with given routing,
+	 * should be used along with {@link #setRegion(String)}
+	 * */
+	public void setRouting(String routing) {
+		this.routing = routing;
+	}
+
+	/**
+	 * Index or alias to read, addresses alias by default
+	 * */
+	public void setIndex(String index) {
+		this.index = index;
+	}
+
+	/**
+	 * Number of slices read concurrently
+	 * */
+	public void setSlices(int slices) {
+		this.slices = Math.max(1, slices);
+	}
+
+	/**
+	 * Number of threads calling the handler
+	 * */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Total number of rows of the slices which returned their first page
+	 * */
+	public long getTotalHits() {
+		return totalHits.get();
+	}
+
 	private SearchRequestBuilder prepareQuery() {
-		
+
 		JSONObject typeQ = new JSONObject().put("term", new JSONObject().put("type", type));
 		JSONObject query = typeQ;
-		
+
 		if (region != null) {
 			BooleanPart booleanPart = new BooleanPart();
 
 			JSONObject regionQ = new JSONObject().put("term", new JSONObject().put("import.region", region));
-			
+
 			booleanPart.addMust(typeQ);
 			booleanPart.addMust(regionQ);
-			
+
 			query = booleanPart.getPart();
 		}
-		
-		return client.prepareSearch(IndexHolder.ADDRESSES_INDEX)
+
+		return client.prepareSearch(index)
 			.setTypes(IndexHolder.ADDR_ROW_TYPE)
+			.setRouting(routing)
 			.setFetchSource(fetchSource, new String[] {})
-			.addSort(SortBuilders.fieldSort("id"))
 			.setQuery(QueryBuilders.wrapperQuery(query.toString()));
 	}
 
 	public void scroll(PageHandler pager) {
-		SearchRequestBuilder query = prepareQuery().setFrom(0).setSize(0);
-		
-		
-		long total = query.get().getHits().getTotalHits();
+		totalHits.set(0);
+
+		ExecutorService handlers = Executors.newFixedThreadPool(threads, threadFactory("scroll-" + type + "-handler"));
+		ExecutorService readers = Executors.newFixedThreadPool(slices, threadFactory("scroll-" + type + "-slice"));
+
+		// Pages fetched but not handled yet
+		Semaphore prefetched = new Semaphore(threads + slices);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+
+		try {
+			for (int slice = 0; slice < slices; slice++) {
+				final int id = slice;
+				readers.execute(() -> {
+					try {
+						if (slices == 1) {
+							searchAfter(pager, handlers, prefetched, error);
+						}
+						else {
+							scrollSlice(id, pager, handlers, prefetched, error);
+						}
+					}
+					catch (Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				});
+			}
+
+			readers.shutdown();
+			readers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+			handlers.shutdown();
+			handlers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Scroll of " + type + " was interrupted", e);
+		}
+		finally {
+			readers.shutdownNow();
+			handlers.shutdownNow();
+		}
+
+		if (error.get() != null) {
+			throw new RuntimeException("Failed to scroll " + type, error.get());
+		}
+	}
+
+	private void searchAfter(PageHandler pager, ExecutorService handlers,
+			Semaphore prefetched, AtomicReference<Throwable> error) throws InterruptedException {
 
 		String esid = null;
-		for(int page = 0; page <= total / pageSize; page++) {
-			
+		boolean first = true;
+		do {
 			SearchRequestBuilder q = prepareQuery()
+					.addSort(SortBuilders.fieldSort("id"))
 					.setSize(pageSize);
-			
+
 			if (esid != null) {
 				q.searchAfter(new Object[] {esid});
 			}
-			
+
+			prefetched.acquire();
 			SearchResponse response = q.get();
-			
-			SearchHit[] hits = response.getHits().getHits();
-			if(hits.length > 0) {
-				esid = hits[hits.length - 1].getId();
-				pager.page(response);
+			if (first) {
+				totalHits.addAndGet(response.getHits().getTotalHits());
+				first = false;
+			}
+
+			esid = submit(response, pager, handlers, prefetched, error);
+		}
+		while (esid != null && error.get() == null);
+	}
+
+	private void scrollSlice(int id, PageHandler pager, ExecutorService handlers,
+			Semaphore prefetched, AtomicReference<Throwable> error) throws InterruptedException {
+
+		prefetched.acquire();
+		SearchResponse response = prepareQuery()
+				.addSort(SortBuilders.fieldSort("_doc"))
+				.slice(new SliceBuilder(id, slices))
+				.setScroll(SCROLL_KEEP_ALIVE)
+				.setSize(pageSize)
+				.get();
+
+		totalHits.addAndGet(response.getHits().getTotalHits());
+
+		String scrollId = response.getScrollId();
+		try {
+			while (submit(response, pager, handlers, prefetched, error) != null && error.get() == null) {
+				prefetched.acquire();
+				response = client.prepareSearchScroll(scrollId).setScroll(SCROLL_KEEP_ALIVE).get();
+				scrollId = response.getScrollId();
 			}
 		}
+		finally {
+			try {
+				client.prepareClearScroll().addScrollId(scrollId).get();
+			}
+			catch (Exception e) {
+				log.warn("Failed to clear scroll of {} slice {}: {}", type, id, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Pass the page to the handlers, permit is released when it's handled.
+	 *
+	 * @return id of the last hit or null if it's the last page
+	 * */
+	private String submit(SearchResponse response, PageHandler pager, ExecutorService handlers,
+			Semaphore prefetched, AtomicReference<Throwable> error) {
+
+		SearchHit[] hits = response.getHits().getHits();
+		if (hits.length == 0) {
+			prefetched.release();
+			return null;
+		}
+
+		handlers.execute(() -> {
+			try {
+				if (error.get() == null) {
+					pager.page(response);
+				}
+			}
+			catch (Throwable t) {
+				error.compareAndSet(null, t);
+			}
+			finally {
+				prefetched.release();
+			}
+		});
+
+		return hits.length < pageSize ? null : hits[hits.length - 1].getId();
+	}
+
+	/**
+	 * @return routing the hit was indexed with or null
+	 * */
+	public static String getRouting(SearchHit hit) {
+		DocumentField routing = hit.field(RoutingFieldMapper.NAME);
+		return routing != null ? routing.getValue() : null;
+	}
+
+	private static ThreadFactory threadFactory(String prefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return r -> {
+			Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
 	}
 }
-	
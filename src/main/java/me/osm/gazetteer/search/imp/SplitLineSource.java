@@ -0,0 +1,143 @@
+package me.osm.gazetteer.search.imp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads uncompressed file by several line aligned byte ranges concurrently.
+ *
+ * Lines are returned in the same order as they are in the file,
+ * so it could replace a single {@link LineReader}.
+ * */
+public class SplitLineSource implements OrderedPipeline.Source<LineReader.Line>, Closeable {
+
+	private static final int QUEUE_CAPACITY = 8192;
+
+	private static final LineReader.Line END = new LineReader.Line(null, -1, -1);
+
+	private final class Range implements Runnable {
+
+		private final long start;
+		private final long end;
+		private final BlockingQueue<LineReader.Line> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+		private volatile Throwable error;
+
+		public Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			try (FileInputStream fis = new FileInputStream(file)) {
+				fis.getChannel().position(start);
+				LineReader reader = new LineReader(fis, 0, start);
+
+				LineReader.Line line;
+				while (reader.getOffset() < end && (line = reader.next()) != null) {
+					queue.put(line);
+				}
+			}
+			catch (InterruptedException e) {
+				// Source was closed
+				return;
+			}
+			catch (Throwable t) {
+				error = t;
+			}
+
+			try {
+				queue.put(END);
+			}
+			catch (InterruptedException e) {
+				// Source was closed
+			}
+		}
+	}
+
+	private final File file;
+	private final List<Range> ranges = new ArrayList<>();
+	private final List<Thread> threads = new ArrayList<>();
+
+	private int current = 0;
+
+	/**
+	 * @param offset start reading from this offset, should be a line start
+	 * @param splits number of ranges read concurrently
+	 * */
+	public SplitLineSource(File file, long offset, int splits) throws IOException {
+		this.file = file;
+
+		long length = file.length();
+		long step = Math.max(1, (length - offset) / Math.max(1, splits));
+
+		long start = offset;
+		while (start < length) {
+			long end = start + step >= length ? length : nextLineStart(start + step);
+			ranges.add(new Range(start, end));
+			start = end;
+		}
+
+		for (int i = 0; i < ranges.size(); i++) {
+			Thread thread = new Thread(ranges.get(i), "split-reader-" + file.getName() + "-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	private long nextLineStart(long offset) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(offset);
+			byte[] buffer = new byte[8192];
+			long pos = offset;
+			int read;
+			while ((read = raf.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] == '\n') {
+						return pos + i + 1;
+					}
+				}
+				pos += read;
+			}
+			return pos;
+		}
+	}
+
+	@Override
+	public LineReader.Line next() throws IOException {
+		try {
+			while (current < ranges.size()) {
+				Range range = ranges.get(current);
+				LineReader.Line line = range.queue.take();
+				if (line != END) {
+					return line;
+				}
+
+				if (range.error != null) {
+					throw new IOException("Failed to read " + file, range.error);
+				}
+				current++;
+			}
+			return null;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		threads.forEach(Thread::interrupt);
+	}
+
+}
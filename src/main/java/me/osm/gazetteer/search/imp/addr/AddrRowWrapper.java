@@ -1,17 +1,25 @@
 package me.osm.gazetteer.search.imp.addr;
 
+import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.json.JSONObject;
 
 import me.osm.gazetteer.search.query.IndexAnalyzer.Token;
 
 public class AddrRowWrapper {
-
+	
 	private String id;
 	private String type;
 	private String featureId;
@@ -43,13 +51,14 @@ public class AddrRowWrapper {
 	private double scoreBase;
 
 	private Timestamp timestamp;
-	private JSONObject source;
+	private Map<String, String> tags;
+	private byte[] source;
 	
 	private List<String> poiClasses;
 	
 	private String hnMatch;
 
-	private JSONObject refs;
+	private Map<String, List<String>> refs;
 	private int nameAggIndex;
 	private String ref;
 	private List<Token> admin0;
@@ -57,11 +66,15 @@ public class AddrRowWrapper {
 	private List<Token> admin2;
 	private List<Token> localAdmin;
 	private boolean streetHasLoc;
+	private Integer refCount;
 
 	private List<String> translatedPoiClasses;
 	private JSONObject moreTasgs;
 	private Collection<String> poiKeywords;
 	private ImportMeta imp;
+	
+	private XContentBuilder xContent;
+	private long contentHash;
 
 	public void setId(String id) {
 		this.id = id;
@@ -147,8 +160,15 @@ public class AddrRowWrapper {
 		this.timestamp = timestamp;
 	}
 
-	public void setSource(JSONObject jsonObject) {
-		this.source = jsonObject;
+	/**
+	 * @param source raw json of the row, utf-8
+	 * */
+	public void setSource(byte[] source) {
+		this.source = source;
+	}
+
+	public void setTags(Map<String, String> tags) {
+		this.tags = tags;
 	}
 
 	public void setPoiClasses(List<String> classes) {
@@ -159,7 +179,7 @@ public class AddrRowWrapper {
 		this.hnMatch = match;
 	}
 
-	public void setRefs(JSONObject refs) {
+	public void setRefs(Map<String, List<String>> refs) {
 		this.refs = refs;
 	}
 
@@ -247,10 +267,17 @@ public class AddrRowWrapper {
 		return timestamp;
 	}
 
-	public JSONObject getSource() {
+	public byte[] getSource() {
 		return source;
 	}
 
+	/**
+	 * @return osm tags of the row or null
+	 * */
+	public Map<String, String> getTags() {
+		return tags;
+	}
+
 	public List<String> getPoiClasses() {
 		return poiClasses;
 	}
@@ -263,82 +290,146 @@ public class AddrRowWrapper {
 		return poiKeywords;
 	}
 
-	public JSONObject getRefs() {
+	public Map<String, List<String>> getRefs() {
 		return refs;
 	}
 
-	public JSONObject getJsonForIndex() {
-		JSONObject obj = new JSONObject();
+	/**
+	 * Starts the document for the index with all the fields which 
+	 * doesn't depend on the rows order, so it could be done concurrently.
+	 * 
+	 * @param contentType JSON, SMILE or CBOR
+	 * */
+	public void startXContentForIndex(XContentType contentType) throws IOException {
+		BytesStreamOutput out = new BytesStreamOutput();
+		XContentBuilder builder = new XContentBuilder(contentType.xContent(), out);
+		writeContent(builder);
 		
-		obj.put("id", id);
-		obj.put("import", imp.getJsonForIndex());
-		obj.put("type", type);
-		obj.put("feature_id", featureId);
+		// Fingerprint shouldn't change with the bulk format
+		if (contentType == XContentType.JSON) {
+			builder.flush();
+			this.contentHash = hash(out);
+		}
+		else {
+			BytesStreamOutput json = new BytesStreamOutput();
+			XContentBuilder jsonBuilder = new XContentBuilder(XContentType.JSON.xContent(), json);
+			writeContent(jsonBuilder);
+			jsonBuilder.flush();
+			this.contentHash = hash(json);
+		}
 		
-		obj.put("osm_id", "" + osmType.charAt(0) + osmId);
+		this.xContent = builder;
+	}
+	
+	private static long hash(BytesStreamOutput out) {
+		BytesRef content = out.bytes().toBytesRef();
+		return MurmurHash3.hash128(content.bytes, content.offset, content.length, 
+				0, new MurmurHash3.Hash128()).h1;
+	}
+	
+	private void writeContent(XContentBuilder builder) throws IOException {
+		builder.startObject();
+		
+		field(builder, "id", id);
+		field(builder, "type", type);
+		field(builder, "feature_id", featureId);
+		
+		builder.field("osm_id", "" + osmType.charAt(0) + osmId);
 
-		obj.put("full_text", fullText);
+		field(builder, "full_text", fullText);
 		
-		obj.put("name", asStringList(name));
-		obj.put("ref", ref);
-		obj.put("name_length", name.size());
-		obj.put("name_alt", asStringList(nameAlt));
+		builder.field("name", asStringList(name));
+		field(builder, "ref", ref);
+		builder.field("name_length", name.size());
+		builder.field("name_alt", asStringList(nameAlt));
 		
 		if (hn > 0) {
-			obj.put("housenumber_number", hn);
+			builder.field("housenumber_number", hn);
 		}
-		obj.put("housenumber_exact", hnExact);
-		obj.put("housenumber_array", hnVariants);
+		field(builder, "housenumber_exact", hnExact);
+		field(builder, "housenumber_array", hnVariants);
 		
-		obj.put("centroid", getCentroidJSON());
+		builder.startObject("centroid")
+			.field("lon", lon)
+			.field("lat", lat)
+			.endObject();
 		
-		obj.put("street", asStringList(street));
-		obj.put("street_length", street.size());
-		obj.put("street_has_loc", streetHasLoc);
+		builder.field("street", asStringList(street));
+		builder.field("street_length", street.size());
+		builder.field("street_has_loc", streetHasLoc);
 
-		obj.put("locality", asStringList(locality));
-		obj.put("locality_length", locality.size());
-		obj.put("locality_type", localityType);
+		builder.field("locality", asStringList(locality));
+		builder.field("locality_length", locality.size());
+		field(builder, "locality_type", localityType);
 
-		obj.put("neighbourhood", asStringList(neighbourhood));
+		builder.field("neighbourhood", asStringList(neighbourhood));
 		
-		obj.put("admin0", asStringList(admin0));
-		obj.put("admin1", asStringList(admin1));
-		obj.put("admin2", asStringList(admin2));
-		obj.put("local_admin", asStringList(localAdmin));
+		builder.field("admin0", asStringList(admin0));
+		builder.field("admin1", asStringList(admin1));
+		builder.field("admin2", asStringList(admin2));
+		builder.field("local_admin", asStringList(localAdmin));
 		
-		obj.put("addr_schema", addrSchema);
-		obj.put("by_name_agg_index", nameAggIndex);
+		field(builder, "addr_schema", addrSchema);
 
-		obj.put("refs", refs);
+		field(builder, "refs", refs);
 		
-		obj.put("poi_class", poiClasses);
-
-		if (translatedPoiClasses != null) {
-			obj.put("poi_class_trans", translatedPoiClasses);
-		}
+		field(builder, "poi_class", poiClasses);
+		field(builder, "poi_class_trans", translatedPoiClasses);
 		if (moreTasgs != null) {
-			obj.put("more_tags", moreTasgs);
-		}
-		if (poiKeywords != null) {
-			obj.put("poi_keywords", poiKeywords);
+			builder.field("more_tags", moreTasgs.toMap());
 		}
+		field(builder, "poi_keywords", poiKeywords);
 		
-		obj.put("hm_match", hnMatch);
+		field(builder, "hm_match", hnMatch);
 		
-		obj.put("created", timestamp.getTime());
+		builder.field("created", timestamp.getTime());
 		
-		obj.put("base_score", scoreBase);
-		obj.put("json", source);
+		builder.field("base_score", scoreBase);
 		
-		return obj;
+		// Source is copied as is for json and converted token by token for binary formats
+		builder.rawField("json", new BytesArray(source), XContentType.JSON);
+	}
+	
+	/**
+	 * Hash of the indexed content without import meta,
+	 * available after {@link #startXContentForIndex(XContentType)}
+	 * */
+	public long getFingerprint() {
+		long fingerprint = contentHash ^ (nameAggIndex * 0x9E3779B97F4A7C15L);
+		if (refCount != null) {
+			fingerprint ^= (refCount + 1) * 0xC2B2AE3D27D4EB4FL;
+		}
+		return fingerprint;
 	}
 
-	private JSONObject getCentroidJSON() {
-		JSONObject centroid = new JSONObject();
-		centroid.put("lon", lon);
-		centroid.put("lat", lat);
-		return centroid;
+	/**
+	 * Finish the document started with {@link #startXContentForIndex(XContentType)}
+	 * */
+	public XContentBuilder getXContentForIndex() throws IOException {
+		XContentBuilder builder = xContent;
+		xContent = null;
+		
+		builder.startObject("import");
+		imp.writeForIndex(builder);
+		builder.endObject();
+		
+		builder.field("by_name_agg_index", nameAggIndex);
+		if (refCount != null) {
+			builder.field("ref_count", refCount);
+		}
+		builder.field(FingerprintFilter.FINGERPRINT_FIELD, getFingerprint());
+		
+		builder.endObject();
+		return builder;
+	}
+
+	/**
+	 * Nulls are omitted
+	 * */
+	private static void field(XContentBuilder builder, String name, Object value) throws IOException {
+		if (value != null) {
+			builder.field(name, value);
+		}
 	}
 
 	private Collection<String> asStringList(List<Token> tokens) {
@@ -366,6 +457,14 @@ public class AddrRowWrapper {
 		return this.ref;
 	}
 
+	public List<Token> getAdmin0() {
+		return admin0;
+	}
+	
+	public List<Token> getAdmin1() {
+		return admin1;
+	}
+
 	public void setAdmin0(List<Token> admin0) {
 		this.admin0 = admin0;
 	}
@@ -386,6 +485,13 @@ public class AddrRowWrapper {
 		this.streetHasLoc = streetContainsLoc;
 	}
 
+	/**
+	 * Number of addresses referencing the street, counted in input order
+	 * */
+	public void setRefCount(int refCount) {
+		this.refCount = refCount;
+	}
+
 	public void setPoiClassTranslated(List<String> translatedPoiClasses) {
 		this.translatedPoiClasses = translatedPoiClasses;
 	}
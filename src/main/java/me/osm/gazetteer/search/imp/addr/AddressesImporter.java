@@ -1,46 +1,34 @@
 package me.osm.gazetteer.search.imp.addr;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.io.IOUtils;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequestBuilder;
-import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.xcontent.XContentType;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.TermQueryBuilder;
-import org.elasticsearch.index.reindex.BulkByScrollResponse;
-import org.elasticsearch.index.reindex.DeleteByQueryAction;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import me.osm.gazetteer.search.esclient.AddressesIndexHolder;
+import me.osm.gazetteer.search.esclient.BulkWriter;
 import me.osm.gazetteer.search.esclient.ESServer;
 import me.osm.gazetteer.search.esclient.IndexHolder;
+import me.osm.gazetteer.search.esclient.RegionIndices;
 import me.osm.gazetteer.search.imp.ImportMode;
 import me.osm.gazetteer.search.imp.ImportOptions;
+import me.osm.gazetteer.search.imp.ImportSource;
 import me.osm.gazetteer.search.util.TimePeriodFormatter;
 
 public class AddressesImporter {
@@ -48,22 +36,17 @@ public class AddressesImporter {
 	private static final Logger log = LoggerFactory.getLogger(AddressesImporter.class);
 	
 	private ImportOptions options;
-	private ImportObjectParser parser;
 
-	private int batchSize = 1000;
 	private int total = 0;
-	private int skip = 0;
 
 	private int addresses = 0;
 
 	private TransportClient client = ESServer.getInstance().client();
-	private volatile BulkRequestBuilder bulk = client.prepareBulk();
+	
 	private static final IndexHolder indexHolder = new AddressesIndexHolder();
 
 	private long started;
 	
-	private Set<String> batchObjectIds = new HashSet<>();
-	
 	public static final class ImportException extends RuntimeException {
 		public ImportException(Exception se) {
 			super(se);
@@ -78,160 +61,283 @@ public class AddressesImporter {
 
 	public AddressesImporter(ImportOptions options) {
 		this.options = options;
-		this.parser = new ImportObjectParser(this.options);
 	}
 	
 	public void run() throws ImportException {
 		
-		log.info("Read from {}", options.getSource());
+		List<ImportSource> sources = resolveSources();
 		
-		if (options.isDrop() && indexHolder.exists()) {
-			log.info("Drop index");
-			indexHolder.drop();
-		}
-
-		if(!indexHolder.exists()) {
-			log.info("Create index");
-			indexHolder.create();
-		}
-		
-		if (options.getMode() == ImportMode.delete) {
-			if (options.getRegion() != null) {
-				log.info("Drop region {}", options.getRegion());
-				
-				BulkByScrollResponse bulkByScrollResponse = DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
-					.filter(QueryBuilders.matchQuery("import.region", options.getRegion()))
-					.source(IndexHolder.ADDRESSES_INDEX).get();
-				
-				log.info("Deleted {}", bulkByScrollResponse.getDeleted());
-			}
+		if (options.isResume() && options.getCheckpoint() == null) {
+			throw new ImportException("--resume requires --checkpoint", null);
 		}
 		
 		this.started = new Date().getTime();
 		
+		int parallel = Math.max(1, Math.min(options.getParallelSources(), sources.size()));
+		int threads = Math.max(1, options.getThreads() / parallel);
+		
+		BulkWriter bulkWriter = options.createBulkWriter("import");
+		ExecutorService executor = Executors.newFixedThreadPool(parallel);
 		try {
+			List<RegionImporter> importers = new ArrayList<>();
+			for (ImportSource source : sources) {
+				importers.add(new RegionImporter(options, source, bulkWriter, 
+						getStateFile(options.getCheckpoint(), source, sources, ".checkpoint"),
+						getStateFile(options.getFingerprints(), source, sources, ".fingerprints"),
+						threads));
+			}
 			
-			BufferedReader reader = getStreamReader();
-			
-			ImportMeta imp = createImportMetaObject();
+			ImportCheckpoint resumed = importers.stream().map(RegionImporter::getCheckpoint)
+					.filter(c -> c != null).findFirst().orElse(null);
 			
-			try {
-				String line = reader.readLine();
-				while (line != null) {
-					
-					try {
-						JSONObject obj = new JSONObject(line);
-					
-						AddrRowWrapper row = parser.parseAddress(obj);
-						
-						if(row != null) {
-							total ++;
-
-							row.setImport(imp);
-							if(options.getMode() == ImportMode.update) {
-								batchObjectIds.add(row.getId());
-							}
-
-							IndexRequestBuilder index = client
-									.prepareIndex(indexHolder.getIndex(), indexHolder.getType())
-									.setSource(row.getJsonForIndex().toString(), XContentType.JSON);
-							
-							bulk.add(index);
-						}
-						else {
-							skip++;
-						}
-						
-						submitBatch(bulk.numberOfActions());
-					}
-					catch (JSONException je) {
-						je.printStackTrace();
-					}
-					
-					line = reader.readLine();
-				}
+			if (options.isIndexPerRegion()) {
+				runPerRegion(importers, resumed, executor, bulkWriter);
+				deleteCheckpoints(sources);
 				
-				this.submitBulk();
-
-				if (options.getMode() == ImportMode.update) {
-					BoolQueryBuilder filter = QueryBuilders.boolQuery();
-					filter.must(QueryBuilders.termQuery("import.region", getRegion()));
-					filter.must(QueryBuilders.rangeQuery("import.region_counter").lt(imp.getRegionCounter()));
-					
-					DeleteByQueryAction.INSTANCE.newRequestBuilder(client).source(IndexHolder.ADDRESSES_INDEX)
-						.filter(filter).get();
-				}
+				String duration = TimePeriodFormatter.printDuration(new Date().getTime() - this.started);
+				log.info("{} sources, {} rows imported in {}", sources.size(), total, duration);
+				return;
 			}
-			catch (IOException e) {
-				throw new ImportException(e);
+			
+			checkSingleIndexLayout(resumed);
+			
+			final String index;
+			final boolean indexCreated;
+			if (resumed != null) {
+				index = resumed.getIndex() != null ? resumed.getIndex() : indexHolder.getIndex();
+				indexCreated = resumed.isIndexCreated();
+			}
+			else if (options.getMode() == ImportMode.swap) {
+				index = indexHolder.createVersion();
+				indexCreated = true;
 			}
-			finally {
-				IOUtils.closeQuietly(reader);
+			else {
+				index = indexHolder.getIndex();
+				indexCreated = prepareIndex();
 			}
 			
-			String duration = TimePeriodFormatter.printDuration(new Date().getTime() - this.started);
-			log.info("{} lines skiped", skip);
-			log.info("Import done in {}", duration);
+			// New version is empty, counter continues the one of the published index
+			final long importCounter = resumed != null ? resumed.getImport().getImportCounter() 
+					: nextImportCounterOfAlias();
 			
-			fileRead();
+			List<Future<?>> futures = new ArrayList<>();
+			for (RegionImporter importer : importers) {
+				futures.add(executor.submit(() -> importer.run(importCounter, index, indexCreated)));
+			}
 			
-			new UpdateStreetsUsage(this.options.getRegion()).run();
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			
+			bulkWriter.close();
+			
+			for (RegionImporter importer : importers) {
+				total += importer.rowsTotal();
+			}
+			
+			if (options.getMode() == ImportMode.swap) {
+				swap(index);
+			}
+			
+			deleteCheckpoints(sources);
+			
+			String duration = TimePeriodFormatter.printDuration(new Date().getTime() - this.started);
+			log.info("{} sources, {} rows imported in {}", sources.size(), total, duration);
+		}
+		catch (ImportException e) {
+			throw e;
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof ImportException) {
+				throw (ImportException) e.getCause();
+			}
+			throw new ImportException(e);
 		}
 		catch (Exception e) {
 			throw new ImportException(e);
 		}
+		finally {
+			executor.shutdownNow();
+		}
 	}
 
-	private String getRegion() {
-		if (options.getRegion() == null) {
-			return "NULL";
+	private List<ImportSource> resolveSources() {
+		try {
+			List<ImportSource> sources = ImportSource.resolve(options.getSources(), options.getRegion());
+			if (sources.size() > 1 && options.getRegion() != null) {
+				log.warn("--region is ignored for several sources, regions are taken from the file names");
+			}
+			return sources;
+		}
+		catch (IOException | IllegalArgumentException e) {
+			throw new ImportException("Can't read sources " + options.getSources(), e);
+		}
+	}
+
+	/**
+	 * For several sources the option is a directory with a file per region
+	 * */
+	private static File getStateFile(String option, ImportSource source, 
+			List<ImportSource> sources, String extension) {
+		
+		if (option == null) {
+			return null;
 		}
 		
-		return options.getRegion().toLowerCase();
+		if (sources.size() == 1) {
+			return new File(option);
+		}
+		
+		File dir = new File(option);
+		dir.mkdirs();
+		return new File(dir, source.getRegion() + extension);
 	}
 
-	private ImportMeta createImportMetaObject() throws InterruptedException, ExecutionException {
-		TermQueryBuilder byReagionQF = QueryBuilders.termQuery("import.region", getRegion());
-		SearchRequestBuilder counters = client.prepareSearch(IndexHolder.ADDRESSES_INDEX)
-			.setQuery(QueryBuilders.matchAllQuery())
-			.addAggregation(
-					AggregationBuilders.filter("region_max", byReagionQF)
-						.subAggregation(AggregationBuilders.max("value").field("import.region_counter")))
-			.addAggregation(AggregationBuilders.max("import_max").field("import.import_counter"));
+	private void deleteCheckpoints(List<ImportSource> sources) {
+		if (options.getCheckpoint() == null) {
+			return;
+		}
+		
+		for (ImportSource source : sources) {
+			getStateFile(options.getCheckpoint(), source, sources, ".checkpoint").delete();
+		}
+	}
+
+	/**
+	 * Rows can't be written through the alias of the region indices
+	 * */
+	private void checkSingleIndexLayout(ImportCheckpoint resumed) {
+		if (indexHolder.getConcreteIndices().size() <= 1) {
+			return;
+		}
 		
-		SearchResponse countersResponse = counters.execute().get();
+		boolean dropped = options.isDrop() && resumed == null && options.getMode() != ImportMode.swap;
+		if (!dropped) {
+			throw new ImportException("Index " + IndexHolder.ADDRESSES_INDEX 
+					+ " is an alias for several indices, use --index-per-region to import regions into it "
+					+ "or --drop to replace it with one index", null);
+		}
+	}
+
+	/**
+	 * Drop or create the index before the import
+	 * 
+	 * @return index was created
+	 * */
+	private boolean prepareIndex() {
+		if (options.isDrop() && indexHolder.exists()) {
+			log.info("Drop index");
+			indexHolder.drop();
+		}
+
+		boolean indexCreated = false;
+		if(!indexHolder.exists()) {
+			log.info("Create index");
+			indexHolder.create();
+			indexCreated = true;
+		}
 		
-		JSONObject regionMaxAggregation = new JSONObject(countersResponse.getAggregations().get("region_max").toString());
-		long regionImportCounter = regionMaxAggregation.getJSONObject("region_max").getJSONObject("value").optLong("value", 0);
+		return indexCreated;
+	}
 
+	/**
+	 * Import counter is shared by all the sources of the import,
+	 * region counters are taken by the region importers
+	 * */
+	private long nextImportCounter(String index) throws InterruptedException, ExecutionException {
+		SearchResponse countersResponse = client.prepareSearch(index)
+			.setQuery(QueryBuilders.matchAllQuery())
+			.setSize(0)
+			.addAggregation(AggregationBuilders.max("import_max").field("import.import_counter"))
+			.execute().get();
+		
 		JSONObject importMaxAggregation = new JSONObject(countersResponse.getAggregations().get("import_max").toString());
 		long importCounter = importMaxAggregation.getJSONObject("import_max").optLong("value", 0);
 		
-		ImportMeta imp = new ImportMeta(getRegion(), regionImportCounter + 1, importCounter + 1);
-		return imp;
+		return importCounter + 1;
 	}
 
-	private void fileRead() {
-		// Do nothing for now
-		// Later if we have something like swap
-		// whole region we'll have to do some actions here
+	/**
+	 * Import every region into a new version of its own index,
+	 * then move region aliases and addresses read alias to them.
+	 * */
+	private void runPerRegion(List<RegionImporter> importers, ImportCheckpoint resumed, 
+			ExecutorService executor, BulkWriter bulkWriter) throws Exception {
+		
+		if (options.getMode() != ImportMode.swap) {
+			log.info("Mode {} is ignored, regions are rebuilt and swapped", options.getMode());
+		}
+		
+		for (RegionImporter importer : importers) {
+			if (importer.getImportRegion() == null) {
+				throw new ImportException("Index per region requires a region for every source", null);
+			}
+		}
+		
+		boolean legacy = indexHolder.exists() && !indexHolder.isAlias();
+		if (legacy && !options.isDrop()) {
+			throw new ImportException("Index " + IndexHolder.ADDRESSES_INDEX 
+					+ " isn't an alias, use --drop to replace it with region indices", null);
+		}
+		
+		final long importCounter = resumed != null ? resumed.getImport().getImportCounter() 
+				: nextImportCounterOfAlias();
+		
+		List<String> versions = new ArrayList<>();
+		List<Future<?>> futures = new ArrayList<>();
+		for (RegionImporter importer : importers) {
+			ImportCheckpoint checkpoint = importer.getCheckpoint();
+			String version = checkpoint != null && checkpoint.getIndex() != null ? checkpoint.getIndex() 
+					: RegionIndices.holder(importer.getImportRegion()).createVersion();
+			
+			versions.add(version);
+			futures.add(executor.submit(() -> importer.run(importCounter, version, true)));
+		}
+		
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		
+		bulkWriter.close();
+		
+		// Search keeps the previous versions until all the new ones are ready
+		Map<String, String> swap = new LinkedHashMap<>();
+		for (int i = 0; i < importers.size(); i++) {
+			RegionImporter importer = importers.get(i);
+			String region = importer.getImportRegion();
+			String version = versions.get(i);
+			
+			RegionIndices.holder(region).finishBulkLoad(version, options.getMergeSegments(), options.getReplicas());
+			RegionIndices.describe(version, region, importer.getAdmin0Tokens(), importer.getAdmin1Tokens());
+			
+			swap.put(region, version);
+			total += importer.rowsTotal();
+		}
+		
+		if (legacy) {
+			log.info("Replace index {} with the regions", IndexHolder.ADDRESSES_INDEX);
+		}
+		RegionIndices.swap(swap, legacy);
+		
+		for (String region : swap.keySet()) {
+			RegionIndices.holder(region).deleteOldVersions(options.getKeepVersions());
+		}
 	}
 
-	private BufferedReader getStreamReader() throws FileNotFoundException, IOException, UnsupportedEncodingException {
-		File file = new File(options.getSource());
-		InputStream is = new FileInputStream(file);
-		if (file.getName().endsWith(".gz")) {
-			is = new GZIPInputStream(is);
-		}
-		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "utf8"));
-		return reader;
+	/**
+	 * Next import counter of the published addresses, 1 if there are none
+	 * */
+	private long nextImportCounterOfAlias() throws InterruptedException, ExecutionException {
+		return indexHolder.exists() ? nextImportCounter(indexHolder.getIndex()) : 1;
 	}
-	
-	private void submitBatch(int counter) throws ImportException {
-		if (counter > 0 && counter % batchSize == 0) {
-			submitBulk();
-			bulk = client.prepareBulk();
-		}
+
+	/**
+	 * Make the new version searchable and move the alias to it
+	 * */
+	private void swap(String version) {
+		indexHolder.finishBulkLoad(version, options.getMergeSegments(), options.getReplicas());
+		indexHolder.swap(version);
+		indexHolder.deleteOldVersions(options.getKeepVersions());
 	}
 
 	public int rowsImported() {
@@ -242,26 +348,6 @@ public class AddressesImporter {
 		return total;
 	}
 	
-	protected void submitBulk() {
-		if (bulk.numberOfActions() > 0) {
-			
-			if (!batchObjectIds.isEmpty()) {
-				DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
-					.source(IndexHolder.ADDRESSES_INDEX)
-					.filter(QueryBuilders.termsQuery("id", batchObjectIds)).get();
-				
-				batchObjectIds.clear();
-			}
-			
-			BulkResponse response = bulk.get();
-			if(response.hasFailures()) {
-				throw new Error(response.buildFailureMessage());
-			}
-		}
-		
-		log.info("{} rows imported", String.format(Locale.US, "%,9d", total));
-	}
-
 	public static void main(String[] args) throws FileNotFoundException, IOException {
 		try {
 			ImportOptions importOptions = new ImportOptions();
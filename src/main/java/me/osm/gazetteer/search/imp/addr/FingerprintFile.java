@@ -0,0 +1,147 @@
+package me.osm.gazetteer.search.imp.addr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.LongLongHashMap;
+
+/**
+ * Local copy of the rows fingerprints from the previous import.
+ *
+ * Fingerprints of the current import are written into a temporary
+ * file, which replaces the previous one on {@link #commit()}.
+ *
+ * File is a sequence of (id hash, fingerprint) long pairs.
+ * Not thread safe.
+ * */
+public class FingerprintFile {
+
+	private static final Logger log = LoggerFactory.getLogger(FingerprintFile.class);
+
+	private static final long MAGIC = 0x4746505249303031L;
+
+	private final File file;
+	private final File tmp;
+
+	private final LongLongHashMap previous = new LongLongHashMap();
+	private DataOutputStream out;
+	private long written = 0;
+
+	public FingerprintFile(String path) {
+		this.file = new File(path);
+		this.tmp = new File(path + ".tmp");
+	}
+
+	/**
+	 * Read fingerprints of the previous import, if there are any.
+	 * */
+	public void load() throws IOException {
+		if (!file.exists()) {
+			log.info("Fingerprints file {} doesn't exist, all rows will be indexed", file);
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+
+			if (in.readLong() != MAGIC) {
+				throw new IOException("Unsupported fingerprints file " + file);
+			}
+
+			while (true) {
+				long idHash;
+				try {
+					idHash = in.readLong();
+				}
+				catch (EOFException eof) {
+					break;
+				}
+				previous.put(idHash, in.readLong());
+			}
+		}
+
+		log.info("{} fingerprints loaded from {}", previous.size(), file);
+	}
+
+	public boolean isUnchanged(String id, long fingerprint) {
+		long idHash = hashId(id);
+		return previous.containsKey(idHash) && previous.get(idHash) == fingerprint;
+	}
+
+	public void write(String id, long fingerprint) throws IOException {
+		if (out == null) {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeLong(MAGIC);
+			written = 8;
+		}
+		written += 16;
+		out.writeLong(hashId(id));
+		out.writeLong(fingerprint);
+	}
+
+	/**
+	 * Flush written fingerprints.
+	 * 
+	 * @return length of the written file, to continue from it on resume
+	 * */
+	public long checkpoint() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+		return written;
+	}
+
+	/**
+	 * Continue writing fingerprints left by the interrupted import
+	 * 
+	 * @param length value returned by {@link #checkpoint()}
+	 * */
+	public void resume(long length) throws IOException {
+		if (length == 0) {
+			return;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			if (raf.length() < length) {
+				throw new IOException("Fingerprints file " + tmp + " is shorter than the checkpoint");
+			}
+			raf.setLength(length);
+		}
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp, true)));
+		written = length;
+	}
+
+	/**
+	 * Replace previous fingerprints with the written ones.
+	 * Should be called only when all rows are indexed.
+	 * */
+	public void commit() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static long hashId(String id) {
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		return MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+	}
+
+}
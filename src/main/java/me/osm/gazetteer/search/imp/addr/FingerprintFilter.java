@@ -0,0 +1,204 @@
+package me.osm.gazetteer.search.imp.addr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import me.osm.gazetteer.search.esclient.BulkWriter;
+import me.osm.gazetteer.search.esclient.ESServer;
+
+/**
+ * Sends to the index only new and changed rows.
+ *
+ * Rows with the same fingerprint as the indexed ones
+ * only get their import meta updated, so they
+ * survive the stale rows cleanup.
+ *
+ * Previous fingerprints are taken either from the local
+ * {@link FingerprintFile} or fetched from the index by batches.
+ *
+ * Not thread safe, should be called from the pipeline sink.
+ * */
+public class FingerprintFilter {
+
+	private static final Logger log = LoggerFactory.getLogger(FingerprintFilter.class);
+
+	public static final String FINGERPRINT_FIELD = "fingerprint";
+
+	private static final class Pending {
+		private final String id;
+		private final long fingerprint;
+		private final IndexRequest index;
+
+		public Pending(String id, long fingerprint, IndexRequest index) {
+			this.id = id;
+			this.fingerprint = fingerprint;
+			this.index = index;
+		}
+	}
+
+	private final TransportClient client = ESServer.getInstance().client();
+
+	private final BulkWriter.Producer writer;
+	private final String index;
+	private final String type;
+	private final String routing;
+	private final boolean skipUnchanged;
+	private final FingerprintFile file;
+	private final int batchSize;
+
+	private final byte[] importDoc;
+
+	private final List<Pending> batch = new ArrayList<>();
+
+	private long changed = 0;
+	private long unchanged = 0;
+
+	/**
+	 * @param routing routing of the rows or null
+	 * @param skipUnchanged compare fingerprints, otherwise just write them to the file
+	 * @param file local fingerprints or null to fetch them from the index
+	 * */
+	public FingerprintFilter(BulkWriter.Producer writer, String index, String type, String routing, ImportMeta imp,
+			boolean skipUnchanged, FingerprintFile file, int batchSize) {
+
+		this.writer = writer;
+		this.index = index;
+		this.type = type;
+		this.routing = routing;
+		this.skipUnchanged = skipUnchanged;
+		this.file = file;
+		this.batchSize = batchSize;
+
+		try {
+			XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+			builder.startObject("import");
+			imp.writeForIndex(builder);
+			builder.endObject();
+			builder.endObject();
+			this.importDoc = BytesReference.toBytes(builder.bytes());
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void add(String id, long fingerprint, IndexRequest request) throws IOException {
+		if (file != null) {
+			file.write(id, fingerprint);
+		}
+
+		if (!skipUnchanged) {
+			send(request);
+		}
+		else if (file != null) {
+			if (file.isUnchanged(id, fingerprint)) {
+				// Document might be deleted from the index since the file was written
+				touch(id, request);
+			}
+			else {
+				send(request);
+			}
+		}
+		else {
+			batch.add(new Pending(id, fingerprint, request));
+			if (batch.size() >= batchSize) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Check and send pending rows
+	 * */
+	public void flush() {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		FetchSourceContext fingerprintOnly = new FetchSourceContext(
+				true, new String[] {FINGERPRINT_FIELD}, null);
+
+		MultiGetRequestBuilder mget = client.prepareMultiGet();
+		for (Pending p : batch) {
+			mget.add(new MultiGetRequest.Item(index, type, p.id).routing(routing).fetchSourceContext(fingerprintOnly));
+		}
+
+		MultiGetResponse response = mget.get();
+		MultiGetItemResponse[] items = response.getResponses();
+		for (int i = 0; i < items.length; i++) {
+			Pending p = batch.get(i);
+			if (!items[i].isFailed() && items[i].getResponse().isExists()
+					&& isSame(items[i].getResponse().getSourceAsMap(), p.fingerprint)) {
+				touch(p.id, null);
+			}
+			else {
+				send(p.index);
+			}
+		}
+
+		batch.clear();
+	}
+
+	/**
+	 * Flush pending rows and save fingerprints file.
+	 * Call it after all the requests are acknowledged.
+	 * */
+	public void commit() throws IOException {
+		flush();
+		if (file != null) {
+			file.commit();
+		}
+	}
+
+	public FingerprintFile getFile() {
+		return file;
+	}
+
+	public void logStats() {
+		log.info("{} rows changed, {} rows unchanged", changed, unchanged);
+	}
+
+	private static boolean isSame(Map<String, Object> source, long fingerprint) {
+		Object indexed = source == null ? null : source.get(FINGERPRINT_FIELD);
+		return indexed instanceof Number && ((Number) indexed).longValue() == fingerprint;
+	}
+
+	private void send(IndexRequest request) {
+		changed++;
+		writer.add(request);
+	}
+
+	/**
+	 * @param upsert row to index if there is no such document or null
+	 * */
+	private void touch(String id, IndexRequest upsert) {
+		unchanged++;
+		UpdateRequestBuilder update = client.prepareUpdate(index, type, id)
+				.setRouting(routing)
+				.setDoc(importDoc, XContentType.JSON);
+
+		if (upsert != null) {
+			update.setUpsert(upsert);
+		}
+
+		writer.add(update.request());
+	}
+
+}
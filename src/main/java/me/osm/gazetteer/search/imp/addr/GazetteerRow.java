@@ -0,0 +1,166 @@
+package me.osm.gazetteer.search.imp.addr;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Compact form of a gazetteer dump line.
+ *
+ * Holds only the fields used by {@link ImportObjectParser}
+ * and the raw bytes of the line itself.
+ *
+ * Filled by {@link GazetteerRowReader}.
+ * */
+public class GazetteerRow {
+
+	public static final class AddrPart {
+
+		String lnk = "";
+		Map<String, String> names;
+
+		public String getLnk() {
+			return lnk;
+		}
+
+		/**
+		 * @return names or null if part has no names object
+		 * */
+		public Map<String, String> getNames() {
+			return names;
+		}
+	}
+
+	byte[] raw;
+
+	String type;
+	String id;
+	String featureId;
+	String osmType = "";
+	Long osmId;
+	String housenumber = "";
+	String timestamp;
+	String poiAddrMatch = "";
+
+	Double lon;
+	Double lat;
+
+	Map<String, String> tags;
+	List<String> poiClasses;
+	Map<String, List<String>> refs;
+	Map<String, String> levelNames;
+
+	boolean hasAddress = false;
+	String addrLongText = "";
+	List<AddrPart> addrParts;
+
+	public byte[] getRaw() {
+		return raw;
+	}
+
+	public String getType() {
+		return required("type", type);
+	}
+
+	public String getId() {
+		return required("id", id);
+	}
+
+	public String getFeatureId() {
+		return required("feature_id", featureId);
+	}
+
+	/**
+	 * @return osm_type or empty string
+	 * */
+	public String getOsmType() {
+		return osmType;
+	}
+
+	public long getOsmId() {
+		return required("osm_id", osmId);
+	}
+
+	/**
+	 * @return housenumber or empty string
+	 * */
+	public String getHousenumber() {
+		return housenumber;
+	}
+
+	public String getTimestamp() {
+		return required("timestamp", timestamp);
+	}
+
+	/**
+	 * @return poi_addr_match or empty string
+	 * */
+	public String getPoiAddrMatch() {
+		return poiAddrMatch;
+	}
+
+	public double getLon() {
+		return required("center_point.lon", lon);
+	}
+
+	public double getLat() {
+		return required("center_point.lat", lat);
+	}
+
+	/**
+	 * @return tags or null if row has no tags object
+	 * */
+	public Map<String, String> getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return poi_class or null
+	 * */
+	public List<String> getPoiClasses() {
+		return poiClasses;
+	}
+
+	/**
+	 * @return refs, single values are returned as singleton lists,
+	 * or null if row has no refs object
+	 * */
+	public Map<String, List<String>> getRefs() {
+		return refs;
+	}
+
+	/**
+	 * @return value of the {level}_name field or empty string
+	 * */
+	public String getLevelName(String level) {
+		String name = levelNames == null ? null : levelNames.get(level + "_name");
+		return name == null ? "" : name;
+	}
+
+	public boolean hasAddress() {
+		return hasAddress;
+	}
+
+	/**
+	 * @return address.longText, null if there is no address object
+	 * */
+	public String getAddrLongText() {
+		return hasAddress ? addrLongText : null;
+	}
+
+	/**
+	 * @return address.parts or null
+	 * */
+	public List<AddrPart> getAddrParts() {
+		return addrParts;
+	}
+
+	private static <T> T required(String key, T value) {
+		if (value == null) {
+			throw new JSONException("Required field " + key + " not found");
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,340 @@
+package me.osm.gazetteer.search.imp.addr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import me.osm.gazetteer.search.imp.addr.GazetteerRow.AddrPart;
+
+/**
+ * Reads gazetteer dump lines with streaming parser,
+ * without building the whole json tree.
+ *
+ * Thread safe.
+ * */
+public class GazetteerRowReader {
+
+	private static final JsonFactory factory = new JsonFactory();
+
+	public static interface NamesFilter {
+		/**
+		 * @param part index of the object in address.parts
+		 * @param key name tag key
+		 * @return keep this name in the copy
+		 * */
+		public boolean keep(int part, String key);
+	}
+
+	public static GazetteerRow read(byte[] line) throws IOException {
+		GazetteerRow row = new GazetteerRow();
+		row.raw = line;
+
+		try (JsonParser p = factory.createParser(line)) {
+			if (p.nextToken() != JsonToken.START_OBJECT) {
+				throw new JSONException("Row must be a json object");
+			}
+
+			while (p.nextToken() == JsonToken.FIELD_NAME) {
+				String field = p.getCurrentName();
+				p.nextToken();
+
+				switch (field) {
+				case "type": row.type = readScalar(p); break;
+				case "id": row.id = readScalar(p); break;
+				case "feature_id": row.featureId = readScalar(p); break;
+				case "osm_type": row.osmType = orEmpty(readScalar(p)); break;
+				case "osm_id": row.osmId = readLong(p, field); break;
+				case "housenumber": row.housenumber = orEmpty(readScalar(p)); break;
+				case "timestamp": row.timestamp = readScalar(p); break;
+				case "poi_addr_match": row.poiAddrMatch = orEmpty(readScalar(p)); break;
+				case "center_point": readCenter(p, row); break;
+				case "tags": row.tags = readStringMap(p); break;
+				case "poi_class": row.poiClasses = readStringList(p); break;
+				case "refs": row.refs = readRefs(p); break;
+				case "address": readAddress(p, row); break;
+				default:
+					if (field.endsWith("_name") && p.getCurrentToken().isScalarValue()) {
+						if (row.levelNames == null) {
+							row.levelNames = new HashMap<>();
+						}
+						row.levelNames.put(field, orEmpty(readScalar(p)));
+					}
+					else {
+						p.skipChildren();
+					}
+				}
+			}
+		}
+
+		return row;
+	}
+
+	/**
+	 * Copy the line, leaving in address.parts[].names only
+	 * the names accepted by the filter.
+	 * */
+	public static byte[] copyTrimmed(byte[] line, NamesFilter filter) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(line.length);
+
+		try (JsonParser p = factory.createParser(line);
+				JsonGenerator g = factory.createGenerator(out)) {
+
+			p.nextToken();
+			g.writeStartObject();
+			while (p.nextToken() == JsonToken.FIELD_NAME) {
+				String field = p.getCurrentName();
+				g.writeFieldName(field);
+
+				if (p.nextToken() == JsonToken.START_OBJECT && "address".equals(field)) {
+					copyAddress(p, g, filter);
+				}
+				else {
+					g.copyCurrentStructure(p);
+				}
+			}
+			g.writeEndObject();
+		}
+
+		return out.toByteArray();
+	}
+
+	private static void copyAddress(JsonParser p, JsonGenerator g, NamesFilter filter) throws IOException {
+		g.writeStartObject();
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			g.writeFieldName(field);
+
+			if (p.nextToken() == JsonToken.START_ARRAY && "parts".equals(field)) {
+				g.writeStartArray();
+				int i = 0;
+				while (p.nextToken() != JsonToken.END_ARRAY) {
+					if (p.getCurrentToken() == JsonToken.START_OBJECT) {
+						copyPart(p, g, filter, i++);
+					}
+					else {
+						g.copyCurrentStructure(p);
+					}
+				}
+				g.writeEndArray();
+			}
+			else {
+				g.copyCurrentStructure(p);
+			}
+		}
+		g.writeEndObject();
+	}
+
+	private static void copyPart(JsonParser p, JsonGenerator g, NamesFilter filter, int part) throws IOException {
+		g.writeStartObject();
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			g.writeFieldName(field);
+
+			if (p.nextToken() == JsonToken.START_OBJECT && "names".equals(field)) {
+				g.writeStartObject();
+				while (p.nextToken() == JsonToken.FIELD_NAME) {
+					String key = p.getCurrentName();
+					p.nextToken();
+					if (filter.keep(part, key)) {
+						g.writeFieldName(key);
+						g.copyCurrentStructure(p);
+					}
+					else {
+						p.skipChildren();
+					}
+				}
+				g.writeEndObject();
+			}
+			else {
+				g.copyCurrentStructure(p);
+			}
+		}
+		g.writeEndObject();
+	}
+
+	private static void readCenter(JsonParser p, GazetteerRow row) throws IOException {
+		if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+			p.skipChildren();
+			return;
+		}
+
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			p.nextToken();
+			if ("lon".equals(field)) {
+				row.lon = readDouble(p, field);
+			}
+			else if ("lat".equals(field)) {
+				row.lat = readDouble(p, field);
+			}
+			else {
+				p.skipChildren();
+			}
+		}
+	}
+
+	private static void readAddress(JsonParser p, GazetteerRow row) throws IOException {
+		if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+			p.skipChildren();
+			return;
+		}
+
+		row.hasAddress = true;
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			p.nextToken();
+			if ("longText".equals(field)) {
+				row.addrLongText = orEmpty(readScalar(p));
+			}
+			else if ("parts".equals(field) && p.getCurrentToken() == JsonToken.START_ARRAY) {
+				row.addrParts = new ArrayList<>();
+				while (p.nextToken() != JsonToken.END_ARRAY) {
+					if (p.getCurrentToken() == JsonToken.START_OBJECT) {
+						row.addrParts.add(readPart(p));
+					}
+					else {
+						p.skipChildren();
+					}
+				}
+			}
+			else {
+				p.skipChildren();
+			}
+		}
+	}
+
+	private static AddrPart readPart(JsonParser p) throws IOException {
+		AddrPart part = new AddrPart();
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			p.nextToken();
+			if ("lnk".equals(field)) {
+				part.lnk = orEmpty(readScalar(p));
+			}
+			else if ("names".equals(field)) {
+				part.names = readStringMap(p);
+			}
+			else {
+				p.skipChildren();
+			}
+		}
+		return part;
+	}
+
+	private static Map<String, List<String>> readRefs(JsonParser p) throws IOException {
+		if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+			p.skipChildren();
+			return null;
+		}
+
+		Map<String, List<String>> refs = new LinkedHashMap<>();
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String key = p.getCurrentName();
+			if (p.nextToken() == JsonToken.START_ARRAY) {
+				refs.put(key, readStringList(p));
+			}
+			else {
+				String value = readScalar(p);
+				if (value != null) {
+					refs.put(key, Collections.singletonList(value));
+				}
+			}
+		}
+		return refs;
+	}
+
+	private static Map<String, String> readStringMap(JsonParser p) throws IOException {
+		if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+			p.skipChildren();
+			return null;
+		}
+
+		Map<String, String> map = new LinkedHashMap<>();
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String key = p.getCurrentName();
+			p.nextToken();
+			String value = readScalar(p);
+			if (value != null) {
+				map.put(key, value);
+			}
+		}
+		return map;
+	}
+
+	private static List<String> readStringList(JsonParser p) throws IOException {
+		if (p.getCurrentToken() != JsonToken.START_ARRAY) {
+			p.skipChildren();
+			return null;
+		}
+
+		List<String> list = new ArrayList<>();
+		while (p.nextToken() != JsonToken.END_ARRAY) {
+			String value = readScalar(p);
+			if (value != null) {
+				list.add(value);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return text of the current scalar value, null for
+	 * json null, objects and arrays
+	 * */
+	private static String readScalar(JsonParser p) throws IOException {
+		JsonToken token = p.getCurrentToken();
+		if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+			p.skipChildren();
+			return null;
+		}
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		return p.getText();
+	}
+
+	private static Long readLong(JsonParser p, String field) throws IOException {
+		if (p.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+			return p.getLongValue();
+		}
+
+		String value = readScalar(p);
+		try {
+			return value == null ? null : Long.valueOf(value);
+		}
+		catch (NumberFormatException e) {
+			throw new JSONException(field + " is not a number: " + value);
+		}
+	}
+
+	private static Double readDouble(JsonParser p, String field) throws IOException {
+		if (p.getCurrentToken().isNumeric()) {
+			return p.getDoubleValue();
+		}
+
+		String value = readScalar(p);
+		try {
+			return value == null ? null : Double.valueOf(value);
+		}
+		catch (NumberFormatException e) {
+			throw new JSONException(field + " is not a number: " + value);
+		}
+	}
+
+	private static String orEmpty(String s) {
+		return s == null ? "" : s;
+	}
+
+}
@@ -0,0 +1,202 @@
+package me.osm.gazetteer.search.imp.addr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Import state at the point where all the rows before
+ * the given input offset are indexed.
+ * */
+public class ImportCheckpoint {
+
+	private String source;
+	private long line;
+	private long offset;
+	private ImportMeta imp;
+	private Map<String, Map<Integer, Integer>> nameAggState;
+	private int total;
+	private int skip;
+	private long fingerprintsLength;
+	private boolean indexCreated;
+	private String index;
+	private boolean done;
+
+	public String getSource() {
+		return source;
+	}
+
+	public void setSource(String source) {
+		this.source = source;
+	}
+
+	/**
+	 * @return number of lines processed
+	 * */
+	public long getLine() {
+		return line;
+	}
+
+	public void setLine(long line) {
+		this.line = line;
+	}
+
+	/**
+	 * @return offset of the first not processed line in the decompressed input
+	 * */
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public ImportMeta getImport() {
+		return imp;
+	}
+
+	public void setImport(ImportMeta imp) {
+		this.imp = imp;
+	}
+
+	public Map<String, Map<Integer, Integer>> getNameAggState() {
+		return nameAggState;
+	}
+
+	public void setNameAggState(Map<String, Map<Integer, Integer>> nameAggState) {
+		this.nameAggState = nameAggState;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public void setTotal(int total) {
+		this.total = total;
+	}
+
+	public int getSkip() {
+		return skip;
+	}
+
+	public void setSkip(int skip) {
+		this.skip = skip;
+	}
+
+	public long getFingerprintsLength() {
+		return fingerprintsLength;
+	}
+
+	public void setFingerprintsLength(long fingerprintsLength) {
+		this.fingerprintsLength = fingerprintsLength;
+	}
+
+	/**
+	 * @return index was created by the interrupted import
+	 * */
+	public boolean isIndexCreated() {
+		return indexCreated;
+	}
+
+	public void setIndexCreated(boolean indexCreated) {
+		this.indexCreated = indexCreated;
+	}
+
+	/**
+	 * @return index the rows were written to
+	 * */
+	public String getIndex() {
+		return index;
+	}
+
+	public void setIndex(String index) {
+		this.index = index;
+	}
+
+	/**
+	 * @return source was imported completely,
+	 * but some other sources of the same import weren't
+	 * */
+	public boolean isDone() {
+		return done;
+	}
+
+	public void setDone(boolean done) {
+		this.done = done;
+	}
+
+	/**
+	 * Write checkpoint, previous checkpoint is replaced atomically
+	 * */
+	public void save(File file) throws IOException {
+		JSONObject json = new JSONObject();
+		json.put("source", source);
+		json.put("line", line);
+		json.put("offset", offset);
+		json.put("total", total);
+		json.put("skip", skip);
+		json.put("fingerprints_length", fingerprintsLength);
+		json.put("index_created", indexCreated);
+		json.put("index", index);
+		json.put("done", done);
+
+		JSONObject meta = new JSONObject();
+		meta.put("region", imp.getRegion());
+		meta.put("region_counter", imp.getRegionCounter());
+		meta.put("import_counter", imp.getImportCounter());
+		json.put("import", meta);
+
+		JSONObject agg = new JSONObject();
+		for (Map.Entry<String, Map<Integer, Integer>> entry : nameAggState.entrySet()) {
+			JSONObject counters = new JSONObject();
+			entry.getValue().forEach((hash, i) -> counters.put(String.valueOf(hash), i));
+			agg.put(entry.getKey(), counters);
+		}
+		json.put("name_agg", agg);
+
+		File tmp = new File(file.getPath() + ".tmp");
+		Files.write(tmp.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static ImportCheckpoint load(File file) throws IOException {
+		JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+
+		ImportCheckpoint checkpoint = new ImportCheckpoint();
+		checkpoint.source = json.getString("source");
+		checkpoint.line = json.getLong("line");
+		checkpoint.offset = json.getLong("offset");
+		checkpoint.total = json.getInt("total");
+		checkpoint.skip = json.getInt("skip");
+		checkpoint.fingerprintsLength = json.optLong("fingerprints_length", 0);
+		checkpoint.indexCreated = json.optBoolean("index_created", false);
+		checkpoint.index = json.optString("index", null);
+		checkpoint.done = json.optBoolean("done", false);
+
+		JSONObject meta = json.getJSONObject("import");
+		checkpoint.imp = new ImportMeta(meta.getString("region"),
+				meta.getLong("region_counter"), meta.getLong("import_counter"));
+
+		checkpoint.nameAggState = new HashMap<>();
+		JSONObject agg = json.getJSONObject("name_agg");
+		for (String key : agg.keySet()) {
+			JSONObject counters = agg.getJSONObject(key);
+			Map<Integer, Integer> map = new HashMap<>(counters.length() * 2);
+			for (String hash : counters.keySet()) {
+				map.put(Integer.valueOf(hash), counters.getInt(hash));
+			}
+			checkpoint.nameAggState.put(key, map);
+		}
+
+		return checkpoint;
+	}
+
+}
@@ -1,8 +1,8 @@
 package me.osm.gazetteer.search.imp.addr;
 
-import java.util.Collection;
+import java.io.IOException;
 
-import org.json.JSONObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 
 public class ImportMeta {
 	
@@ -37,12 +37,10 @@ public class ImportMeta {
 		this.import_counter = importCounter;
 	}
 
-	public JSONObject getJsonForIndex() {
-		JSONObject obj = new JSONObject();
-		obj.put("region", region);
-		obj.put("region_counter", region_counter);
-		obj.put("import_counter", import_counter);
-		return obj;
+	public void writeForIndex(XContentBuilder builder) throws IOException {
+		builder.field("region", region);
+		builder.field("region_counter", region_counter);
+		builder.field("import_counter", import_counter);
 	}
 	
 }
@@ -1,5 +1,7 @@
 package me.osm.gazetteer.search.imp.addr;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -7,12 +9,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -32,7 +31,7 @@ public class ImportObjectParser {
 	
 	private static final Logger log = LoggerFactory.getLogger(ImportObjectParser.class);
 	
-	private IndexAnalyzer indexAnalyzer = new IndexAnalyzer();
+	private IndexAnalyzer indexAnalyzer;
 	private ScoreBuilder scoreBuilder = new DefaultScoreBuilder();
 	
 	private Map<Integer, Integer> nameAggHghnet = new HashMap<>();
@@ -50,6 +49,8 @@ public class ImportObjectParser {
 	public ImportObjectParser(ImportOptions options) {
 		this.importOptions = options;
 		this.languages = importOptions.getLanguages();
+		this.indexAnalyzer = new IndexAnalyzer(importOptions.getAnalysisCacheSize(), 
+				importOptions.getTranslitCacheSize());
 		
 		skip = new HashSet<>();
 		skip.add("mtainf");
@@ -63,25 +64,25 @@ public class ImportObjectParser {
 		}
 	}
 
-	public AddrRowWrapper parseAddress(JSONObject jsonObject) throws ImportException {
-		String type = jsonObject.getString("type");
+	public AddrRowWrapper parseAddress(GazetteerRow row) throws ImportException {
+		String type = row.getType();
 			
 		try {
 			
 			
 			if ("mtainf".equals(type)) {
-				log.info("Import metainf: {}", jsonObject);
+				log.info("Import metainf: {}", new String(row.getRaw(), StandardCharsets.UTF_8));
 				return null;
 			}
 			
-			String osm_type = jsonObject.optString("osm_type");
+			String osm_type = row.getOsmType();
 			if (osm_type == null || skip.contains(type)) {
 				return null;
 			}
 			
-			long osm_id = jsonObject.getLong("osm_id");
+			long osm_id = row.getOsmId();
 			
-			NamesAccessor accessor = new NamesAccessor(jsonObject, languages);
+			NamesAccessor accessor = new NamesAccessor(row, languages);
 			
 			String fullText = accessor.getAddrFullText();
 			
@@ -89,14 +90,14 @@ public class ImportObjectParser {
 			List<Token> localityTokens = indexAnalyzer.normalizeLocationName(
 					localityName, importOptions.isTranslit());
 
-			String housenumber = jsonObject.optString("housenumber");
+			String housenumber = row.getHousenumber();
 			String streetName = accessor.getStreet();
 			List<Token> streetTokens = indexAnalyzer.normalizeStreetName(
 					streetName, importOptions.isTranslit());
 			
-			JSONObject optTags = jsonObject.optJSONObject("tags");
+			Map<String, String> optTags = row.getTags();
 			String name = accessor.getName();
-			String ref = optTags != null ? optTags.optString("ref") : null;
+			String ref = optTags != null ? StringUtils.defaultString(optTags.get("ref")) : null;
 			
 			List<Token> nameTokens = indexAnalyzer.normalizeName(
 					name, importOptions.isTranslit());
@@ -108,7 +109,7 @@ public class ImportObjectParser {
 				
 				AddrRowWrapper subj = new AddrRowWrapper();
 				
-				fillCommonField(subj, jsonObject, type, osm_type, osm_id);
+				fillCommonField(subj, row, type, osm_type, osm_id);
 				
 				subj.setFullText(fullText);
 				
@@ -143,13 +144,15 @@ public class ImportObjectParser {
 				
 				subj.setNeighbourhood(null);
 				
-				subj.setLocalityType(getLocalityType(jsonObject));
+				subj.setLocalityType(getLocalityType(row));
 
-				fillLonLat(subj, jsonObject);
+				subj.setLon(row.getLon());
+				subj.setLat(row.getLat());
 				
 				if (isPoi) {
-					List<String> classes = setPoiClasses(subj, jsonObject);
-					subj.setHNMatch(jsonObject.optString("poi_addr_match"));
+					List<String> classes = row.getPoiClasses();
+					subj.setPoiClasses(classes);
+					subj.setHNMatch(row.getPoiAddrMatch());
 					if (classes != null) {
 						if (poiIgnore != null) {
 							boolean keep = poiIgnore.keep(classes, StringUtils.stripToNull(name) != null);
@@ -159,7 +162,7 @@ public class ImportObjectParser {
 						}
 						
 						if (poiParser != null) {
-							PoiInfo poiInfo = poiParser.getInfo(jsonObject);
+							PoiInfo poiInfo = poiParser.getInfo(classes, new JSONObject(optTags));
 							subj.setPoiClassTranslated(poiInfo.getTranslatedPoiClasses());
 							subj.setMoreTags(poiInfo.getMoreTags());
 							subj.setPoiKeywords(poiInfo.getKeywords());
@@ -167,17 +170,15 @@ public class ImportObjectParser {
 					}
 				}
 				else {
-					String[] split = StringUtils.splitByWholeSeparator(jsonObject.getString("id"), "--");
+					String[] split = StringUtils.splitByWholeSeparator(row.getId(), "--");
 					subj.setAddrSchema(split.length > 1 ? split[1] : "regular");
 				}
 				
-				fillNameAggIndex(type, nameTokens, subj);
-
-				fillRefs(subj, jsonObject);
+				fillRefs(subj, row);
 				
-				DateTime dateTimeTimestamp = new DateTime(jsonObject.getString("timestamp"));
+				DateTime dateTimeTimestamp = new DateTime(row.getTimestamp());
 				subj.setTimestamp(new Timestamp(dateTimeTimestamp.getMillis()));
-				subj.setSource(jsonObject);
+				subj.setTags(optTags);
 
 				double score = scoreBuilder.getScore(subj);
 				if (score == 0.0) {
@@ -186,7 +187,7 @@ public class ImportObjectParser {
 				
 				subj.setScoreBase(score);
 				
-				accessor.trimNames();
+				subj.setSource(accessor.getTrimmedSource());
 				
 				return subj;
 			}
@@ -195,6 +196,10 @@ public class ImportObjectParser {
 		catch (JSONException je) {
 			je.printStackTrace();
 		}
+		catch (IOException e) {
+			// Row was already read, so it's a bug rather than a broken row
+			throw new RuntimeException(e);
+		}
 
 		return null;
 	}
@@ -212,9 +217,16 @@ public class ImportObjectParser {
 		return false;
 	}
 
-	private void fillNameAggIndex(String type, List<Token> nameTokens, AddrRowWrapper subj) {
+	/**
+	 * Depends on the order of the rows, so unlike
+	 * {@link #parseAddress(GazetteerRow)} it isn't thread safe
+	 * and should be called for parsed rows in input order.
+	 * */
+	public void fillNameAggIndex(AddrRowWrapper subj) {
 		subj.setNameAggIndex(0);
 		
+		String type = subj.getType();
+		List<Token> nameTokens = subj.getName();
 		
 		if ("hghnet".equals(type) || "hghway".equals(type)) {
 			
@@ -236,70 +248,87 @@ public class ImportObjectParser {
 		}
 	}
 	
-	private String getLocalityType(JSONObject jsonObject) {
-		return null;
+	/**
+	 * Copy of the name aggregation counters, to be saved with a checkpoint
+	 * */
+	public Map<String, Map<Integer, Integer>> getNameAggState() {
+		Map<String, Map<Integer, Integer>> state = new HashMap<>();
+		state.put("hghnet", new HashMap<>(nameAggHghnet));
+		state.put("hghway", new HashMap<>(nameAggHghway));
+		return state;
 	}
 
-	private int parseHousenumber(String housenumber) {
-		String string = StringUtils.stripToEmpty(housenumber);
-		string = string.replaceAll("[^\\d.]", " ");
-		Pattern pattern = Pattern.compile("[\\d]+");
-		Matcher matcher = pattern.matcher(string);
-		
-		// Ok for now, just get the first match
-		// it works not in all cases
-		while(matcher.find()) {
-			String group = matcher.group();
-			try {
-				return Integer.parseInt(group);
-			}
-			catch (Exception e) {
-				return -1;
-			}
+	/**
+	 * Log hit rates of the analyzer and POI classes caches
+	 * */
+	public void logStats() {
+		if (indexAnalyzer.getCache() != null) {
+			log.info("{}", indexAnalyzer.getCache());
 		}
-		return -1;
-	}
-
-	private List<String> setPoiClasses(final AddrRowWrapper subj, JSONObject jsonObject) {
-		JSONArray classesJSON = jsonObject.optJSONArray("poi_class");
-		if (classesJSON != null) {
-			List<String> classes = readJSONTextArray(classesJSON);
-			subj.setPoiClasses(classes);
-			return classes;
+		if (importOptions.isTranslit() && indexAnalyzer.getTranslitCache() != null) {
+			log.info("{}, {} ascii tokens skipped", indexAnalyzer.getTranslitCache(), indexAnalyzer.getTranslitAscii());
+		}
+		if (poiParser != null) {
+			log.info("{}", poiParser.getClassesCache());
 		}
+	}
+	
+	public void restoreNameAggState(Map<String, Map<Integer, Integer>> state) {
+		nameAggHghnet = new HashMap<>(state.getOrDefault("hghnet", new HashMap<>()));
+		nameAggHghway = new HashMap<>(state.getOrDefault("hghway", new HashMap<>()));
+	}
+	
+	private String getLocalityType(GazetteerRow row) {
 		return null;
 	}
 
-	private List<String> readJSONTextArray(JSONArray poiKeywords) {
-		List<String> keywords = new ArrayList<>();
-		for(int i = 0; i < poiKeywords.length(); i++) {
-			keywords.add(poiKeywords.getString(i));
+	/**
+	 * First number of a housenumber, -1 if there is no numbers
+	 * or the number doesn't fit into int.
+	 * */
+	private int parseHousenumber(String housenumber) {
+		if (housenumber == null) {
+			return -1;
+		}
+		
+		int i = 0;
+		while (i < housenumber.length() && !isDigit(housenumber.charAt(i))) {
+			i++;
 		}
-		return keywords;
+		if (i == housenumber.length()) {
+			return -1;
+		}
+		
+		long value = 0;
+		for (; i < housenumber.length() && isDigit(housenumber.charAt(i)); i++) {
+			value = value * 10 + (housenumber.charAt(i) - '0');
+			if (value > Integer.MAX_VALUE) {
+				return -1;
+			}
+		}
+		return (int) value;
 	}
-
-	private void fillLonLat(final AddrRowWrapper subj, JSONObject jsonObject) {
-		JSONObject centroid = jsonObject.getJSONObject("center_point");
-		subj.setLon(centroid.getDouble("lon"));
-		subj.setLat(centroid.getDouble("lat"));
+	
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
 	}
 
-	private void fillRefs(final AddrRowWrapper subj, JSONObject jsonObject) {
-		JSONObject optJSONObject = jsonObject.optJSONObject("refs");
-		if (optJSONObject != null) {
-			JSONObject refs = new JSONObject();
+	private void fillRefs(final AddrRowWrapper subj, GazetteerRow row) {
+		Map<String, List<String>> rowRefs = row.getRefs();
+		if (rowRefs != null) {
+			Map<String, List<String>> refs = new HashMap<>();
 			
-			for (String key : optJSONObject.keySet()) {
-				JSONArray values = new JSONArray();
-				for(String ref : asStringList(optJSONObject, key)) {
-					values.put(ref);
+			for (Map.Entry<String, List<String>> entry : rowRefs.entrySet()) {
+				List<String> values = new ArrayList<>();
+				for(String ref : entry.getValue()) {
+					values.add(ref);
 					String omsId = getOSMid(ref);
 					if (omsId != null) {
-						values.put(omsId);
+						values.add(omsId);
 					}
 				}
-				if (values.length() > 0) {
-					refs.put(key, values);
+				if (!values.isEmpty()) {
+					refs.put(entry.getKey(), values);
 				}
 			}
 			
@@ -308,30 +337,37 @@ public class ImportObjectParser {
 		
 	}
 
+	/**
+	 * Third part of a ref like adrpnt-0123-w12345, null if there is no such part
+	 * */
 	private String getOSMid(String ref) {
-		return StringUtils.split(ref, '-')[2];
-	}
-
-	private List<String> asStringList(JSONObject obj, String key) {
-		List<String> result = new ArrayList<>();
-		
-		Object val = obj.get(key);
-		if (val instanceof JSONArray) {
-			((JSONArray)val).forEach(o -> result.add(o.toString()));
-		}
-		else if (val instanceof String) {
-			result.add((String) val);
+		int part = 0;
+		int i = 0;
+		while (i < ref.length()) {
+			// same as StringUtils.split, empty parts are skipped
+			if (ref.charAt(i) == '-') {
+				i++;
+				continue;
+			}
+			
+			int end = ref.indexOf('-', i);
+			if (end < 0) {
+				end = ref.length();
+			}
+			if (part++ == 2) {
+				return ref.substring(i, end);
+			}
+			i = end;
 		}
-		
-		return result;
+		return null;
 	}
 
 	private void fillCommonField(AddrRowWrapper subj, 
-			JSONObject jsonObject, String type, String osm_type, long osm_id) {
+			GazetteerRow row, String type, String osm_type, long osm_id) {
 		
-		subj.setId(jsonObject.getString("id"));
+		subj.setId(row.getId());
 		subj.setType(type);
-		subj.setFeatureId(jsonObject.getString("feature_id"));
+		subj.setFeatureId(row.getFeatureId());
 
 		subj.setOSMId(osm_id);
 		subj.setOSMType(osm_type);
@@ -1,39 +1,37 @@
 package me.osm.gazetteer.search.imp.addr;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONArray;
-import org.json.JSONObject;
+
+import me.osm.gazetteer.search.imp.addr.GazetteerRow.AddrPart;
 
 public class NamesAccessor {
 	
-	private JSONObject jsonObject;
-	private JSONObject addrObject;
+	private GazetteerRow row;
 	
 	private Collection<String> languages;
-	private JSONObject optTags;
-	private JSONObject optRefs;
+	private Map<String, String> tags;
 	private Map<String, String> refToLevel;
-	private Map<String, JSONObject> namesByLevel;
+	private Map<String, Map<String, String>> namesByLevel;
 
 	private Collection<String> fullNameTags;
 	private Collection<String> shortNameTags;
 
-	public NamesAccessor(JSONObject jsonObject, Collection<String> languages) {
-		this.jsonObject = jsonObject;
-		this.addrObject = jsonObject.optJSONObject("address");
+	public NamesAccessor(GazetteerRow row, Collection<String> languages) {
+		this.row = row;
 		this.languages = languages;
 		
-		this.optTags = jsonObject.optJSONObject("tags");
-		this.optRefs = jsonObject.optJSONObject("refs");
+		this.tags = row.getTags();
 		
 		fullNameTags = fillNameTags(Arrays.asList("name", "old_name", "alt_name"));
 		shortNameTags = fillNameTags(Arrays.asList("name"));
@@ -60,20 +58,46 @@ public class NamesAccessor {
 	}
 
 	public String getAddrFullText() {
-		return addrObject != null ? addrObject.optString("longText") : null;
-	}
-
-	public void trimNames() {
-		Map<String, JSONObject> id2name = listNamesById();
-		id2name.values().forEach(names -> {
-			HashSet<String> keys = new HashSet<>(names.keySet());
-			keys.removeAll(fullNameTags);
-			keys.forEach(k -> names.remove(k));
-		});
-		JSONObject admin0 = listNamesByLevel().get("admin0");
-		if (admin0 != null) {
-			admin0.remove("old_name");
+		return row.getAddrLongText();
+	}
+
+	/**
+	 * Raw json of the row with address parts names trimmed
+	 * to the full name tags, and without old_name for admin0.
+	 *
+	 * Original bytes are returned if there is nothing to trim.
+	 * */
+	public byte[] getTrimmedSource() throws IOException {
+		List<AddrPart> parts = row.getAddrParts();
+		if (parts == null) {
+			return row.getRaw();
+		}
+
+		Set<Integer> admin0Parts = new HashSet<>();
+		boolean trim = false;
+		for (int i = 0; i < parts.size(); i++) {
+			Map<String, String> names = parts.get(i).getNames();
+			if (names != null) {
+				boolean admin0 = "admin0".equals(refToLevel.get(parts.get(i).getLnk()));
+				if (admin0) {
+					admin0Parts.add(i);
+				}
+				for (String key : names.keySet()) {
+					trim = trim || !keepName(key, admin0);
+				}
+			}
 		}
+
+		if (!trim) {
+			return row.getRaw();
+		}
+
+		return GazetteerRowReader.copyTrimmed(row.getRaw(),
+				(part, key) -> keepName(key, admin0Parts.contains(part)));
+	}
+
+	private boolean keepName(String key, boolean admin0) {
+		return fullNameTags.contains(key) && !(admin0 && "old_name".equals(key));
 	}
 
 	public String getAdmin0() {
@@ -101,11 +125,11 @@ public class NamesAccessor {
 	}
 
 	private String getByLevel(String level, Collection<String> tags) {
-		String optName = StringUtils.stripToEmpty(jsonObject.optString(level + "_name"));
-		JSONObject byLevel = namesByLevel.get(level);
+		String optName = StringUtils.stripToEmpty(row.getLevelName(level));
+		Map<String, String> byLevel = namesByLevel.get(level);
 		if (byLevel != null) {
 			for(String tag : tags) {
-				optName += " " + StringUtils.stripToEmpty(byLevel.optString(tag));
+				optName += " " + StringUtils.stripToEmpty(byLevel.get(tag));
 			}
 		}
 		
@@ -113,24 +137,31 @@ public class NamesAccessor {
 	}
 
 	public String getName() {
-		return optTags != null ? optTags.optString("name") : null;
+		if (tags != null) {
+			String name = tags.get("name");
+			return name != null ? name : "";
+		}
+		return null;
 	}
 	
 	public String getAltNames() {
 		Map<String, String> names = getNamesMap();
+		if (names == null) {
+			return null;
+		}
+
 		names.remove("name");
 
 		return StringUtils.join(names.values(), ' ');
 	}
 	
 	private Map<String, String> getNamesMap() {
-		if (optTags != null) {
+		if (tags != null) {
 			Map<String, String> names = new HashMap<>();
 			
-			for (Iterator<String> iterator = optTags.keys(); iterator.hasNext();) {
-				String key = iterator.next();
-				if (fullNameTags.contains(key)) {
-					names.put(key, optTags.getString(key));
+			for (Entry<String, String> tag : tags.entrySet()) {
+				if (fullNameTags.contains(tag.getKey())) {
+					names.put(tag.getKey(), tag.getValue());
 				}
 			}
 			
@@ -140,20 +171,12 @@ public class NamesAccessor {
 		return null;
 	}
 	
-	@SuppressWarnings("unchecked")
 	private Map<String, String> mapRefToLevel() {
 		Map<String, String> map = new HashMap<>();
-		if (optRefs != null) {
-			optRefs.toMap().entrySet().forEach(entry -> {
-				String lvl = entry.getKey();
-				Object value = entry.getValue();
-				if (value instanceof String) {
-					map.put((String) value, lvl);
-				} 
-				if(value instanceof Collection) {
-					for(String sval : ((Collection<String>)value)) {
+		if (row.getRefs() != null) {
+			row.getRefs().forEach((lvl, values) -> {
+				for(String sval : values) {
 						map.put(sval, lvl);
-					}
 				}
 			});
 		}
@@ -161,10 +184,10 @@ public class NamesAccessor {
 		return map;
 	}
 	
-	private Map<String, JSONObject> listNamesByLevel() {
-		Map<String, JSONObject> namesByLevel = new HashMap<>();
+	private Map<String, Map<String, String>> listNamesByLevel() {
+		Map<String, Map<String, String>> namesByLevel = new HashMap<>();
 		
-		for(Entry<String, JSONObject> entry : listNamesById().entrySet()) {
+		for(Entry<String, Map<String, String>> entry : listNamesById().entrySet()) {
 			String level = refToLevel.get(entry.getKey());
 			if(level != null) {
 				namesByLevel.put(level, entry.getValue());
@@ -174,39 +197,20 @@ public class NamesAccessor {
 		return namesByLevel;
 	}
 
-	private Map<String, JSONObject> listNamesById() {
-		Map<String, JSONObject> parts = listPartsById(addrObject);
+	private Map<String, Map<String, String>> listNamesById() {
+		Map<String, Map<String, String>> map = new HashMap<>();
 		
-		Map<String, JSONObject> map = new HashMap<>();
-		if (parts != null) {
-			parts.entrySet().forEach(entry -> {
-				JSONObject names = entry.getValue().optJSONObject("names");
-				if (names != null) {
-					map.put(entry.getKey(), names);
+		if (row.getAddrParts() != null) {
+			for (AddrPart part : row.getAddrParts()) {
+				if (part.getNames() != null) {
+					map.put(part.getLnk(), part.getNames());
 				}
-			});
-			return map;
+			}
 		}
 		
 		return map;
 	}
 
-	private Map<String, JSONObject> listPartsById(JSONObject addrObject) {
-		if (addrObject != null) {
-			Map<String, JSONObject> map = new HashMap<>();
-			JSONArray parts = addrObject.optJSONArray("parts");
-			if (parts != null) {
-				parts.forEach(o -> {
-					JSONObject json = (JSONObject) o;
-					map.put(json.optString("lnk"), json); 
-				});
-				
-				return map;
-			}
-		}
-		return null;
-	}
-
 	public boolean isEmpty() {
 		return getName() == null && getAddrFullText() == null;
 	}
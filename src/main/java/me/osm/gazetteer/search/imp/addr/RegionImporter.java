@@ -0,0 +1,581 @@
+package me.osm.gazetteer.search.imp.addr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.DeleteByQueryRequestBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import me.osm.gazetteer.search.esclient.AddressesIndexHolder;
+import me.osm.gazetteer.search.esclient.BulkWriter;
+import me.osm.gazetteer.search.esclient.ESServer;
+import me.osm.gazetteer.search.esclient.IndexHolder;
+import me.osm.gazetteer.search.imp.ImportMode;
+import me.osm.gazetteer.search.imp.ImportOptions;
+import me.osm.gazetteer.search.imp.ImportSource;
+import me.osm.gazetteer.search.imp.LineReader;
+import me.osm.gazetteer.search.imp.OrderedPipeline;
+import me.osm.gazetteer.search.imp.SplitLineSource;
+import me.osm.gazetteer.search.query.IndexAnalyzer.Token;
+import me.osm.gazetteer.search.util.TimePeriodFormatter;
+import me.osm.gazetteer.search.imp.addr.AddressesImporter.ImportException;
+
+/**
+ * Imports one source into the addresses index.
+ *
+ * Each region has its own import meta, name aggregation
+ * counters, checkpoint and fingerprints, only the bulk writer
+ * is shared with the other regions.
+ * */
+public class RegionImporter {
+
+	private static final Logger log = LoggerFactory.getLogger(RegionImporter.class);
+
+	private static final int PIPELINE_QUEUE_PER_THREAD = 256;
+
+	/** Don't split files smaller than that */
+	private static final long MIN_SPLIT_SIZE = 64L * 1024 * 1024;
+
+	private static final IndexHolder indexHolder = new AddressesIndexHolder();
+
+	private final ImportOptions options;
+	private final ImportSource source;
+	// requests of this region in the shared writer
+	private final BulkWriter.Producer bulkWriter;
+	private final ImportObjectParser parser;
+	private final XContentType bulkFormat;
+	private final int threads;
+
+	private final File checkpointFile;
+	private final File fingerprintsFile;
+	private final ImportCheckpoint checkpoint;
+	private final StreetRefsCounter streetRefs = new StreetRefsCounter();
+
+	private TransportClient client = ESServer.getInstance().client();
+	private FingerprintFilter fingerprints;
+	private String index;
+
+	// import.region of the rows if the index is routed by region
+	private String routing;
+
+	private int batchSize = 1000;
+	private int total = 0;
+	private int skip = 0;
+
+	private long lines = 0;
+	private long lastCheckpoint = 0;
+
+	/** Don't describe regions with more distinct admin tokens than that */
+	private static final int MAX_ADMIN_TOKENS = 10000;
+
+	// admin0 and admin1 tokens for the region index description,
+	// null if they aren't collected
+	private Set<String> admin0Tokens;
+	private Set<String> admin1Tokens;
+
+	/**
+	 * @param checkpointFile checkpoint of this region or null
+	 * @param fingerprintsFile local fingerprints of this region or null
+	 * @param threads number of parse threads for this region
+	 * */
+	public RegionImporter(ImportOptions options, ImportSource source, BulkWriter bulkWriter,
+			File checkpointFile, File fingerprintsFile, int threads) {
+
+		this.options = options;
+		this.source = source;
+		this.bulkWriter = bulkWriter.producer(source.toString());
+		this.checkpointFile = checkpointFile;
+		this.fingerprintsFile = fingerprintsFile;
+		this.threads = threads;
+		this.parser = new ImportObjectParser(options);
+		this.bulkFormat = options.getBulkFormat();
+		this.checkpoint = loadCheckpoint();
+	}
+
+	/**
+	 * @return checkpoint this region will be resumed from or null
+	 * */
+	public ImportCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	public ImportSource getSource() {
+		return source;
+	}
+
+	/**
+	 * @param importCounter counter shared by all the regions of this import,
+	 * ignored if the region is resumed
+	 * @param index index to write rows to
+	 * @param indexCreated index was created by this import
+	 * */
+	public void run(long importCounter, String index, boolean indexCreated) throws ImportException {
+		this.index = index;
+		this.routing = indexHolder.isRouted(index) ? getRegion() : null;
+
+		if (checkpoint != null && checkpoint.isDone()) {
+			log.info("{} was imported before the interruption", source);
+			return;
+		}
+
+		log.info("Read from {}", source);
+
+		long started = new Date().getTime();
+
+		try {
+			if (checkpoint == null) {
+				deleteRegion();
+			}
+
+			ImportMeta imp = checkpoint != null ? checkpoint.getImport() : createImportMetaObject(importCounter);
+
+			fingerprints = createFingerprintFilter(imp, indexCreated);
+
+			// Tokens of the rows before the checkpoint are lost on resume
+			if (options.isIndexPerRegion() && checkpoint == null) {
+				admin0Tokens = new HashSet<>();
+				admin1Tokens = new HashSet<>();
+			}
+
+			if (checkpoint != null) {
+				restore(checkpoint);
+			}
+
+			long offset = checkpoint != null ? checkpoint.getOffset() : 0;
+
+			if (useSplits()) {
+				log.info("Read {} by {} splits", source, options.getSplits());
+				try (SplitLineSource reader = new SplitLineSource(new File(source.getPath()), offset, options.getSplits())) {
+					importLines(reader, imp, indexCreated);
+				}
+			}
+			else {
+				try (LineReader reader = getStreamReader(offset)) {
+					importLines(reader::next, imp, indexCreated);
+				}
+			}
+
+			if (fingerprints != null) {
+				fingerprints.flush();
+			}
+
+			// Other regions keep writing, so wait only for our requests
+			bulkWriter.flush();
+			bulkWriter.awaitPending();
+			log.info("{} rows imported from {}", String.format(Locale.US, "%,9d", total), source);
+
+			// Counts of the rows before the checkpoint are lost on resume
+			if (checkpoint == null) {
+				streetRefs.updatePending(bulkWriter, index, indexHolder.getType(), routing);
+				bulkWriter.flush();
+				bulkWriter.awaitPending();
+			}
+
+			if (fingerprints != null) {
+				fingerprints.commit();
+				fingerprints.logStats();
+			}
+
+			parser.logStats();
+
+			if (options.getMode() == ImportMode.update) {
+				deleteStaleRows(imp);
+			}
+
+			String duration = TimePeriodFormatter.printDuration(new Date().getTime() - started);
+			log.info("{} lines skiped", skip);
+			log.info("Import of {} done in {}", source, duration);
+
+			if (checkpoint != null) {
+				new UpdateStreetsUsage(getImportRegion(), index).run();
+			}
+
+			if (checkpointFile != null) {
+				saveCheckpoint(offset, imp, indexCreated, 0, true);
+			}
+		}
+		catch (ImportException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new ImportException("Failed to import " + source, e);
+		}
+	}
+
+	private void importLines(OrderedPipeline.Source<LineReader.Line> reader, ImportMeta imp, boolean indexCreated)
+			throws Exception {
+
+		OrderedPipeline<LineReader.Line, AddrRowWrapper> pipeline = new OrderedPipeline<>(
+				"import-" + getRegion(), threads, threads * PIPELINE_QUEUE_PER_THREAD);
+
+		pipeline.run(reader, line -> parseLine(line.getBytes()), (line, row) -> {
+			// Split readers number lines inside of their ranges
+			lines++;
+
+			if(row != null) {
+				total ++;
+
+				parser.fillNameAggIndex(row);
+				streetRefs.add(row);
+				collectAdminTokens(row);
+
+				row.setImport(imp);
+
+				// Row id is used as document id, so in update mode
+				// new version of the row overwrites the old one
+				IndexRequest request = client
+						.prepareIndex(index, indexHolder.getType(), row.getId())
+						.setRouting(routing)
+						.setSource(getSource(row))
+						.request();
+
+				submit(row, request);
+
+				if (total % batchSize == 0) {
+					log.info("{} rows imported from {}", String.format(Locale.US, "%,9d", total), source);
+				}
+			}
+			else {
+				skip++;
+			}
+
+			if (checkpointFile != null && lines - lastCheckpoint >= options.getCheckpointInterval()) {
+				checkpoint(line, imp, indexCreated);
+			}
+		});
+	}
+
+	/**
+	 * Called concurrently from the pipeline workers
+	 * */
+	private AddrRowWrapper parseLine(byte[] line) {
+		try {
+			AddrRowWrapper row = parser.parseAddress(GazetteerRowReader.read(line));
+			if (row != null) {
+				row.startXContentForIndex(bulkFormat);
+			}
+			return row;
+		}
+		catch (JSONException je) {
+			je.printStackTrace();
+			return null;
+		}
+		catch (IOException e) {
+			log.warn("Failed to parse line: {}", e.getMessage());
+			return null;
+		}
+		catch (me.osm.gazetteer.search.imp.ImportException e) {
+			throw new ImportException(e);
+		}
+	}
+
+	private boolean useSplits() {
+		return options.getSplits() > 1 && !source.isStdin() && !source.isCompressed()
+				&& new File(source.getPath()).length() >= MIN_SPLIT_SIZE;
+	}
+
+	private void deleteRegion() {
+		if (options.getMode() == ImportMode.delete && source.getRegion() != null) {
+			log.info("Drop region {}", source.getRegion());
+
+			DeleteByQueryRequestBuilder delete = DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
+				.filter(QueryBuilders.matchQuery("import.region", source.getRegion()))
+				.source(index);
+			delete.source().setRouting(routing);
+
+			BulkByScrollResponse bulkByScrollResponse = delete.get();
+
+			log.info("Deleted {}", bulkByScrollResponse.getDeleted());
+		}
+	}
+
+	private ImportCheckpoint loadCheckpoint() {
+		if (checkpointFile == null || !options.isResume()) {
+			return null;
+		}
+
+		if (source.isStdin()) {
+			throw new ImportException("Import from stdin can't be resumed", null);
+		}
+
+		if (!checkpointFile.exists()) {
+			log.info("Checkpoint {} not found, start {} from the beginning", checkpointFile, source);
+			return null;
+		}
+
+		try {
+			ImportCheckpoint loaded = ImportCheckpoint.load(checkpointFile);
+			if (!loaded.getSource().equals(source.getPath())) {
+				throw new ImportException("Checkpoint was made for " + loaded.getSource(), null);
+			}
+
+			if (!loaded.isDone()) {
+				log.info("Resume import of {} from line {}", source, loaded.getLine());
+			}
+			return loaded;
+		}
+		catch (IOException e) {
+			throw new ImportException("Can't read checkpoint " + checkpointFile, e);
+		}
+	}
+
+	private void restore(ImportCheckpoint checkpoint) throws IOException {
+		total = checkpoint.getTotal();
+		skip = checkpoint.getSkip();
+		lines = checkpoint.getLine();
+		lastCheckpoint = checkpoint.getLine();
+		parser.restoreNameAggState(checkpoint.getNameAggState());
+
+		if (fingerprints != null && fingerprints.getFile() != null) {
+			fingerprints.getFile().resume(checkpoint.getFingerprintsLength());
+		}
+	}
+
+	/**
+	 * Wait until all the rows up to the line are indexed and save the state.
+	 * Called from the pipeline sink.
+	 * */
+	private void checkpoint(LineReader.Line line, ImportMeta imp, boolean indexCreated) {
+		try {
+			long fingerprintsLength = 0;
+			if (fingerprints != null) {
+				fingerprints.flush();
+				if (fingerprints.getFile() != null) {
+					fingerprintsLength = fingerprints.getFile().checkpoint();
+				}
+			}
+
+			bulkWriter.flush();
+			bulkWriter.awaitPending();
+
+			saveCheckpoint(line.getEnd(), imp, indexCreated, fingerprintsLength, false);
+
+			lastCheckpoint = lines;
+			log.info("Checkpoint {} at line {}", source, lines);
+		}
+		catch (IOException e) {
+			throw new ImportException("Can't write checkpoint", e);
+		}
+	}
+
+	private void saveCheckpoint(long offset, ImportMeta imp, boolean indexCreated,
+			long fingerprintsLength, boolean done) throws IOException {
+
+		ImportCheckpoint state = new ImportCheckpoint();
+		state.setSource(source.getPath());
+		state.setLine(lines);
+		state.setOffset(offset);
+		state.setImport(imp);
+		state.setNameAggState(parser.getNameAggState());
+		state.setTotal(total);
+		state.setSkip(skip);
+		state.setFingerprintsLength(fingerprintsLength);
+		state.setIndexCreated(indexCreated);
+		state.setIndex(index);
+		state.setDone(done);
+		state.save(checkpointFile);
+	}
+
+	private FingerprintFilter createFingerprintFilter(ImportMeta imp, boolean indexCreated) throws IOException {
+		// Nothing to compare with in a new index
+		boolean skipUnchanged = options.isSkipUnchanged()
+				&& options.getMode() == ImportMode.update && !indexCreated;
+
+		FingerprintFile file = null;
+		if (fingerprintsFile != null) {
+			file = new FingerprintFile(fingerprintsFile.getPath());
+			if (skipUnchanged) {
+				file.load();
+			}
+		}
+
+		if (!skipUnchanged && file == null) {
+			return null;
+		}
+
+		return new FingerprintFilter(bulkWriter, index, indexHolder.getType(), routing,
+				imp, skipUnchanged, file, batchSize);
+	}
+
+	private void submit(AddrRowWrapper row, IndexRequest request) {
+		if (fingerprints == null) {
+			bulkWriter.add(request);
+			return;
+		}
+
+		try {
+			fingerprints.add(row.getId(), row.getFingerprint(), request);
+		}
+		catch (IOException e) {
+			throw new ImportException(e);
+		}
+	}
+
+	private XContentBuilder getSource(AddrRowWrapper row) {
+		try {
+			return row.getXContentForIndex();
+		}
+		catch (IOException e) {
+			throw new ImportException(e);
+		}
+	}
+
+	private String getRegion() {
+		if (source.getRegion() == null) {
+			return "NULL";
+		}
+
+		return source.getRegion().toLowerCase();
+	}
+
+	private ImportMeta createImportMetaObject(long importCounter) throws InterruptedException, ExecutionException {
+		TermQueryBuilder byReagionQF = QueryBuilders.termQuery("import.region", getRegion());
+
+		// New version is empty, counter continues the one of the published index
+		boolean published = !index.equals(indexHolder.getIndex()) && indexHolder.exists();
+		SearchRequestBuilder counters = client.prepareSearch(published ? indexHolder.getIndex() : index)
+			.setRouting(published ? null : routing)
+			.setQuery(QueryBuilders.matchAllQuery())
+			.setSize(0)
+			.addAggregation(
+					AggregationBuilders.filter("region_max", byReagionQF)
+						.subAggregation(AggregationBuilders.max("value").field("import.region_counter")));
+
+		SearchResponse countersResponse = counters.execute().get();
+
+		JSONObject regionMaxAggregation = new JSONObject(countersResponse.getAggregations().get("region_max").toString());
+		long regionImportCounter = regionMaxAggregation.getJSONObject("region_max").getJSONObject("value").optLong("value", 0);
+
+		return new ImportMeta(getRegion(), regionImportCounter + 1, importCounter);
+	}
+
+	private LineReader getStreamReader(long offset) throws IOException {
+		if (offset == 0) {
+			return new LineReader(source.open());
+		}
+
+		InputStream is;
+		if (source.isCompressed()) {
+			// Still have to decompress, but not to parse the skipped part
+			is = source.open();
+			skipFully(is, offset);
+		}
+		else {
+			FileInputStream fis = new FileInputStream(source.getPath());
+			fis.getChannel().position(offset);
+			is = fis;
+		}
+
+		return new LineReader(is, lines, offset);
+	}
+
+	private static void skipFully(InputStream is, long n) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long left = n;
+		while (left > 0) {
+			int read = is.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (read < 0) {
+				throw new IOException("Input is shorter than the checkpoint offset");
+			}
+			left -= read;
+		}
+	}
+
+	/**
+	 * In update mode, rows which weren't overwritten by this import
+	 * still have previous region_counter and are deleted
+	 * */
+	private void deleteStaleRows(ImportMeta imp) {
+		// Make overwritten rows visible, otherwise delete by query
+		// will see their old versions
+		client.admin().indices().prepareRefresh(index).get();
+
+		BoolQueryBuilder filter = QueryBuilders.boolQuery();
+		filter.must(QueryBuilders.termQuery("import.region", getRegion()));
+		filter.must(QueryBuilders.rangeQuery("import.region_counter").lt(imp.getRegionCounter()));
+
+		DeleteByQueryRequestBuilder delete = DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
+			.source(index)
+			.filter(filter)
+			.abortOnVersionConflict(false);
+		delete.source().setRouting(routing);
+
+		BulkByScrollResponse response = delete.get();
+
+		log.info("{} stale rows deleted for {}", response.getDeleted(), source);
+	}
+
+	private void collectAdminTokens(AddrRowWrapper row) {
+		if (admin0Tokens == null) {
+			return;
+		}
+
+		addTokens(admin0Tokens, row.getAdmin0());
+		addTokens(admin1Tokens, row.getAdmin1());
+
+		if (admin0Tokens.size() > MAX_ADMIN_TOKENS || admin1Tokens.size() > MAX_ADMIN_TOKENS) {
+			log.warn("Too many admin names in {}, it won't be selected by them", source);
+			admin0Tokens = null;
+			admin1Tokens = null;
+		}
+	}
+
+	private static void addTokens(Set<String> set, List<Token> tokens) {
+		if (tokens != null) {
+			for (Token t : tokens) {
+				if (!t.optional) {
+					set.add(t.token);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return admin0 tokens of the imported rows or null if they weren't collected
+	 * */
+	public Set<String> getAdmin0Tokens() {
+		return admin0Tokens;
+	}
+
+	/**
+	 * @return admin1 tokens of the imported rows or null if they weren't collected
+	 * */
+	public Set<String> getAdmin1Tokens() {
+		return admin1Tokens;
+	}
+
+	/**
+	 * @return import.region of the rows or null if the source has no region
+	 * */
+	public String getImportRegion() {
+		return source.getRegion() == null ? null : getRegion();
+	}
+
+	public int rowsTotal() {
+		return total;
+	}
+
+}
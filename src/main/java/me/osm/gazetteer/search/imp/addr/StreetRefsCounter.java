@@ -0,0 +1,217 @@
+package me.osm.gazetteer.search.imp.addr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import com.carrotsearch.hppc.cursors.LongCursor;
+
+import me.osm.gazetteer.search.esclient.BulkWriter;
+import me.osm.gazetteer.search.esclient.ESServer;
+
+/**
+ * Counts addresses referencing the streets while the rows are imported,
+ * instead of a count query per street after the import.
+ *
+ * ref_count of a hghnet row is the number of adrpnt rows with
+ * any of its hghway segments in refs.street. Segments are kept
+ * as id hashes with the number of addresses referencing them.
+ * Addresses referencing several segments are remembered, so an
+ * address with several segments of one street is counted once.
+ *
+ * Streets indexed before some of their addresses are remembered
+ * and updated by {@link #updatePending(BulkWriter.Producer, String, String, String)},
+ * other streets are indexed with the final ref_count.
+ *
+ * Should be called for the rows in input order, not thread safe.
+ * */
+public class StreetRefsCounter {
+
+	private static final Logger log = LoggerFactory.getLogger(StreetRefsCounter.class);
+
+	private static final String HGHWAY_PREFIX = "hghway";
+
+	// hghway id hash -> number of addresses
+	private final LongIntHashMap counts = new LongIntHashMap();
+
+	// segments of the indexed streets
+	private final LongHashSet watched = new LongHashSet();
+
+	// segments referenced after their street was indexed
+	private final LongHashSet late = new LongHashSet();
+
+	private final List<String> streetIds = new ArrayList<>();
+	private final List<long[]> streetSegments = new ArrayList<>();
+
+	// segment -> addresses referencing more than one segment
+	private final LongObjectHashMap<IntArrayList> multiSegment = new LongObjectHashMap<>();
+	private int multiSegmentAddresses = 0;
+
+	private final LongHashSet rowSegments = new LongHashSet();
+
+	/**
+	 * Count adrpnt references or set ref_count for hghnet row.
+	 * Should be called before the row is indexed.
+	 * */
+	public void add(AddrRowWrapper row) {
+		String type = row.getType();
+		if ("adrpnt".equals(type)) {
+			countAddress(row);
+		}
+		else if ("hghnet".equals(type)) {
+			countStreet(row);
+		}
+	}
+
+	private void countAddress(AddrRowWrapper row) {
+		List<String> refs = getStreetRefs(row);
+		if (refs == null) {
+			return;
+		}
+
+		rowSegments.clear();
+		for (String ref : refs) {
+			if (ref.startsWith(HGHWAY_PREFIX)) {
+				long segment = hash(ref);
+				// same ref twice is still one address
+				if (rowSegments.add(segment)) {
+					counts.addTo(segment, 1);
+					if (watched.contains(segment)) {
+						late.add(segment);
+					}
+				}
+			}
+		}
+
+		if (rowSegments.size() > 1) {
+			int address = multiSegmentAddresses++;
+			for (LongCursor c : rowSegments) {
+				IntArrayList addresses = multiSegment.get(c.value);
+				if (addresses == null) {
+					addresses = new IntArrayList(2);
+					multiSegment.put(c.value, addresses);
+				}
+				addresses.add(address);
+			}
+		}
+	}
+
+	private void countStreet(AddrRowWrapper row) {
+		List<String> refs = getStreetRefs(row);
+		if (refs == null) {
+			return;
+		}
+
+		LongHashSet distinct = new LongHashSet(refs.size());
+		LongArrayList segments = new LongArrayList(refs.size());
+		for (String ref : refs) {
+			if (ref.startsWith(HGHWAY_PREFIX)) {
+				long segment = hash(ref);
+				if (distinct.add(segment)) {
+					segments.add(segment);
+				}
+			}
+		}
+
+		long[] streetSegments = segments.toArray();
+		row.setRefCount(count(streetSegments));
+
+		// Addresses of this street might be further in the input
+		streetIds.add(row.getId());
+		this.streetSegments.add(streetSegments);
+		for (long segment : streetSegments) {
+			watched.add(segment);
+		}
+	}
+
+	/**
+	 * @param segments distinct segments of a street
+	 * @return number of addresses referencing any of the segments
+	 * */
+	private int count(long[] segments) {
+		int count = 0;
+		IntIntHashMap multi = null;
+		for (long segment : segments) {
+			count += counts.get(segment);
+
+			IntArrayList addresses = multiSegment.get(segment);
+			if (addresses != null) {
+				if (multi == null) {
+					multi = new IntIntHashMap();
+				}
+				for (int i = 0; i < addresses.size(); i++) {
+					multi.addTo(addresses.get(i), 1);
+				}
+			}
+		}
+
+		// Address was counted once for every segment of this street
+		if (multi != null) {
+			for (IntIntCursor c : multi) {
+				count -= c.value - 1;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Update ref_count of the streets which got more addresses
+	 * after they were indexed.
+	 *
+	 * @param routing routing of the rows or null
+	 * @return number of updated streets
+	 * */
+	public int updatePending(BulkWriter.Producer bulkWriter, String index, String type, String routing) {
+		int updated = 0;
+		for (int i = 0; i < streetIds.size() && !late.isEmpty(); i++) {
+			long[] segments = streetSegments.get(i);
+			boolean changed = false;
+			for (long segment : segments) {
+				changed = changed || late.contains(segment);
+			}
+			if (!changed) {
+				continue;
+			}
+
+			int count = count(segments);
+
+			Map<String, Object> doc = new HashMap<>();
+			doc.put("ref_count", (long) count);
+			bulkWriter.add(ESServer.getInstance().client()
+					.prepareUpdate(index, type, streetIds.get(i))
+					.setRouting(routing)
+					.setDoc(doc).request());
+			updated++;
+		}
+
+		log.info("{} street segments counted, {} of {} streets updated after the import",
+				counts.size(), updated, streetIds.size());
+
+		return updated;
+	}
+
+	private static List<String> getStreetRefs(AddrRowWrapper row) {
+		Map<String, List<String>> refs = row.getRefs();
+		return refs == null ? null : refs.get("street");
+	}
+
+	private static long hash(String id) {
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		return MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+	}
+
+}
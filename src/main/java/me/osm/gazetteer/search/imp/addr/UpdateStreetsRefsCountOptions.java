@@ -1,11 +1,18 @@
 package me.osm.gazetteer.search.imp.addr;
 
+import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 
 @Parameters(commandDescription="Update ref count for streets")
 public class UpdateStreetsRefsCountOptions {
 	
 	private String region;
+	
+	@Parameter(names={"--slices"}, description="Number of slices of streets read concurrently")
+	private int slices = 1;
+	
+	@Parameter(names={"--threads"}, description="Number of threads counting references")
+	private int threads = 1;
 
 	public String getRegion() {
 		return region;
@@ -14,5 +21,13 @@ public class UpdateStreetsRefsCountOptions {
 	public void setRegion(String region) {
 		this.region = region;
 	}
+
+	public int getSlices() {
+		return slices;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
 	
 }
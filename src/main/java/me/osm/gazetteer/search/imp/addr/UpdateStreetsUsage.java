@@ -5,10 +5,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.search.MultiSearchRequestBuilder;
 import org.elasticsearch.action.search.MultiSearchResponse.Item;
 import org.elasticsearch.action.search.SearchResponse;
@@ -20,6 +20,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import me.osm.gazetteer.search.backendquery.es.builders.BooleanPart;
+import me.osm.gazetteer.search.esclient.AddressesIndexHolder;
+import me.osm.gazetteer.search.esclient.BulkWriter;
 import me.osm.gazetteer.search.esclient.ESServer;
 import me.osm.gazetteer.search.esclient.IndexHolder;
 import me.osm.gazetteer.search.imp.PagedScroll;
@@ -31,23 +33,41 @@ public class UpdateStreetsUsage {
 	private static final int pageSize = 1000;
 	
 	private TransportClient client = ESServer.getInstance().client();
-	private long counter;
+	private final AtomicLong counter = new AtomicLong();
 
 	private String region;
+	private String index = IndexHolder.ADDRESSES_INDEX;
+	
+	private int slices = 1;
+	private int threads = 1;
 	
 	public UpdateStreetsUsage(String region) {
 		this.region = region;
 	}
+	
+	/**
+	 * @param index index or alias with the streets and addresses
+	 * */
+	public UpdateStreetsUsage(String region, String index) {
+		this(region);
+		this.index = index;
+	}
+	
+	public UpdateStreetsUsage(UpdateStreetsRefsCountOptions options) {
+		this(options.getRegion());
+		this.slices = options.getSlices();
+		this.threads = options.getThreads();
+	}
 
 	public static void main(String[] args) {
-		new UpdateStreetsUsage(null).run();
+		new UpdateStreetsUsage((String) null).run();
 	}
 
 	@SuppressWarnings("unchecked")
 	public void run() {
 		
 		long start = new Date().getTime();
-		counter = 0;
+		counter.set(0);
 		
 		log.info("Update number of streets references for {}", region);
 		
@@ -55,12 +75,21 @@ public class UpdateStreetsUsage {
 				new String[] {"id", "refs", "locality", "street"});
 		
 		pageScroll.setRegion(region);
+		pageScroll.setIndex(index);
+		
+		// Addresses of the streets are in the same region
+		String routing = region != null && new AddressesIndexHolder().isRouted(index) 
+				? AddressesIndexHolder.getRouting(region) : null;
+		pageScroll.setRouting(routing);
+		pageScroll.setSlices(slices);
+		pageScroll.setThreads(threads);
+		
+		BulkWriter bulkWriter = new BulkWriter("streets-refs");
 		
 		pageScroll.scroll(higwaysResponse -> {
 			
-			long totalHighways = higwaysResponse.getHits().getTotalHits();
+			long totalHighways = pageScroll.getTotalHits();
 			
-			BulkRequestBuilder bulk = client.prepareBulk();
 			MultiSearchRequestBuilder multySearch = client.prepareMultiSearch();
 
 			for(SearchHit hit : higwaysResponse.getHits()) {
@@ -73,8 +102,9 @@ public class UpdateStreetsUsage {
 					subQ.addMust(new JSONObject().put("term", new JSONObject().put("type", "adrpnt")));
 					subQ.addMust(new JSONObject().put("terms", new JSONObject().put("refs.street", hghways)));
 					
-					multySearch.add(client.prepareSearch(IndexHolder.ADDRESSES_INDEX)
+					multySearch.add(client.prepareSearch(index)
 							.setTypes(IndexHolder.ADDR_ROW_TYPE)
+							.setRouting(routing)
 							.setSize(0)
 							.setQuery(QueryBuilders.wrapperQuery(subQ.getPart().toString())));
 					
@@ -101,20 +131,18 @@ public class UpdateStreetsUsage {
 				
 				doc.put("street_has_loc", isStreetContainsLocation(streetTokens, localityTokens));
 				
-				bulk.add(client.prepareUpdate(
-						IndexHolder.ADDRESSES_INDEX, 
+				// Index of the hit, alias might point to several region indices
+				bulkWriter.add(client.prepareUpdate(
+						hit.getIndex(), 
 						IndexHolder.ADDR_ROW_TYPE, 
-						hit.getId()).setDoc(doc));
+						hit.getId()).setRouting(PagedScroll.getRouting(hit)).setDoc(doc).request());
 				
-				counter++;
 			}
 			
-			bulk.get();
-			bulk = client.prepareBulk();
-			
+			long done = counter.addAndGet(higwaysResponse.getHits().getHits().length);
 			long time = new Date().getTime() - start;
-			double perLine = time / (double)counter;
-			long eta = new Double((totalHighways - counter) * perLine).longValue();
+			double perLine = time / (double)done;
+			long eta = new Double((totalHighways - done) * perLine).longValue();
 			
 			String etaString = "N/A";
 			try {
@@ -124,9 +152,11 @@ public class UpdateStreetsUsage {
 				// Probabbly too long
 			}
 			
-			log.info(String.format("Lines %d of %d, %.3f ms per line, ETA %s", counter, totalHighways, perLine, etaString));
+			log.info(String.format("Lines %d of %d, %.3f ms per line, ETA %s", done, totalHighways, perLine, etaString));
 		});
 		
+		bulkWriter.close();
+		
 		log.info("Done street references count update for {} in ", 
 				region, TimePeriodFormatter.printDuration(new Date().getTime() - start));
 	}
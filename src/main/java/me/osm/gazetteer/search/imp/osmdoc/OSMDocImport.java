@@ -5,15 +5,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import me.osm.gazetteer.search.esclient.BulkWriter;
 import me.osm.gazetteer.search.esclient.ESServer;
 import me.osm.gazetteer.search.esclient.IndexHolder;
 import me.osm.gazetteer.search.esclient.POIClassIndexHolder;
@@ -24,7 +23,6 @@ import me.osm.osmdoc.read.OSMDocFacade;
 public class OSMDocImport {
 	
 	private static TransportClient client = ESServer.getInstance().client();
-	private static BulkRequestBuilder bulk = client.prepareBulk();
 	
 	private static final IndexHolder indexHolder = new POIClassIndexHolder();
 	private final OSMDocFacade facade;
@@ -44,6 +42,8 @@ public class OSMDocImport {
 		
 		List<JSONObject> features = facade.listTranslatedFeatures(null);
 		
+		BulkWriter bulkWriter = new BulkWriter("osmdoc");
+		
 		for (JSONObject obj : features) {
 			String name = obj.getString("name");
 			Feature feature = facade.getFeature(name);
@@ -61,20 +61,15 @@ public class OSMDocImport {
 			facade.collectKeywords(Collections.singleton(feature), null, kwds, null);
 			obj.put("keywords", new JSONArray(kwds));
 			
-			IndexRequestBuilder index = client
+			IndexRequest index = client
 					.prepareIndex(indexHolder.getIndex(), indexHolder.getType())
-					.setSource(obj.toString(), XContentType.JSON);
+					.setSource(obj.toString(), XContentType.JSON)
+					.request();
 			
-			bulk.add(index);
+			bulkWriter.add(index);
 		}
 		
-		try {
-			bulk.execute().get();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		} catch (ExecutionException e) {
-			e.printStackTrace();
-		}
+		bulkWriter.close();
 	}
 	
 	public static void main(String[] args) {
@@ -1,15 +1,17 @@
 package me.osm.gazetteer.search.imp.poi;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.time.DurationFormatUtils;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.search.SearchHit;
 import org.json.JSONArray;
@@ -17,10 +19,12 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import me.osm.gazetteer.search.esclient.BulkWriter;
 import me.osm.gazetteer.search.esclient.ESServer;
 import me.osm.gazetteer.search.esclient.IndexHolder;
 import me.osm.gazetteer.search.imp.PagedScroll;
 import me.osm.gazetteer.search.imp.osmdoc.OSMDoc;
+import me.osm.gazetteer.search.util.MemoCache;
 import me.osm.osmdoc.localization.L10n;
 import me.osm.osmdoc.model.v2.Feature;
 import me.osm.osmdoc.model.v2.Tag.Val;
@@ -30,19 +34,57 @@ public class UpdatePOITagsAndClasses {
 	
 	private static final Logger log = LoggerFactory.getLogger(UpdatePOITagsAndClasses.class); 
 	
+	public static final int DEFAULT_CLASSES_CACHE_SIZE = 10000;
+	
+	/**
+	 * Parts of PoiInfo which depend only on the poi classes
+	 * */
+	private static final class ClassesInfo {
+		private final List<Feature> features;
+		private final List<String> translated;
+		private final Set<String> keywords;
+		
+		private ClassesInfo(List<Feature> features, List<String> translated, Set<String> keywords) {
+			this.features = Collections.unmodifiableList(features);
+			this.translated = Collections.unmodifiableList(translated);
+			this.keywords = Collections.unmodifiableSet(keywords);
+		}
+	}
+	
 	private TransportClient client = ESServer.getInstance().client();
 	private OSMDoc osmDoc;
-	private long counter;
+	private final AtomicLong counter = new AtomicLong();
+	
+	private int threads = Runtime.getRuntime().availableProcessors();
+	
+	// poi_class list -> features, translated titles and keywords 
+	private final MemoCache<List<String>, ClassesInfo> classesCache = 
+			new MemoCache<>("POI classes", DEFAULT_CLASSES_CACHE_SIZE);
 
 	public UpdatePOITagsAndClasses (OSMDoc osmDoc) {
 		this.osmDoc = osmDoc;
 	}
 	
+	/**
+	 * Number of threads parsing tags in {@link #run()}
+	 * */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public MemoCache<?, ?> getClassesCache() {
+		return classesCache;
+	}
+	
 	public void run() {
 		long start = new Date().getTime();
-		new PagedScroll(10000, "poipnt", new String[] {"json.tags", "poi_class"}).scroll(page -> {
-			
-			BulkRequestBuilder bulk = client.prepareBulk();
+		counter.set(0);
+		BulkWriter bulkWriter = new BulkWriter("poi-tags");
+		
+		PagedScroll scroll = new PagedScroll(10000, "poipnt", new String[] {"json.tags", "poi_class"});
+		scroll.setThreads(threads);
+		
+		scroll.scroll(page -> {
 			
 			for (SearchHit hit : page.getHits()) {
 				JSONObject jsonObject = new JSONObject(hit.getSourceAsMap()); 
@@ -52,24 +94,24 @@ public class UpdatePOITagsAndClasses {
 					fillPoiPoint(jsonObject);
 					jsonObject.remove("json");
 					
-					bulk.add(client.prepareUpdate(
-							IndexHolder.ADDRESSES_INDEX, 
+					// Index of the hit, alias might point to several region indices
+					bulkWriter.add(client.prepareUpdate(
+							hit.getIndex(), 
 							IndexHolder.ADDR_ROW_TYPE, 
-							hit.getId()).setDoc(jsonObject.toMap()));
+							hit.getId()).setRouting(PagedScroll.getRouting(hit)).setDoc(jsonObject.toMap()).request());
 				}
-
-				counter++;
-			}
-			
-			if (bulk.numberOfActions() > 0) {
-				bulk.get();
 			}
 			
-			double perRow = (new Date().getTime() - start) / (double) counter;
-			long eta = (long) ((page.getHits().getTotalHits() - counter) * perRow);
-			log.info("Done {} of {}. ETA: {}", counter, page.getHits().getTotalHits(), 
+			long done = counter.addAndGet(page.getHits().getHits().length);
+			double perRow = (new Date().getTime() - start) / (double) done;
+			long eta = (long) ((scroll.getTotalHits() - done) * perRow);
+			log.info("Done {} of {}. ETA: {}", done, scroll.getTotalHits(), 
 					DurationFormatUtils.formatDurationHMS(eta));
 		});
+		
+		bulkWriter.close();
+		
+		log.info("{}", classesCache);
 	}
 	
 	private void fillPoiPoint(JSONObject jsonObject) {
@@ -83,24 +125,44 @@ public class UpdatePOITagsAndClasses {
 	}
 	
 	public PoiInfo getInfo(JSONObject jsonObject) {
+		return getInfo(readPoiClasses(jsonObject), getTagsJSON(jsonObject));
+	}
+	
+	/**
+	 * Thread safe, called concurrently by the import workers
+	 * */
+	public PoiInfo getInfo(List<String> poiClasses, JSONObject tags) {
 		PoiInfo inf = new PoiInfo();
 		
-		inf.setTranslatedPoiClasses(getPoiTypesTranslated(jsonObject));
+		ClassesInfo classes = classesCache.get(poiClasses, this::getClassesInfo);
+		
+		inf.setTranslatedPoiClasses(new ArrayList<>(classes.translated));
 		
-		List<Feature> poiClassess = listPoiClassesOSMDoc(jsonObject);
 		Map<String, List<Val>> moreTagsVals = new HashMap<String, List<Val>>();
-		JSONObject moreTags = osmDoc.getFacade().parseMoreTags(poiClassess, getTagsJSON(jsonObject), 
+		JSONObject moreTags = osmDoc.getFacade().parseMoreTags(classes.features, tags, 
 				new LogTagsStatisticCollector(), moreTagsVals, true);
 		
 		inf.setMoreTags(moreTags);
 		
-		LinkedHashSet<String> keywords = new LinkedHashSet<String>();
-		osmDoc.getFacade().collectKeywords(poiClassess, moreTagsVals, keywords, null);
+		// Keywords of the classes go first, then keywords of the tags values 
+		LinkedHashSet<String> keywords = new LinkedHashSet<String>(classes.keywords);
+		if (!moreTagsVals.isEmpty()) {
+			osmDoc.getFacade().collectKeywords(Collections.<Feature>emptyList(), moreTagsVals, keywords, null);
+		}
 		
 		inf.setKeywords(keywords);
 		
 		return inf;
 	}
+	
+	private ClassesInfo getClassesInfo(List<String> poiClasses) {
+		List<Feature> features = listPoiClassesOSMDoc(poiClasses);
+		
+		LinkedHashSet<String> keywords = new LinkedHashSet<String>();
+		osmDoc.getFacade().collectKeywords(features, Collections.<String, List<Val>>emptyMap(), keywords, null);
+		
+		return new ClassesInfo(features, getPoiTypesTranslated(features), keywords);
+	}
 
 	private JSONObject getTagsJSON(JSONObject jsonObject) {
 		JSONObject tags = jsonObject.optJSONObject("tags");
@@ -111,11 +173,19 @@ public class UpdatePOITagsAndClasses {
 		return jsonObject.getJSONObject("json").getJSONObject("tags");
 	}
 	
-	private List<String> getPoiTypesTranslated(JSONObject obj) {
+	private List<String> readPoiClasses(JSONObject obj) {
+		JSONArray poiClasses = obj.optJSONArray("poi_class");
 		
-		List<String> result = new ArrayList<String>(1);
+		List<String> result = new ArrayList<String>(poiClasses.length());
+		for(int i = 0; i < poiClasses.length(); i++) {
+			result.add(poiClasses.getString(i));
+		}
+		return result;
+	}
+	
+	private List<String> getPoiTypesTranslated(List<Feature> classes) {
 		
-		List<Feature> classes = listPoiClassesOSMDoc(obj);
+		List<String> result = new ArrayList<String>(1);
 		
 		for(Feature f : classes) {
 			// This L10n.supported is complete mess
@@ -129,12 +199,9 @@ public class UpdatePOITagsAndClasses {
 		return result;
 	}
 
-	private List<Feature> listPoiClassesOSMDoc(JSONObject obj) {
-		JSONArray poiClasses = obj.optJSONArray("poi_class");
-		
+	private List<Feature> listPoiClassesOSMDoc(List<String> poiClasses) {
 		List<Feature> classes = new ArrayList<Feature>();
-		for(int i = 0; i < poiClasses.length(); i++) {
-			String classCode = poiClasses.getString(i);
+		for(String classCode : poiClasses) {
 			Feature poiClass = osmDoc.getFacade().getFeature(classCode);
 			if(poiClass != null) {
 				classes.add(poiClass);
@@ -147,7 +214,11 @@ public class UpdatePOITagsAndClasses {
 	}
 	
 	public static void main(String[] args) {
-		new UpdatePOITagsAndClasses(OSMDoc.get(args[0])).run();
+		UpdatePOITagsAndClasses update = new UpdatePOITagsAndClasses(OSMDoc.get(args[0]));
+		if (args.length > 1) {
+			update.setThreads(Integer.parseInt(args[1]));
+		}
+		update.run();
 	}
 
 }
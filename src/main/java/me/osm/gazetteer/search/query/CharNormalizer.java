@@ -0,0 +1,124 @@
+package me.osm.gazetteer.search.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Lower case and char level replaces (ё->е, ß->ss) in one pass.
+ *
+ * Gives the same result as String.toLowerCase() followed by
+ * StringUtils.replace for every replace in order. Replaces of later
+ * rules are applied to the values of the earlier ones in advance.
+ *
+ * Strings with chars which String.toLowerCase() handles
+ * depending on context or locale, and replaces with keys longer
+ * than one char are normalized the old way.
+ *
+ * Returns the same instance if nothing was changed.
+ * Immutable, thread safe.
+ * */
+public final class CharNormalizer {
+
+	private final List<String[]> replaces;
+
+	// sorted keys and values, null if replaces can't be done char by char
+	private final char[] keys;
+	private final String[] values;
+
+	public CharNormalizer(List<String[]> replaces) {
+		this.replaces = new ArrayList<>(replaces);
+
+		List<String[]> single = new ArrayList<>();
+		for (int i = 0; i < replaces.size(); i++) {
+			String key = replaces.get(i)[0];
+			String value = replaces.get(i)[1];
+			if (value == null) {
+				// StringUtils.replace does nothing
+				continue;
+			}
+			if (key == null || key.length() != 1 || Character.isSurrogate(key.charAt(0))) {
+				single = null;
+				break;
+			}
+
+			for (int k = i + 1; k < replaces.size(); k++) {
+				value = StringUtils.replace(value, replaces.get(k)[0], replaces.get(k)[1]);
+			}
+
+			// first rule with the same key replaces all the chars
+			boolean duplicate = false;
+			for (String[] s : single) {
+				duplicate = duplicate || s[0].equals(key);
+			}
+			if (!duplicate) {
+				single.add(new String[]{key, value});
+			}
+		}
+
+		if (single == null) {
+			keys = null;
+			values = null;
+		}
+		else {
+			single.sort((a, b) -> a[0].compareTo(b[0]));
+			keys = new char[single.size()];
+			values = new String[single.size()];
+			for (int i = 0; i < single.size(); i++) {
+				keys[i] = single.get(i)[0].charAt(0);
+				values[i] = single.get(i)[1];
+			}
+		}
+	}
+
+	public String normalize(String s) {
+		if (keys == null || localeSpecificLowerCase()) {
+			return replaceAll(s.toLowerCase());
+		}
+
+		StringBuilder sb = null;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			// İ, final sigma and surrogate pairs
+			if (c == '\u0130' || c == '\u03A3' || Character.isSurrogate(c)) {
+				return replaceAll(s.toLowerCase());
+			}
+
+			char l = Character.toLowerCase(c);
+			int k = keys.length == 0 ? -1 : Arrays.binarySearch(keys, l);
+			if (k >= 0 || l != c) {
+				if (sb == null) {
+					sb = new StringBuilder(s.length() + 8);
+					sb.append(s, 0, i);
+				}
+				if (k >= 0) {
+					sb.append(values[k]);
+				}
+				else {
+					sb.append(l);
+				}
+			}
+			else if (sb != null) {
+				sb.append(c);
+			}
+		}
+
+		return sb == null ? s : sb.toString();
+	}
+
+	private String replaceAll(String s) {
+		for (String[] r : replaces) {
+			s = StringUtils.replace(s, r[0], r[1]);
+		}
+		return s;
+	}
+
+	private static boolean localeSpecificLowerCase() {
+		String lang = Locale.getDefault().getLanguage();
+		return "tr".equals(lang) || "az".equals(lang) || "lt".equals(lang);
+	}
+
+}
@@ -0,0 +1,20 @@
+package me.osm.gazetteer.search.query;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+
+@Parameters(commandDescription="Compile analyzers config into a bundle loaded at startup")
+public class CompileConfigOptions {
+	
+	@Parameter(names= {"--out", "-o"}, description="Bundle file path")
+	private String out = ConfigBundle.DEFAULT_PATH;
+
+	public String getOut() {
+		return out;
+	}
+
+	public void setOut(String out) {
+		this.out = out;
+	}
+	
+}
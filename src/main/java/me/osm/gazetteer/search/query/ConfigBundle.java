@@ -0,0 +1,605 @@
+package me.osm.gazetteer.search.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Query and index analysis configuration: char replaces, replacer rules
+ * with resolved includes, synonims, stop and optional terms.
+ *
+ * Could be read from the config sources or from a binary bundle
+ * written by compile-config command. Bundle is used only if it has the
+ * same format version and was compiled from the same sources.
+ *
+ * Bundle also keeps compiled ReplacersFactory.groovy classes,
+ * so Groovy compiler isn't run at startup.
+ *
+ * Sources are compared by paths, sizes and modification times,
+ * contents are hashed only if they don't match.
+ * */
+public class ConfigBundle {
+
+	private static final Logger log = LoggerFactory.getLogger(ConfigBundle.class);
+
+	public static final String DEFAULT_PATH = "config/compiled.bundle";
+
+	/** Property to load the bundle from another location */
+	public static final String PATH_PROPERTY = "gazetteer.config.bundle";
+
+	private static final long MAGIC = 0x47534346474255L;
+	private static final int VERSION = 2;
+
+	private static final String QUERY_ANALYZER_CFG = "config/QueryAnalizer.json";
+
+	private static final String[] SOURCES = {
+		QUERY_ANALYZER_CFG,
+		"config/replacers",
+		"config/synonims",
+		"config/stop-terms",
+		"config/optional-terms"
+	};
+
+	/**
+	 * Replacers files used by the analyzers
+	 * */
+	public static final String[] RULE_FILES = {
+		"config/replacers/index/hnIndexReplasers",
+		"config/replacers/index/streetsReplacers",
+		"config/replacers/index/localityReplacers",
+		"config/replacers/search/requiredSearchReplacers",
+		"config/replacers/search/hnSearchReplacers"
+	};
+
+	private static volatile ConfigBundle instance;
+
+	private String checksum;
+	private String sourcesKey;
+
+	private String tokenSeparators;
+	private String removeChars;
+	private List<String[]> charReplaces = new ArrayList<>();
+
+	private Map<String, List<String[]>> rules = new LinkedHashMap<>();
+	private Map<String, String> synonims = new HashMap<>();
+
+	private List<String> stopPatterns = new ArrayList<>();
+	private List<String> optionalTerms = new ArrayList<>();
+	private List<String> optionalPatterns = new ArrayList<>();
+
+	private Map<String, byte[]> factoryClasses = new LinkedHashMap<>();
+
+	/**
+	 * @return bundle if it's up to date, otherwise config read from the sources
+	 * */
+	public static ConfigBundle get() {
+		if (instance == null) {
+			synchronized (ConfigBundle.class) {
+				if (instance == null) {
+					instance = load(new File(System.getProperty(PATH_PROPERTY, DEFAULT_PATH)));
+				}
+			}
+		}
+		return instance;
+	}
+
+	private static ConfigBundle load(File file) {
+		if (file.exists()) {
+			long start = System.currentTimeMillis();
+			try {
+				ConfigBundle bundle = read(file);
+				String key = sourcesKey();
+				if (key == null || key.equals(bundle.sourcesKey)) {
+					log.info("Config loaded from {} in {} ms", file, System.currentTimeMillis() - start);
+					return bundle;
+				}
+
+				// Sources were touched, but might be the same
+				if (bundle.checksum != null && bundle.checksum.equals(sourcesChecksum())) {
+					log.info("Config loaded from {} in {} ms, sources modification times differ, "
+							+ "recompile the bundle to skip the check", file, System.currentTimeMillis() - start);
+					return bundle;
+				}
+				log.warn("Config bundle {} is stale, read config sources", file);
+			}
+			catch (IOException | RuntimeException e) {
+				log.warn("Can't read config bundle {}: {}, read config sources", file, e.toString());
+			}
+		}
+
+		return fromSources();
+	}
+
+	/**
+	 * Read and resolve config sources
+	 * */
+	public static ConfigBundle fromSources() {
+		ConfigBundle bundle = new ConfigBundle();
+		bundle.checksum = sourcesChecksum();
+		bundle.sourcesKey = sourcesKey();
+
+		bundle.readQueryAnalyzerCfg();
+		bundle.readOptionals();
+		bundle.readStopWords();
+		bundle.readSynonims();
+
+		for (String path : RULE_FILES) {
+			bundle.rules.put(path, readRules(new File(path)));
+		}
+
+		return bundle;
+	}
+
+	private static List<String[]> readRules(File src) {
+		List<String[]> result = new ArrayList<>();
+		ReplacersCompiler.readRules(result, src);
+		return result;
+	}
+
+	/**
+	 * @return pattern, template pairs
+	 * */
+	public List<String[]> getRules(File src) {
+		List<String[]> result = rules.get(src.getPath());
+		if (result == null) {
+			return readRules(src);
+		}
+		return result;
+	}
+
+	public String getTokenSeparators() {
+		return tokenSeparators;
+	}
+
+	public String getRemoveChars() {
+		return removeChars;
+	}
+
+	public List<String[]> getCharReplaces() {
+		return charReplaces;
+	}
+
+	public Map<String, String> getSynonims() {
+		return synonims;
+	}
+
+	/**
+	 * @return stop terms regexps, without ~ prefix
+	 * */
+	public List<String> getStopPatterns() {
+		return stopPatterns;
+	}
+
+	/**
+	 * @return lower cased literal optional terms
+	 * */
+	public List<String> getOptionalTerms() {
+		return optionalTerms;
+	}
+
+	/**
+	 * @return optional terms regexps, without ~ prefix
+	 * */
+	public List<String> getOptionalPatterns() {
+		return optionalPatterns;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return compiled ReplacersFactory.groovy classes by name,
+	 * empty if the factory should be compiled from the source
+	 * */
+	public Map<String, byte[]> getFactoryClasses() {
+		return factoryClasses;
+	}
+
+	public void setFactoryClasses(Map<String, byte[]> factoryClasses) {
+		this.factoryClasses = new LinkedHashMap<>(factoryClasses);
+	}
+
+	private void readQueryAnalyzerCfg() {
+		try {
+			File cfgFile = new File(QUERY_ANALYZER_CFG);
+			JSONObject cfg = new JSONObject(IOUtils.toString(new FileReader(cfgFile)));
+
+			tokenSeparators = cfg.getString("tokenSeparators");
+			removeChars = cfg.getString("removeChars");
+
+			JSONObject charReplacesJson = cfg.optJSONObject("charReplaces");
+			if (charReplacesJson != null) {
+				for (String key : charReplacesJson.keySet()) {
+					charReplaces.add(new String[] {key, charReplacesJson.getString(key)});
+				}
+			}
+		}
+		catch (JSONException e) {
+			throw new RuntimeException("Can't parse config/QueryAnalizer.json cfg", e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Can't read cfg file config/QueryAnalizer.json", e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readSynonims() {
+		File synonimsd = new File("config/synonims");
+		List<File> synonimFiles = Arrays.stream(synonimsd.listFiles())
+			.filter(f -> f.getName().endsWith(".syn"))
+			.collect(Collectors.toList());
+
+		for(File f : synonimFiles) {
+			String encoding = ReplacersCompiler.getEncoding(f);
+			try {
+				for(String line : (List<String>)FileUtils.readLines(f, encoding)) {
+					if (!line.startsWith("#") && StringUtils.isNotBlank(line)) {
+
+						List<String> synonim = Arrays.stream(StringUtils.split(line, "="))
+								.map(s -> s.trim().toLowerCase())
+								.filter(s -> StringUtils.isNotBlank(s))
+								.collect(Collectors.toList());
+
+						if (synonim.size() >= 2) {
+							Iterator<String> i = synonim.iterator();
+							String synA = i.next();
+							String synB = i.next();
+
+							synonims.put(synA, synB);
+							while(i.hasNext()) {
+								synA = synB;
+								synB = i.next();
+								synonims.put(synA, synB);
+							}
+							synonims.put(synB, synonim.get(0));
+						}
+					}
+				}
+			}
+			catch (Exception e) {
+				throw new Error("Error reading synonims file " + f, e);
+			}
+		}
+	}
+
+	private void readStopWords() {
+		Set<String> patterns = new HashSet<>();
+		File dir = new File("config/stop-terms/");
+
+		for(String line : readTermsD(dir)) {
+			patterns.add(StringUtils.substringAfter(line, "~"));
+		}
+
+		stopPatterns.addAll(patterns);
+	}
+
+	private void readOptionals() {
+		Set<String> patterns = new HashSet<>();
+		Set<String> terms = new HashSet<>();
+		File dir = new File("config/optional-terms/");
+
+		for(String line : readTermsD(dir)) {
+			if(StringUtils.startsWith(line, "~")) {
+				patterns.add(StringUtils.substringAfter(line, "~"));
+			}
+			else {
+				terms.add(StringUtils.lowerCase(line));
+			}
+		}
+
+		optionalPatterns.addAll(patterns);
+		optionalTerms.addAll(terms);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> readTermsD(File dir) {
+		try {
+			LinkedHashSet<String> lines = new LinkedHashSet<>();
+			for (File f : dir.listFiles((d, name) -> name.endsWith(".terms"))) {
+				String encoding = ReplacersCompiler.getEncoding(f);
+				int rules = 0;
+				for(String option : (List<String>)FileUtils.readLines(f, encoding)) {
+					if(!StringUtils.startsWith(option, "#") && StringUtils.isNotBlank(option)) {
+						lines.add(option);
+						rules++;
+					}
+				}
+				log.info("Read {} optional terms from {}, (encoding: {})", rules, f, encoding);
+			}
+			return lines;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * SHA-256 of the config sources paths and contents
+	 *
+	 * @return checksum or null if there are no sources
+	 * */
+	public static String sourcesChecksum() {
+		try {
+			List<Path> files = listSources();
+			if (files.isEmpty()) {
+				return null;
+			}
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Path f : files) {
+				digest.update(f.toString().getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+				digest.update(Files.readAllBytes(f));
+				digest.update((byte) 0);
+			}
+			return new String(Hex.encodeHex(digest.digest()));
+		}
+		catch (IOException | NoSuchAlgorithmException e) {
+			throw new RuntimeException("Can't compute config checksum", e);
+		}
+	}
+
+	/**
+	 * SHA-256 of the config sources paths, sizes and modification times,
+	 * files aren't read
+	 *
+	 * @return key or null if there are no sources
+	 * */
+	public static String sourcesKey() {
+		try {
+			List<Path> files = listSources();
+			if (files.isEmpty()) {
+				return null;
+			}
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Path f : files) {
+				digest.update(f.toString().getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+				digest.update(Long.toString(Files.size(f)).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+				digest.update(Long.toString(Files.getLastModifiedTime(f).toMillis()).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			return new String(Hex.encodeHex(digest.digest()));
+		}
+		catch (IOException | NoSuchAlgorithmException e) {
+			throw new RuntimeException("Can't compute config sources key", e);
+		}
+	}
+
+	/**
+	 * @return sorted config sources files
+	 * */
+	private static List<Path> listSources() throws IOException {
+		List<Path> files = new ArrayList<>();
+		for (String source : SOURCES) {
+			Path path = new File(source).toPath();
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> walk = Files.walk(path)) {
+					walk.filter(Files::isRegularFile).forEach(files::add);
+				}
+			}
+			else if (Files.isRegularFile(path)) {
+				files.add(path);
+			}
+		}
+
+		files.sort(null);
+		return files;
+	}
+
+	/**
+	 * Write the bundle, previous one is replaced atomically
+	 * */
+	public void write(File file) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+
+		writeString(out, checksum);
+		writeString(out, sourcesKey);
+		writeString(out, tokenSeparators);
+		writeString(out, removeChars);
+		writePairs(out, charReplaces);
+
+		out.writeInt(rules.size());
+		for (Map.Entry<String, List<String[]>> entry : rules.entrySet()) {
+			writeString(out, entry.getKey());
+			writePairs(out, entry.getValue());
+		}
+
+		List<String[]> synonimPairs = new ArrayList<>(synonims.size());
+		synonims.forEach((k, v) -> synonimPairs.add(new String[] {k, v}));
+		writePairs(out, synonimPairs);
+
+		writeStrings(out, stopPatterns);
+		writeStrings(out, optionalTerms);
+		writeStrings(out, optionalPatterns);
+
+		out.writeInt(factoryClasses.size());
+		for (Map.Entry<String, byte[]> entry : factoryClasses.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().length);
+			out.write(entry.getValue());
+		}
+		out.flush();
+
+		byte[] bytes = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream fileOut = new DataOutputStream(Files.newOutputStream(tmp.toPath()))) {
+			fileOut.writeLong(MAGIC);
+			fileOut.writeInt(VERSION);
+			fileOut.writeInt(bytes.length);
+			fileOut.write(bytes);
+			fileOut.writeLong(crc.getValue());
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static ConfigBundle read(File file) throws IOException {
+		// magic, version, payload length and crc
+		long payloadLimit = file.length() - 8 - 4 - 4 - 8;
+		
+		byte[] bytes;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+			if (in.readLong() != MAGIC) {
+				throw new IOException("Not a config bundle");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported bundle version " + version);
+			}
+			int length = in.readInt();
+			if (length < 0 || length > payloadLimit) {
+				throw new IOException("Bundle is corrupted");
+			}
+			bytes = new byte[length];
+			in.readFully(bytes);
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			if (in.readLong() != crc.getValue()) {
+				throw new IOException("Bundle is corrupted");
+			}
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		ConfigBundle bundle = new ConfigBundle();
+
+		bundle.checksum = readString(in);
+		bundle.sourcesKey = readString(in);
+		bundle.tokenSeparators = readString(in);
+		bundle.removeChars = readString(in);
+		bundle.charReplaces = readPairs(in);
+
+		int rulesCount = readLength(in);
+		for (int i = 0; i < rulesCount; i++) {
+			String path = readString(in);
+			bundle.rules.put(path, readPairs(in));
+		}
+
+		for (String[] pair : readPairs(in)) {
+			bundle.synonims.put(pair[0], pair[1]);
+		}
+
+		bundle.stopPatterns = readStrings(in);
+		bundle.optionalTerms = readStrings(in);
+		bundle.optionalPatterns = readStrings(in);
+
+		int classesCount = readLength(in);
+		for (int i = 0; i < classesCount; i++) {
+			String name = readString(in);
+			byte[] classBytes = new byte[readLength(in)];
+			in.readFully(classBytes);
+			bundle.factoryClasses.put(name, classBytes);
+		}
+
+		return bundle;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		byte[] bytes = new byte[checkLength(in, length)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int readLength(DataInputStream in) throws IOException {
+		return checkLength(in, in.readInt());
+	}
+
+	/**
+	 * Length of the bytes or elements, each element takes at least a byte,
+	 * so it can't be greater than the rest of the payload
+	 * */
+	private static int checkLength(DataInputStream in, int length) throws IOException {
+		if (length < 0 || length > in.available()) {
+			throw new IOException("Bundle is corrupted, length " + length + " is out of the payload");
+		}
+		return length;
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings) {
+			writeString(out, s);
+		}
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		int size = readLength(in);
+		List<String> result = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(readString(in));
+		}
+		return result;
+	}
+
+	private static void writePairs(DataOutputStream out, List<String[]> pairs) throws IOException {
+		out.writeInt(pairs.size());
+		for (String[] pair : pairs) {
+			writeString(out, pair[0]);
+			writeString(out, pair[1]);
+		}
+	}
+
+	private static List<String[]> readPairs(DataInputStream in) throws IOException {
+		int size = readLength(in);
+		List<String[]> result = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(new String[] {readString(in), readString(in)});
+		}
+		return result;
+	}
+
+}
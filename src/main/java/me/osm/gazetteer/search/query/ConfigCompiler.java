@@ -0,0 +1,64 @@
+package me.osm.gazetteer.search.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads config sources, checks that all the replacers
+ * compile and writes {@link ConfigBundle}
+ * */
+public class ConfigCompiler {
+	
+	private static final Logger log = LoggerFactory.getLogger(ConfigCompiler.class);
+	
+	private final CompileConfigOptions options;
+
+	public ConfigCompiler(CompileConfigOptions options) {
+		this.options = options;
+	}
+	
+	public void run() {
+		ConfigBundle bundle = ConfigBundle.fromSources();
+		
+		if (new File(ReplacersCompiler.FACTORY_SOURCE).exists()) {
+			bundle.setFactoryClasses(ReplacersCompiler.compileFactory());
+			log.info("{} compiled into {} classes", ReplacersCompiler.FACTORY_SOURCE, bundle.getFactoryClasses().size());
+		}
+		
+		for (String path : ConfigBundle.RULE_FILES) {
+			List<String[]> rules = bundle.getRules(new File(path));
+			
+			List<Replacer> replacers = new ArrayList<>();
+			for (String[] rule : rules) {
+				replacers.add(ReplacersCompiler.createReplacer(rule[0], rule[1]));
+			}
+			
+			long precompiled = replacers.stream().filter(r -> r instanceof PlanReplacer).count();
+			log.info("{}: {} rules, {} precompiled", path, rules.size(), precompiled);
+		}
+		
+		File out = new File(options.getOut());
+		try {
+			bundle.write(out);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Can't write config bundle " + out, e);
+		}
+		
+		log.info("Config bundle {} written, sources checksum {}", out, bundle.getChecksum());
+	}
+	
+	public static void main(String[] args) {
+		CompileConfigOptions options = new CompileConfigOptions();
+		if (args.length > 0) {
+			options.setOut(args[0]);
+		}
+		new ConfigCompiler(options).run();
+	}
+
+}
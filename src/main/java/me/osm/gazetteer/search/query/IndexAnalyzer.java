@@ -1,18 +1,23 @@
 package me.osm.gazetteer.search.query;
 
 import java.io.File;
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang3.StringUtils;
 
 import gcardone.junidecode.Junidecode;
+import me.osm.gazetteer.search.util.MemoCache;
 
 public class IndexAnalyzer {
 	
@@ -21,23 +26,148 @@ public class IndexAnalyzer {
 	private List<Replacer> streetsReplacers = new ArrayList<>();
 	private List<Replacer> localityReplacers = new ArrayList<>();
 	
+	private final ReplacersPrefilter hnPrefilter;
+	private final ReplacersPrefilter streetsPrefilter;
+	private final ReplacersPrefilter localityPrefilter;
+	
+	public static final int DEFAULT_CACHE_SIZE = 200000;
+	public static final int DEFAULT_TRANSLIT_CACHE_SIZE = 200000;
+	
+	/**
+	 * Names of streets, localities and admin boundaries
+	 * repeat for every address, so analysis results are cached
+	 * */
+	private final MemoCache<CacheKey, List<Token>> cache;
+	
+	/**
+	 * Tokens repeat in different names even more
+	 * */
+	private final MemoCache<String, String> translitCache;
+	
+	// ASCII tokens returned without Junidecode call
+	private final LongAdder translitAscii = new LongAdder();
+	
+	private static final int LOCALITY = 0;
+	private static final int STREET = 1;
+	
+	private static final class CacheKey {
+		private final String text;
+		private final int replacers;
+		private final boolean transliterate;
+		
+		public CacheKey(String text, int replacers, boolean transliterate) {
+			this.text = text;
+			this.replacers = replacers;
+			this.transliterate = transliterate;
+		}
+
+		@Override
+		public int hashCode() {
+			return (text.hashCode() * 31 + replacers) * 2 + (transliterate ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) obj;
+			return replacers == other.replacers && transliterate == other.transliterate 
+					&& text.equals(other.text);
+		}
+	}
+	
 	public IndexAnalyzer() {
+		this(DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * @param cacheSize max number of cached names, 0 disables the cache
+	 * */
+	public IndexAnalyzer(int cacheSize) {
+		this(cacheSize, DEFAULT_TRANSLIT_CACHE_SIZE);
+	}
+	
+	/**
+	 * @param cacheSize max number of cached names, 0 disables the cache
+	 * @param translitCacheSize max number of cached transliterated tokens, 0 disables the cache
+	 * */
+	public IndexAnalyzer(int cacheSize, int translitCacheSize) {
+		this.cache = cacheSize > 0 ? new MemoCache<>("Names analysis", cacheSize) : null;
+		this.translitCache = translitCacheSize > 0 ? new MemoCache<>("Transliteration", translitCacheSize) : null;
+		
 		ReplacersCompiler.compile(hnReplacers, new File("config/replacers/index/hnIndexReplasers"));
 		ReplacersCompiler.compile(streetsReplacers, new File("config/replacers/index/streetsReplacers"));
 		ReplacersCompiler.compile(localityReplacers, new File("config/replacers/index/localityReplacers"));
+		
+		hnPrefilter = ReplacersCompiler.prefilter(hnReplacers);
+		streetsPrefilter = ReplacersCompiler.prefilter(streetsReplacers);
+		localityPrefilter = ReplacersCompiler.prefilter(localityReplacers);
 	} 
 	
+	/**
+	 * Chars below 0x3000 which are not changed by NFD and are not 
+	 * combining marks, strings of them are returned as is by removeDiactrics
+	 * */
+	private static final BitSet NFD_STABLE = new BitSet(0x3000);
+	static {
+		for (char c = 0; c < 0x3000; c++) {
+			int type = Character.getType(c);
+			boolean mark = type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK 
+					|| type == Character.COMBINING_SPACING_MARK;
+			
+			String str = String.valueOf(c);
+			if (!mark && !Character.isSurrogate(c) && Normalizer.isNormalized(str, Normalizer.Form.NFD)) {
+				NFD_STABLE.set(c);
+			}
+		}
+	}
+	
 	/**
 	 * "Bebić" to "Bebic"
 	 */
 	public static String removeDiactrics(String s) {
-		String normalized = java.text.Normalizer.normalize(s, java.text.Normalizer.Form.NFD);
-		return normalized.replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
+		if (isNFDStable(s)) {
+			return s;
+		}
+		
+		String normalized = Normalizer.normalize(s, Normalizer.Form.NFD);
+		
+		// same as replaceAll("\\p{InCombiningDiacriticalMarks}+", "")
+		StringBuilder sb = null;
+		for (int i = 0; i < normalized.length(); i++) {
+			char c = normalized.charAt(i);
+			if (c >= '\u0300' && c <= '\u036F') {
+				if (sb == null) {
+					sb = new StringBuilder(normalized.length());
+					sb.append(normalized, 0, i);
+				}
+			}
+			else if (sb != null) {
+				sb.append(c);
+			}
+		}
+		
+		return sb == null ? normalized : sb.toString();
+	}
+	
+	private static boolean isNFDStable(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			// ASCII fast path
+			if (c >= 0x80 && (c >= 0x3000 || !NFD_STABLE.get(c))) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
+	/**
+	 * Immutable, tokens are shared between rows via the cache
+	 * */
 	public static final class Token {
-		public String token;
-		public boolean optional;
+		public final String token;
+		public final boolean optional;
 		
 		public Token(String token, boolean optional) {
 			this.token = token;
@@ -45,16 +175,85 @@ public class IndexAnalyzer {
 		}
 	}
 	
+	/**
+	 * @return unmodifiable list of tokens
+	 * */
 	public List<Token> normalizeLocationName(String original, boolean transliterate) {
-		return transliterate(listTokens(original, localityReplacers), transliterate);
+		return analyze(original, LOCALITY, transliterate);
 	}
 
+	/**
+	 * @return unmodifiable list of tokens
+	 * */
 	public List<Token> normalizeStreetName(String original, boolean transliterate) {
-		return transliterate(listTokens(original, streetsReplacers), transliterate);
+		return analyze(original, STREET, transliterate);
 	}
 	
+	/**
+	 * @return unmodifiable list of tokens
+	 * */
 	public List<Token> normalizeName(String original, boolean transliterate) {
-		return transliterate(listTokens(original, streetsReplacers), transliterate);
+		return analyze(original, STREET, transliterate);
+	}
+
+	private List<Token> analyze(String original, int replacers, boolean transliterate) {
+		String text = Objects.toString(original, "");
+		if (cache == null) {
+			return doAnalyze(text, replacers, transliterate);
+		}
+		return cache.get(new CacheKey(text, replacers, transliterate), 
+				k -> doAnalyze(k.text, k.replacers, k.transliterate));
+	}
+
+	private List<Token> doAnalyze(String original, int replacers, boolean transliterate) {
+		ReplacersPrefilter prefilter = replacers == LOCALITY ? localityPrefilter : streetsPrefilter;
+		return Collections.unmodifiableList(
+				transliterate(listTokens(original, prefilter), transliterate));
+	}
+	
+	/**
+	 * @return names analysis cache or null if it's disabled
+	 * */
+	public MemoCache<?, ?> getCache() {
+		return cache;
+	}
+	
+	/**
+	 * @return transliteration cache or null if it's disabled
+	 * */
+	public MemoCache<?, ?> getTranslitCache() {
+		return translitCache;
+	}
+	
+	/**
+	 * @return number of ASCII tokens which were not transliterated
+	 * */
+	public long getTranslitAscii() {
+		return translitAscii.sum();
+	}
+	
+	private String unidecode(String token) {
+		if (isAscii(token)) {
+			// Junidecode keeps ASCII chars as is
+			translitAscii.increment();
+			return token;
+		}
+		if (translitCache == null) {
+			return Junidecode.unidecode(token);
+		}
+		return translitCache.get(token, Junidecode::unidecode);
+	}
+	
+	/**
+	 * Printable ASCII, Junidecode removes DEL
+	 * */
+	private static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x7F) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	private List<Token> transliterate(List<Token> listTokens, boolean transliterate) {
@@ -68,7 +267,7 @@ public class IndexAnalyzer {
 				// Don't transliterate optionals
 				if (!t.optional && distinct.add(t.token)) {
 					transliterated.add(
-						new Token(Junidecode.unidecode(t.token), false));
+						new Token(unidecode(t.token), false));
 				}
 			}
 			
@@ -77,51 +276,85 @@ public class IndexAnalyzer {
 		return listTokens;
 	}
 
-	private Set<String> findOptionals(Set<String> uniqueTokens) {
-		Set<String> matchedOptTokens = new HashSet<>();
-		if(QueryAnalyzerImpl.optRegexp != null) {
-			Matcher matcher = QueryAnalyzerImpl.optRegexp.matcher(StringUtils.join(uniqueTokens, ' '));
-			while(matcher.find()) {
-				 String group = matcher.group(0);
-				 for(String t : StringUtils.split(group, QueryAnalyzerImpl.tokenSeparators)) {
-					 matchedOptTokens.add(t);
-				 }
+	/**
+	 * Add tokens matched by optional terms
+	 * 
+	 * @param tokens tokens of a name, optional terms regexps run
+	 * over the distinct tokens joined with space 
+	 * */
+	private void findOptionals(String[] tokens, Set<String> matchedOptTokens) {
+		if(!QueryAnalyzerImpl.optTerms.isEmpty() && tokens.length > 0) {
+			for(String group : QueryAnalyzerImpl.optTerms.findAll(joinDistinct(tokens))) {
+				for(String t : StringUtils.split(group, QueryAnalyzerImpl.tokenSeparators)) {
+					matchedOptTokens.add(t);
+				}
+			}
+		}
+		for (String t : tokens) {
+			if (QueryAnalyzerImpl.optionals.contains(t)) {
+				matchedOptTokens.add(t);
 			}
 		}
-		uniqueTokens.stream().filter(t -> QueryAnalyzerImpl.optionals.contains(t)).forEach(matchedOptTokens::add);
+	}
+	
+	private static String joinDistinct(String[] tokens) {
+		if (tokens.length == 1) {
+			return tokens[0];
+		}
+		if (tokens.length > 16) {
+			return StringUtils.join(new LinkedHashSet<>(Arrays.asList(tokens)), ' ');
+		}
 		
-		return matchedOptTokens;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < tokens.length; i++) {
+			boolean seen = false;
+			for (int j = 0; j < i && !seen; j++) {
+				seen = tokens[j].equals(tokens[i]);
+			}
+			if (!seen) {
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+				sb.append(tokens[i]);
+			}
+		}
+		return sb.toString();
 	}
 	
-	private List<Token> listTokens(String original, List<Replacer> replacers) {
+	private List<Token> listTokens(String original, ReplacersPrefilter replacers) {
 		original = removeDiactrics(StringUtils.stripToEmpty(original));
+		String lowerCase = original.toLowerCase();
+		
+		Collection<String> variants = transform(lowerCase, replacers);
 		
-		String replaced = StringUtils.join(transform(original.toLowerCase(), replacers), ' ');
-		replaced = original.toLowerCase() + " " + replaced;
+		// trailing space doesn't change the tokens
+		String replaced = variants.isEmpty() ? lowerCase : lowerCase + " " + StringUtils.join(variants, ' ');
 		
-		String filtered = StringUtils.replaceChars(replaced, QueryAnalyzerImpl.removeChars, null);
-		String transformed = filtered;
+		String transformed = StringUtils.replaceChars(replaced, QueryAnalyzerImpl.removeChars, null);
+		String filtered = transformed;
 		
-		List<String> optionals = new ArrayList<>();
+		List<String> optionals = new ArrayList<>(0);
 		// Mark tokens in braces as optionals
 		filtered = filterOptionals(filtered, optionals, "(", ")");
 		filtered = filterOptionals(filtered, optionals, "[", "]");
 		filtered = filterOptionals(filtered, optionals, "<", ">");
 		filtered = filterOptionals(filtered, optionals, "{", "}");
 		
-		String[] tokensArr = StringUtils.split(filtered, QueryAnalyzerImpl.tokenSeparators);
-		LinkedHashSet<String> tokens = new LinkedHashSet<>(Arrays.asList(tokensArr)); 
-		
-		String optionalsAsString = StringUtils.join(optionals, ' ');
-		String[] optTokensArr = StringUtils.split(optionalsAsString, QueryAnalyzerImpl.tokenSeparators);
-		HashSet<String> optTokens = new HashSet<>(Arrays.asList(optTokensArr));
+		Set<String> optTokens = new HashSet<>();
+		if (!optionals.isEmpty()) {
+			String optionalsAsString = StringUtils.join(optionals, ' ');
+			for (String t : StringUtils.split(optionalsAsString, QueryAnalyzerImpl.tokenSeparators)) {
+				optTokens.add(t);
+			}
+		}
 		
 		// Look for optional tokens in the rest of the tokens
-		optTokens.addAll(findOptionals(tokens));
+		findOptionals(StringUtils.split(filtered, QueryAnalyzerImpl.tokenSeparators), optTokens);
 		
+		String[] tokens = StringUtils.split(transformed, QueryAnalyzerImpl.tokenSeparators);
 		Set<String> distinct = new HashSet<>();
-		List<Token> result = new ArrayList<>();
-		for (String token : StringUtils.split(transformed, QueryAnalyzerImpl.tokenSeparators)) {
+		List<Token> result = new ArrayList<>(tokens.length);
+		for (String token : tokens) {
 			String text = StringUtils.stripToNull(token);
 			if (text != null) {
 				boolean hasNumbers = StringUtils.containsAny(text, "0123456789");
@@ -152,21 +385,21 @@ public class IndexAnalyzer {
 	}
 
 	public Collection<String> getHNVariants(String original) {
-		Collection<String> variants = transform(original, hnReplacers);
+		Collection<String> variants = transform(original, hnPrefilter);
 		if (variants.isEmpty()) {
 			variants.add(original);
 		}
 		return variants;
 	}
 	
-	private Collection<String> transform(String optString, Collection<Replacer> replacers) {
+	private Collection<String> transform(String optString, ReplacersPrefilter replacers) {
 		
 		for(String [] replacer : QueryAnalyzerImpl.charReplaces) {
 			optString = StringUtils.replace(optString, replacer[0], replacer[1]);
 		}
 		
 		Set<String> result = new HashSet<>(); 
-		for(Replacer replacer : replacers) {
+		for(Replacer replacer : replacers.candidates(optString)) {
 			try {
 				Collection<String> replace = replacer.replace(optString);
 				if(replace != null) {
@@ -0,0 +1,741 @@
+package me.osm.gazetteer.search.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Selects regexps which could match a string without running them.
+ *
+ * For every pattern a set of requirements is extracted:
+ * literals (or alternatives of literals) and character classes which
+ * must be present in any matched string. All the literals of all the
+ * patterns are looked up in one pass with Aho-Corasick automaton,
+ * so the cost doesn't grow with the number of patterns.
+ *
+ * With foldAsciiCase requirements are checked the way
+ * Pattern.CASE_INSENSITIVE (without UNICODE_CASE) matches them.
+ * Patterns which can't be analyzed are always selected.
+ *
+ * Immutable, thread safe.
+ * */
+final class PatternPrefilter {
+
+	private final int size;
+	
+	private final boolean foldAsciiCase;
+
+	/** For each pattern: ids of literal sets, all of them should be found */
+	private final int[][] literalSets;
+
+	/** For each pattern: ids of char classes, all of them should be found */
+	private final int[][] classes;
+
+	/** Literal id to literal set id */
+	private final int[] literal2set;
+	private final int setsCount;
+
+	private final List<CharClass> charClasses;
+
+	private final AhoCorasick automaton;
+
+	PatternPrefilter(List<String> patterns, boolean foldAsciiCase) {
+		this.size = patterns.size();
+		this.foldAsciiCase = foldAsciiCase;
+		this.literalSets = new int[size][];
+		this.classes = new int[size][];
+
+		Map<Set<String>, Integer> sets = new LinkedHashMap<>();
+		Map<CharClass, Integer> classIds = new LinkedHashMap<>();
+
+		for (int i = 0; i < size; i++) {
+			List<Object> requirements = Requirements.extract(patterns.get(i));
+
+			List<Integer> setIds = new ArrayList<>();
+			List<Integer> classList = new ArrayList<>();
+			for (Object r : requirements) {
+				if (r instanceof CharClass) {
+					CharClass cc = foldAsciiCase ? ((CharClass) r).foldAsciiCase() : (CharClass) r;
+					classList.add(classIds.computeIfAbsent(cc, k -> classIds.size()));
+				}
+				else {
+					@SuppressWarnings("unchecked")
+					Set<String> literals = (Set<String>) r;
+					if (foldAsciiCase) {
+						Set<String> folded = new LinkedHashSet<>();
+						for (String l : literals) {
+							folded.add(lowerAscii(l));
+						}
+						literals = folded;
+					}
+					setIds.add(sets.computeIfAbsent(literals, k -> sets.size()));
+				}
+			}
+
+			literalSets[i] = setIds.stream().mapToInt(Integer::intValue).toArray();
+			classes[i] = classList.stream().mapToInt(Integer::intValue).toArray();
+		}
+
+		List<String> literals = new ArrayList<>();
+		List<Integer> owners = new ArrayList<>();
+		for (Map.Entry<Set<String>, Integer> entry : sets.entrySet()) {
+			for (String literal : entry.getKey()) {
+				literals.add(literal);
+				owners.add(entry.getValue());
+			}
+		}
+
+		this.literal2set = owners.stream().mapToInt(Integer::intValue).toArray();
+		this.setsCount = sets.size();
+		this.charClasses = new ArrayList<>(classIds.keySet());
+		this.automaton = new AhoCorasick(literals);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return indexes of the patterns which could match the text
+	 * */
+	BitSet candidates(String text) {
+		BitSet result = new BitSet(size);
+		if (size == 0) {
+			return result;
+		}
+		
+		if (foldAsciiCase) {
+			text = lowerAscii(text);
+		}
+
+		BitSet foundSets = new BitSet(setsCount);
+		automaton.find(text, literal -> foundSets.set(literal2set[literal]));
+
+		BitSet foundClasses = new BitSet(charClasses.size());
+		for (int c = 0; c < charClasses.size(); c++) {
+			if (charClasses.get(c).matchesAny(text)) {
+				foundClasses.set(c);
+			}
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (all(foundSets, literalSets[i]) && all(foundClasses, classes[i])) {
+				result.set(i);
+			}
+		}
+
+		return result;
+	}
+
+	private static boolean all(BitSet found, int[] required) {
+		for (int id : required) {
+			if (!found.get(id)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	static String lowerAscii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				char[] chars = s.toCharArray();
+				for (int j = i; j < chars.length; j++) {
+					if (chars[j] >= 'A' && chars[j] <= 'Z') {
+						chars[j] += 'a' - 'A';
+					}
+				}
+				return new String(chars);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Set of chars defined by ranges, equal for equal ranges
+	 * */
+	static final class CharClass {
+
+		// sorted, not overlapping [from, to] pairs
+		private final int[] ranges;
+
+		CharClass(List<int[]> ranges) {
+			TreeMap<Integer, Integer> merged = new TreeMap<>();
+			List<int[]> sorted = new ArrayList<>(ranges);
+			sorted.sort((a, b) -> Integer.compare(a[0], b[0]));
+			int from = -1;
+			int to = -2;
+			for (int[] r : sorted) {
+				if (r[0] > to + 1) {
+					if (from >= 0) {
+						merged.put(from, to);
+					}
+					from = r[0];
+					to = r[1];
+				}
+				else {
+					to = Math.max(to, r[1]);
+				}
+			}
+			if (from >= 0) {
+				merged.put(from, to);
+			}
+
+			this.ranges = new int[merged.size() * 2];
+			int i = 0;
+			for (Map.Entry<Integer, Integer> e : merged.entrySet()) {
+				this.ranges[i++] = e.getKey();
+				this.ranges[i++] = e.getValue();
+			}
+		}
+
+		/**
+		 * Same class with lower case variants of A-Z added
+		 * */
+		CharClass foldAsciiCase() {
+			List<int[]> folded = new ArrayList<>();
+			for (int i = 0; i < ranges.length; i += 2) {
+				folded.add(new int[]{ranges[i], ranges[i + 1]});
+				int from = Math.max(ranges[i], 'A');
+				int to = Math.min(ranges[i + 1], 'Z');
+				if (from <= to) {
+					folded.add(new int[]{from + ('a' - 'A'), to + ('a' - 'A')});
+				}
+			}
+			return new CharClass(folded);
+		}
+
+		/**
+		 * @return script bit if all the chars are letters of one script, 0 otherwise
+		 * */
+		int script() {
+			int result = 0;
+			for (int i = 0; i < ranges.length; i += 2) {
+				for (int c = ranges[i]; c <= ranges[i + 1]; c++) {
+					int s = Scripts.of((char) c);
+					if (s == 0 || (result != 0 && s != result)) {
+						return 0;
+					}
+					result = s;
+				}
+			}
+			return result;
+		}
+
+		boolean matches(char c) {
+			for (int i = 0; i < ranges.length; i += 2) {
+				if (c < ranges[i]) {
+					return false;
+				}
+				if (c <= ranges[i + 1]) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean matchesAny(String text) {
+			for (int i = 0; i < text.length(); i++) {
+				if (matches(text.charAt(i))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(ranges);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CharClass && Arrays.equals(ranges, ((CharClass) obj).ranges);
+		}
+	}
+
+	/**
+	 * Conservative extraction of what any match of a regexp must contain.
+	 *
+	 * Only a subset of the syntax is understood: literals, escaped
+	 * punctuation, \d \w \s, simple character classes, groups,
+	 * alternations of plain literals, lookarounds and quantifiers.
+	 * Anything else makes the element (or the whole pattern)
+	 * not required, which is always safe.
+	 * */
+	static final class Requirements {
+
+		private static final class Unsupported extends Exception {
+			private static final long serialVersionUID = 1L;
+		}
+
+		private static final String META = "\\[](){}.*+?^$|";
+
+		private static final int[] DIGIT = {'0', '9'};
+		private static final int[][] WORD = {{'a', 'z'}, {'A', 'Z'}, {'_', '_'}, {'0', '9'}};
+		private static final int[][] SPACE = {{' ', ' '}, {'\t', '\r'}};
+
+		private final String p;
+		private int pos;
+
+		private Requirements(String p, int pos) {
+			this.p = p;
+			this.pos = pos;
+		}
+
+		/**
+		 * @return list of {@link CharClass} and Set&lt;String&gt; of literal alternatives
+		 * */
+		static List<Object> extract(String pattern) {
+			if (pattern == null) {
+				return Collections.emptyList();
+			}
+
+			try {
+				Requirements parser = new Requirements(pattern, 0);
+				List<Object> result = parser.sequence();
+				if (parser.pos < pattern.length()) {
+					// Top level alternation
+					return Collections.emptyList();
+				}
+				return result;
+			}
+			catch (Unsupported | RuntimeException e) {
+				return Collections.emptyList();
+			}
+		}
+
+		/**
+		 * Parse until the end, ')' or '|'
+		 * */
+		private List<Object> sequence() throws Unsupported {
+			List<Object> result = new ArrayList<>();
+			StringBuilder run = new StringBuilder();
+
+			while (pos < p.length() && p.charAt(pos) != ')' && p.charAt(pos) != '|') {
+				Object atom = atom();
+
+				int min = quantifierMin();
+				boolean required = min > 0;
+				boolean repeated = min != 1 || lastQuantified;
+
+				if (atom instanceof Character && required) {
+					run.append((char) atom);
+					if (repeated) {
+						flush(run, result);
+					}
+					continue;
+				}
+
+				flush(run, result);
+
+				if (!required || atom == null) {
+					continue;
+				}
+
+				if (atom instanceof List) {
+					@SuppressWarnings("unchecked")
+					List<Object> group = (List<Object>) atom;
+					result.addAll(group);
+				}
+				else {
+					result.add(atom);
+				}
+			}
+
+			flush(run, result);
+			return result;
+		}
+
+		private static void flush(StringBuilder run, List<Object> result) {
+			if (run.length() > 0) {
+				result.add(Collections.singleton(run.toString()));
+				run.setLength(0);
+			}
+		}
+
+		private boolean lastQuantified;
+
+		/**
+		 * @return min number of repeats of the previous atom
+		 * */
+		private int quantifierMin() throws Unsupported {
+			lastQuantified = false;
+			if (pos >= p.length()) {
+				return 1;
+			}
+
+			char c = p.charAt(pos);
+			int min;
+			if (c == '?' || c == '*') {
+				pos++;
+				min = 0;
+			}
+			else if (c == '+') {
+				pos++;
+				min = 1;
+				lastQuantified = true;
+			}
+			else if (c == '{') {
+				int close = p.indexOf('}', pos);
+				if (close < 0) {
+					throw new Unsupported();
+				}
+				String bounds = p.substring(pos + 1, close);
+				String from = bounds.contains(",") ? bounds.substring(0, bounds.indexOf(',')) : bounds;
+				min = Integer.parseInt(from.trim());
+				pos = close + 1;
+				lastQuantified = true;
+			}
+			else {
+				return 1;
+			}
+
+			// lazy and possessive modifiers
+			if (pos < p.length() && (p.charAt(pos) == '?' || p.charAt(pos) == '+')) {
+				pos++;
+			}
+			return min;
+		}
+
+		/**
+		 * @return Character, CharClass, Set of literals, List of requirements or null
+		 * */
+		private Object atom() throws Unsupported {
+			char c = p.charAt(pos);
+			switch (c) {
+			case '\\':
+				return escape();
+			case '[':
+				return charClass();
+			case '(':
+				return group();
+			case '.':
+			case '^':
+			case '$':
+				pos++;
+				return null;
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw new Unsupported();
+			default:
+				pos++;
+				return c;
+			}
+		}
+
+		private Object escape() throws Unsupported {
+			if (pos + 1 >= p.length()) {
+				throw new Unsupported();
+			}
+			char e = p.charAt(pos + 1);
+			pos += 2;
+
+			switch (e) {
+			case 'd':
+				return new CharClass(Collections.singletonList(DIGIT));
+			case 'w':
+				return new CharClass(Arrays.asList(WORD));
+			case 's':
+				return new CharClass(Arrays.asList(SPACE));
+			case 'b':
+			case 'B':
+			case 'A':
+			case 'z':
+			case 'Z':
+			case 'G':
+			case 'D':
+			case 'W':
+			case 'S':
+				return null;
+			case 't':
+				return '\t';
+			case 'n':
+				return '\n';
+			default:
+				if (!Character.isLetterOrDigit(e)) {
+					return e;
+				}
+				// \p{..}, \x.., \Q, back references and so on
+				throw new Unsupported();
+			}
+		}
+
+		private Object charClass() throws Unsupported {
+			pos++;
+			if (pos < p.length() && p.charAt(pos) == '^') {
+				throw new Unsupported();
+			}
+
+			List<int[]> ranges = new ArrayList<>();
+			boolean first = true;
+			while (pos < p.length() && (p.charAt(pos) != ']' || first)) {
+				first = false;
+				char c = p.charAt(pos);
+				if (c == '[' || (c == '&' && p.startsWith("&&", pos))) {
+					throw new Unsupported();
+				}
+
+				int from;
+				if (c == '\\') {
+					if (pos + 1 >= p.length()) {
+						throw new Unsupported();
+					}
+					char e = p.charAt(pos + 1);
+					pos += 2;
+					if (e == 'd') {
+						ranges.add(DIGIT);
+						continue;
+					}
+					if (e == 'w') {
+						ranges.addAll(Arrays.asList(WORD));
+						continue;
+					}
+					if (e == 's') {
+						ranges.addAll(Arrays.asList(SPACE));
+						continue;
+					}
+					if (Character.isLetterOrDigit(e)) {
+						throw new Unsupported();
+					}
+					from = e;
+				}
+				else {
+					pos++;
+					from = c;
+				}
+
+				if (pos + 1 < p.length() && p.charAt(pos) == '-' && p.charAt(pos + 1) != ']') {
+					char to = p.charAt(pos + 1);
+					if (to == '\\' || to == '[') {
+						throw new Unsupported();
+					}
+					pos += 2;
+					if (to < from) {
+						throw new Unsupported();
+					}
+					ranges.add(new int[] {from, to});
+				}
+				else {
+					ranges.add(new int[] {from, from});
+				}
+			}
+
+			if (pos >= p.length()) {
+				throw new Unsupported();
+			}
+			// skip ]
+			pos++;
+
+			return new CharClass(ranges);
+		}
+
+		private Object group() throws Unsupported {
+			pos++;
+			boolean lookaround = false;
+			if (p.startsWith("?", pos)) {
+				if (p.startsWith("?:", pos)) {
+					pos += 2;
+				}
+				else if (p.startsWith("?=", pos) || p.startsWith("?!", pos)) {
+					pos += 2;
+					lookaround = true;
+				}
+				else if (p.startsWith("?<=", pos) || p.startsWith("?<!", pos)) {
+					pos += 3;
+					lookaround = true;
+				}
+				else {
+					// Flags and named groups
+					throw new Unsupported();
+				}
+			}
+
+			int start = pos;
+			List<Object> first = sequence();
+			List<String> alternatives = new ArrayList<>();
+			alternatives.add(p.substring(start, pos));
+			boolean alternation = false;
+
+			while (pos < p.length() && p.charAt(pos) == '|') {
+				alternation = true;
+				pos++;
+				int altStart = pos;
+				sequence();
+				alternatives.add(p.substring(altStart, pos));
+			}
+
+			if (pos >= p.length()) {
+				throw new Unsupported();
+			}
+			// skip )
+			pos++;
+
+			if (lookaround) {
+				return null;
+			}
+
+			if (!alternation) {
+				return first;
+			}
+
+			Set<String> literals = new LinkedHashSet<>();
+			for (String alt : alternatives) {
+				String literal = plainLiteral(alt);
+				if (literal == null || literal.isEmpty()) {
+					return null;
+				}
+				literals.add(literal);
+			}
+			return literals;
+		}
+
+		static String plainLiteral(String s) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '\\') {
+					if (i + 1 >= s.length() || Character.isLetterOrDigit(s.charAt(i + 1))) {
+						return null;
+					}
+					sb.append(s.charAt(++i));
+				}
+				else if (META.indexOf(c) >= 0) {
+					return null;
+				}
+				else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Multiple strings search automaton
+	 * */
+	static final class AhoCorasick {
+
+		interface Listener {
+			void found(int literal);
+		}
+
+		private static final class Node {
+			private Map<Character, Node> children = new TreeMap<>();
+			private char[] keys;
+			private Node[] next;
+			private Node fail;
+			private int[] output = new int[0];
+
+			Node child(char c) {
+				int i = Arrays.binarySearch(keys, c);
+				return i >= 0 ? next[i] : null;
+			}
+		}
+
+		private final Node root = new Node();
+
+		AhoCorasick(List<String> literals) {
+			for (int i = 0; i < literals.size(); i++) {
+				Node node = root;
+				for (char c : literals.get(i).toCharArray()) {
+					node = node.children.computeIfAbsent(c, k -> new Node());
+				}
+				node.output = append(node.output, i);
+			}
+
+			Deque<Node> queue = new ArrayDeque<>();
+			root.fail = root;
+			freeze(root);
+			for (Node child : root.next) {
+				child.fail = root;
+				queue.add(child);
+			}
+
+			while (!queue.isEmpty()) {
+				Node node = queue.poll();
+				freeze(node);
+				for (int i = 0; i < node.keys.length; i++) {
+					char c = node.keys[i];
+					Node child = node.next[i];
+
+					Node f = node.fail;
+					while (f != root && f.child(c) == null) {
+						f = f.fail;
+					}
+					Node target = f.child(c);
+					child.fail = target != null && target != child ? target : root;
+
+					queue.add(child);
+				}
+			}
+
+			// Merge outputs along fail links, parents go first in BFS order
+			queue.add(root);
+			while (!queue.isEmpty()) {
+				Node node = queue.poll();
+				for (Node child : node.next) {
+					for (int o : child.fail.output) {
+						child.output = append(child.output, o);
+					}
+					queue.add(child);
+				}
+			}
+		}
+
+		private static void freeze(Node node) {
+			if (node.keys != null) {
+				return;
+			}
+			node.keys = new char[node.children.size()];
+			node.next = new Node[node.children.size()];
+			int i = 0;
+			for (Map.Entry<Character, Node> e : node.children.entrySet()) {
+				node.keys[i] = e.getKey();
+				node.next[i] = e.getValue();
+				i++;
+			}
+			node.children = null;
+		}
+
+		private static int[] append(int[] arr, int v) {
+			for (int a : arr) {
+				if (a == v) {
+					return arr;
+				}
+			}
+			int[] result = Arrays.copyOf(arr, arr.length + 1);
+			result[arr.length] = v;
+			return result;
+		}
+
+		void find(String text, Listener listener) {
+			Node node = root;
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				Node n = node.child(c);
+				while (n == null && node != root) {
+					node = node.fail;
+					n = node.child(c);
+				}
+				node = n != null ? n : root;
+				for (int o : node.output) {
+					listener.found(o);
+				}
+			}
+		}
+	}
+
+}
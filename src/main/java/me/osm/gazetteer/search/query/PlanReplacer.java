@@ -0,0 +1,99 @@
+package me.osm.gazetteer.search.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Replacer with a precompiled {@link SubstitutionPlan} template.
+ *
+ * Produces the same results as ReplacerImpl from
+ * config/replacers/ReplacersFactory.groovy without Groovy
+ * dispatch and template bindings per match.
+ * */
+public class PlanReplacer implements Replacer {
+
+	private final String patternString;
+	private final Pattern pattern;
+	private final SubstitutionPlan plan;
+	
+	// matchers are reset for every string instead of new ones
+	private final ThreadLocal<Matcher> matchers;
+
+	public PlanReplacer(String pattern, SubstitutionPlan plan) {
+		this.patternString = pattern;
+		this.pattern = Pattern.compile(pattern);
+		this.plan = plan;
+		
+		Pattern compiled = this.pattern;
+		this.matchers = ThreadLocal.withInitial(() -> compiled.matcher(""));
+	}
+
+	@Override
+	public String getPattern() {
+		return patternString;
+	}
+
+	@Override
+	public Collection<String> replace(String hn) {
+		Set<String> result = new LinkedHashSet<>();
+		for (Collection<String> variants : replaceGroups(hn).values()) {
+			// Groovy version iterates with every{}, which stops
+			// when nothing new was added
+			if (!result.addAll(variants)) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Collection<String>> replaceGroups(String hn) {
+		return replaceGroups((CharSequence) hn);
+	}
+
+	@Override
+	public Map<String, Collection<String>> replaceGroups(CharSequence hn) {
+		Map<String, Collection<String>> replaces = null;
+		String full = hn.toString();
+
+		Matcher matcher = matchers.get().reset(hn);
+		while (matcher.find()) {
+			List<String> groups = new ArrayList<>(matcher.groupCount() + 1);
+			for (int i = 0; i <= matcher.groupCount(); i++) {
+				groups.add(matcher.group(i));
+			}
+
+			String text = plan.render(groups, full);
+
+			Set<String> group = new LinkedHashSet<>();
+			for (String str : StringUtils.split(text, "\n")) {
+				if (StringUtils.isNotBlank(str)) {
+					group.add(StringUtils.trim(str));
+				}
+			}
+
+			if (group.size() > 0) {
+				if (replaces == null) {
+					replaces = new LinkedHashMap<>();
+				}
+				replaces.put(groups.get(0), group);
+			}
+		}
+
+		// don't keep the text referenced from the thread
+		matcher.reset("");
+		
+		return replaces == null ? Collections.<String, Collection<String>>emptyMap() : replaces;
+	}
+
+}
@@ -1,30 +1,20 @@
 package me.osm.gazetteer.search.query;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,10 +34,9 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 	// Optional terms
 	public static final Set<String> optionals = new HashSet<String>(); 
 	
-	// One regexp for all optional regexps
-	public static volatile Pattern optRegexp;
+	// Optional regexps and literal terms from the `~` entries
+	public static final TermMatcher optTerms;
 
-	private static final Pattern groupPattern = Pattern.compile("GROUP[0-9]+");
 	
 	// Terms synonims (for street names mainly)
 	public static final Map<String, String> synonims = new HashMap<>();
@@ -58,39 +47,78 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 	// Regexp synonims expansions for housenumbers
 	public static final List<Replacer> hnReplacers = new ArrayList<>();
 	
-	// One regexp for all stop words and regexp
-	public static volatile Pattern stopRegexp;
+	private static final ReplacersPrefilter streetPrefilter;
+	private static final ReplacersPrefilter hnPrefilter;
 	
-	static {
-		try {
-			File cfgFile = new File("config/QueryAnalizer.json");
-			JSONObject cfg = new JSONObject(IOUtils.toString(new FileReader(cfgFile)));
-
-			tokenSeparators = cfg.getString("tokenSeparators");
-			removeChars = cfg.getString("removeChars");
-
-			JSONObject charReplacesJson = cfg.optJSONObject("charReplaces");
-			if (charReplacesJson != null) {
-				for (String key : charReplacesJson.keySet()) {
-					charReplaces.add(new String[] {key, charReplacesJson.getString(key)});
-				}
-			}
-		}
-		catch (JSONException e) {
-			throw new RuntimeException("Can't parse config/QueryAnalizer.json cfg", e);
+	// Stop words and regexps
+	public static final TermMatcher stopTerms;
+	
+	// Time and steps limits for regexps, 0 - no limit
+	private static volatile long budgetMs = 100;
+	private static volatile long budgetSteps = 0;
+	
+	// Queries analyzed with plain tokenization, because of regexps budget,
+	// running total is logged with every degraded query
+	private static final LongAdder degradedQueries = new LongAdder();
+	
+	private static final CharNormalizer normalizer;
+	
+	// " GROUP0", " GROUP1" ... substituted for the matched groups
+	private static final String[] ALIASES = new String[32];
+	
+	/**
+	 * Collections reused by every query of a thread,
+	 * nothing from here is referenced by the resulting Query
+	 * */
+	private static final class Scratch {
+		private final LinkedHashMap<String, Collection<String>> group2variants = new LinkedHashMap<>();
+		private final Set<String> streetMatches = new HashSet<>();
+		private final Set<String> hnMatches = new HashSet<>();
+		private final Set<String> matchedOptTokens = new HashSet<>();
+		private final List<String> groupKeys = new ArrayList<>();
+		
+		private void clear() {
+			group2variants.clear();
+			streetMatches.clear();
+			hnMatches.clear();
+			matchedOptTokens.clear();
+			groupKeys.clear();
 		}
-		catch (FileNotFoundException e) {
-			throw new RuntimeException("Can't read cfg file config/QueryAnalizer.json", e);
-		} catch (IOException e) {
-			throw new RuntimeException("Can't read cfg file config/QueryAnalizer.json", e);
+	}
+	
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+	
+	static {
+		ConfigBundle cfg = ConfigBundle.get();
+		
+		tokenSeparators = cfg.getTokenSeparators();
+		removeChars = cfg.getRemoveChars();
+		charReplaces.addAll(cfg.getCharReplaces());
+		normalizer = new CharNormalizer(charReplaces);
+		
+		for (int i = 0; i < ALIASES.length; i++) {
+			ALIASES[i] = " GROUP" + i;
 		}
 		
-		readOptionals();
-		readStopWords();
-		readSynonims();
+		optionals.addAll(cfg.getOptionalTerms());
+		optTerms = TermMatcher.compile(cfg.getOptionalPatterns());
+		stopTerms = TermMatcher.compile(cfg.getStopPatterns());
+		synonims.putAll(cfg.getSynonims());
 
 		ReplacersCompiler.compile(streetReplacers, new File("config/replacers/search/requiredSearchReplacers"));
 		ReplacersCompiler.compile(hnReplacers, new File("config/replacers/search/hnSearchReplacers"));
+		
+		streetPrefilter = ReplacersCompiler.prefilter(streetReplacers);
+		hnPrefilter = ReplacersCompiler.prefilter(hnReplacers);
+	}
+	
+	/**
+	 * Limit time (ms) and number of chars read by regexps
+	 * for one query, 0 means no limit.
+	 * */
+	public static void setRegexBudget(long timeoutMs, long maxSteps) {
+		budgetMs = timeoutMs;
+		budgetSteps = maxSteps;
 	}
 	
 	@Override
@@ -100,38 +128,49 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 			return null;
 		}
 		
-		String original = q;
+		try {
+			return analyze(q, QueryBudget.start(budgetMs, budgetSteps));
+		}
+		catch (QueryBudget.Exceeded e) {
+			degradedQueries.increment();
+			log.warn("Query '{}' analyzed without replacers: {}. Degraded queries: {}", 
+					q, e.getMessage(), degradedQueries.sum());
+			
+			return tokenize(q);
+		}
+	}
+	
+	private Query analyze(String q, QueryBudget budget) {
 		
-		q = q.toLowerCase();
+		String original = q;
 		
 		// It's too aggressive: й => и
 		// q = IndexAnalyzer.removeDiactrics(q);
 		
-		for(String[] r : charReplaces) {
-			q = StringUtils.replace(q, r[0], r[1]);
-		}
+		q = normalizer.normalize(q);
 		
 		Set<String> removed = new LinkedHashSet<>();
-		Matcher stopMatcher = stopRegexp.matcher(q);
-		while (stopMatcher.find()) {
-			removed.add(stopMatcher.group(0));
-		}
-
-		q = stopRegexp.matcher(q).replaceAll("");
+		q = stopTerms.remove(budget.wrap(q), removed);
 
-		LinkedHashMap<String, Collection<String>> group2variants = new LinkedHashMap<>();
+		Scratch scratch = SCRATCH.get();
+		scratch.clear();
 		
-		Set<String> streetMatches = new HashSet<>();
-		Set<String> hnMatches = new HashSet<>();
+		LinkedHashMap<String, Collection<String>> group2variants = scratch.group2variants;
 		
-		for(Replacer r : streetReplacers) {
-			Map<String, Collection<String>> replaceGroups = r.replaceGroups(q);
+		Set<String> streetMatches = scratch.streetMatches;
+		Set<String> hnMatches = scratch.hnMatches;
+		
+		// Skip replacers written for other languages
+		int scripts = Scripts.classify(q);
+		
+		for(Replacer r : streetPrefilter.candidates(q, scripts)) {
+			Map<String, Collection<String>> replaceGroups = r.replaceGroups(budget.wrap(q));
 			group2variants.putAll(replaceGroups);
 			streetMatches.addAll(replaceGroups.keySet());
 		}
 		
-		for(Replacer r : hnReplacers) {
-			Map<String, Collection<String>> replaceGroups = r.replaceGroups(q);
+		for(Replacer r : hnPrefilter.candidates(q, scripts)) {
+			Map<String, Collection<String>> replaceGroups = r.replaceGroups(budget.wrap(q));
 			for (Entry<String, Collection<String>> entry : replaceGroups.entrySet()) {
 				if(group2variants.get(entry.getKey()) != null) {
 					group2variants.get(entry.getKey()).addAll(entry.getValue());
@@ -143,25 +182,19 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 			hnMatches.addAll(replaceGroups.keySet());
 		}
 		
-		HashMap<String, String> groupAliases = new HashMap<>();
+		// Group key by alias number
+		List<String> groupKeys = scratch.groupKeys;
 		
-		int i = 0;
-		for(Entry<String, Collection<String>> gk : group2variants.entrySet()) {
-			String alias = "GROUP" + i++;
-			groupAliases.put(alias, gk.getKey());
-
-			q = StringUtils.replace(q, gk.getKey(), " " + alias);
+		for(String key : group2variants.keySet()) {
+			q = StringUtils.replace(q, key, alias(groupKeys.size()));
+			groupKeys.add(key);
 		}
 		
-		Set<String> matchedOptTokens = new HashSet<>();
+		Set<String> matchedOptTokens = scratch.matchedOptTokens;
 
-		if(optRegexp != null) {
-			Matcher matcher = optRegexp.matcher(q);
-			while(matcher.find()) {
-				 String group = matcher.group(0);
-				 for(String t : StringUtils.split(group, tokenSeparators)) {
-					 matchedOptTokens.add(t);
-				 }
+		for(String group : optTerms.findAll(budget.wrap(q))) {
+			for(String t : StringUtils.split(group, tokenSeparators)) {
+				matchedOptTokens.add(t);
 			}
 		}
 		
@@ -176,17 +209,17 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 			boolean matchedHN = false;
 			boolean matchedStreet = false;
 
-			List<String> variants = new ArrayList<>();
+			List<String> variants = Collections.emptyList();
 			if(StringUtils.startsWith(t, "GROUP")) {
-				Matcher matcher = groupPattern.matcher(t);
-				if(matcher.find()) {
-					String matched = matcher.group();
-					String groupKey = groupAliases.get(matched);
+				String matched = findAlias(t);
+				if(matched != null) {
+					String groupKey = groupKey(groupKeys, matched);
 					if(groupKey != null) {
 						String tail = StringUtils.remove(t, matched);
 						t = groupKey + tail;
-						variants = new ArrayList<>();
-						for(String var : group2variants.get(groupKey)) {
+						Collection<String> groupVariants = group2variants.get(groupKey);
+						variants = new ArrayList<>(groupVariants.size());
+						for(String var : groupVariants) {
 							variants.add(var + tail);
 						}
 						matchedHN = hnMatches.contains(groupKey);
@@ -197,24 +230,40 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 			
 			if (synonims.get(t) != null) {
 				matchedStreet = true;
+				if (variants.isEmpty()) {
+					variants = new ArrayList<>();
+				}
 				variants.addAll(findSynonims(t));
 			}
 			
-			String withoutNumbers = StringUtils.replaceChars(t, "0123456789", "");
+			int digits = 0;
+			boolean numbersOnly = true;
+			for (int c = 0; c < t.length(); c++) {
+				char ch = t.charAt(c);
+				if (ch >= '0' && ch <= '9') {
+					digits++;
+				}
+				else if (!Character.isWhitespace(ch)) {
+					numbersOnly = false;
+				}
+			}
 			
-			boolean hasNumbers = withoutNumbers.length() != t.length();
-			boolean numbersOnly = StringUtils.isBlank(withoutNumbers);
+			boolean hasNumbers = digits > 0;
 			// TODO: make these parameters optional
 			boolean optional = optionals.contains(StringUtils.lowerCase(t)) 
-					|| (!hasNumbers && withoutNumbers.length() < 3)
+					|| (!hasNumbers && t.length() < 3)
 					|| matchedOptTokens.contains(t);
 			
 			// Any of synonyms or replacements is optional 
-			optional = optional || variants.stream().anyMatch(v -> optionals.contains(StringUtils.lowerCase(v)));
+			for (int v = 0; v < variants.size() && !optional; v++) {
+				optional = optionals.contains(StringUtils.lowerCase(variants.get(v)));
+			}
 			
 			result.add(new QToken(t, variants, hasNumbers, numbersOnly, optional, matchedHN, matchedStreet));
 		}
 		
+		scratch.clear();
+		
 		Query query = new Query(result, original, varyOriginal(original), removed);
 		
 		log.trace("Query: {}", query.print());
@@ -222,45 +271,60 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 		return query;
 	}
 	
-	private static void readSynonims() {
-		File synonimsd = new File("config/synonims");
-		List<File> synonimFiles = Arrays.stream(synonimsd.listFiles())
-			.filter(f -> f.getName().endsWith(".syn"))
-			.collect(Collectors.toList());
-		
-		for(File f : synonimFiles) {
-			String encoding = ReplacersCompiler.getEncoding(f);
-			try {
-				for(String line : (List<String>)FileUtils.readLines(f, encoding)) {
-					if (!line.startsWith("#") && StringUtils.isNotBlank(line)) {
-						
-						List<String> synonim = Arrays.stream(StringUtils.split(line, "="))
-								.map(s -> s.trim().toLowerCase())
-								.filter(s -> StringUtils.isNotBlank(s))
-								.collect(Collectors.toList());
-						
-						if (synonim.size() >= 2) {
-							Iterator<String> i = synonim.iterator();
-							String synA = i.next();
-							String synB = i.next();
-							
-							synonims.put(synA, synB);
-							while(i.hasNext()) {
-								synA = synB;
-								synB = i.next();
-								synonims.put(synA, synB);
-							}
-							synonims.put(synB, synonim.get(0));
-						}
-					}
-				}
+	private static String alias(int i) {
+		return i < ALIASES.length ? ALIASES[i] : " GROUP" + i;
+	}
+
+	/**
+	 * Same as GROUP[0-9]+ regexp find
+	 * */
+	private static String findAlias(String t) {
+		int from = 0;
+		while ((from = t.indexOf("GROUP", from)) >= 0) {
+			int end = from + 5;
+			while (end < t.length() && t.charAt(end) >= '0' && t.charAt(end) <= '9') {
+				end++;
 			}
-			catch (Exception e) {
-				throw new Error("Error reading synonims file " + f, e);
+			if (end > from + 5) {
+				return t.substring(from, end);
 			}
+			from++;
 		}
+		return null;
 	}
-
+	
+	private static String groupKey(List<String> groupKeys, String alias) {
+		String number = alias.substring(5);
+		if (number.length() > 9 || (number.length() > 1 && number.charAt(0) == '0')) {
+			return null;
+		}
+		int i = Integer.parseInt(number);
+		return i < groupKeys.size() ? groupKeys.get(i) : null;
+	}
+	
+	/**
+	 * Plain tokens without stop terms removal and replacers
+	 * */
+	private Query tokenize(String original) {
+		String q = normalizer.normalize(original);
+		
+		q = StringUtils.replaceChars(q, removeChars, null);
+		
+		String[] tokens = StringUtils.split(q, tokenSeparators);
+		List<QToken> result = new ArrayList<QToken>(tokens.length);
+		for(String t : tokens) {
+			String withoutNumbers = StringUtils.replaceChars(t, "0123456789", "");
+			
+			boolean hasNumbers = withoutNumbers.length() != t.length();
+			boolean numbersOnly = StringUtils.isBlank(withoutNumbers);
+			boolean optional = optionals.contains(t) || (!hasNumbers && withoutNumbers.length() < 3);
+			
+			result.add(new QToken(t, new ArrayList<String>(), hasNumbers, numbersOnly, optional, false, false));
+		}
+		
+		return new Query(result, original, varyOriginal(original), new LinkedHashSet<String>());
+	}
+	
 	private Set<String> findSynonims(String t) {
 		Set<String> result = new HashSet<String>(1);
 		
@@ -279,69 +343,6 @@ public class QueryAnalyzerImpl implements QueryAnalyzer {
 		return result;
 	}
 
-	private static void readStopWords() {
-		Set<String> patterns = new HashSet<>();
-		File dir = new File("config/stop-terms/");
-		
-		for(String line : readTermsD(dir)) {
-			patterns.add(StringUtils.substringAfter(line, "~"));
-		}
-		
-		if(!patterns.isEmpty()) {
-			List<String> t = new ArrayList<>(patterns.size());
-			for(String s : patterns) {
-				t.add("(" + s + ")");
-			}
-			
-			stopRegexp = Pattern.compile(StringUtils.join(t, "|"), Pattern.CASE_INSENSITIVE);
-		}
-	}
-	
-	@SuppressWarnings("unchecked")
-	private static void readOptionals() {
-		Set<String> patterns = new HashSet<>();
-		File dir = new File("config/optional-terms/");
-		
-		for(String line : readTermsD(dir)) {
-			if(StringUtils.startsWith(line, "~")) {
-				patterns.add(StringUtils.substringAfter(line, "~"));
-			}
-			else {
-				optionals.add(StringUtils.lowerCase(line));
-			}
-		}
-		
-		if(!patterns.isEmpty()) {
-			List<String> t = new ArrayList<>(patterns.size());
-			for(String s : patterns) {
-				t.add("(" + s + ")");
-			}
-			
-			optRegexp = Pattern.compile(StringUtils.join(t, "|"), Pattern.CASE_INSENSITIVE);
-		}
-	}
-
-	private static Set<String> readTermsD(File dir) {
-		try {
-			LinkedHashSet<String> lines = new LinkedHashSet<>();
-			for (File f : dir.listFiles((d, name) -> name.endsWith(".terms"))) {
-				String encoding = ReplacersCompiler.getEncoding(f);
-				int rules = 0;
-				for(String option : (List<String>)FileUtils.readLines(f, encoding)) {
-					if(!StringUtils.startsWith(option, "#") && StringUtils.isNotBlank(option)) {
-						lines.add(option);
-						rules++;
-					}
-				}
-				log.info("Read {} optional terms from {}, (encoding: {})", rules, f, encoding);
-			}
-			return lines;
-		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-	}
-
 	private Collection<String> varyOriginal(String original) {
 		Collection<String> result = new ArrayList<>();
 		
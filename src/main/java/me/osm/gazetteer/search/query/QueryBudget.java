@@ -0,0 +1,113 @@
+package me.osm.gazetteer.search.query;
+
+/**
+ * Time and step limits for regexps evaluated against user input.
+ *
+ * java.util.regex can't be interrupted, but it reads the input
+ * through CharSequence.charAt, so the input wrapped by
+ * {@link #wrap(String)} checks the budget while the matcher works
+ * and throws {@link Exceeded} when it's spent.
+ *
+ * One budget per request, not thread safe.
+ * */
+public final class QueryBudget {
+
+	/**
+	 * Budget is spent
+	 * */
+	public static final class Exceeded extends RuntimeException {
+
+		private static final long serialVersionUID = -4317356624521190573L;
+
+		public Exceeded(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	// check clock every 1024 reads
+	private static final int CLOCK_MASK = 0x3FF;
+
+	private static final QueryBudget UNLIMITED = new QueryBudget(0, 0);
+
+	private final long deadline;
+	private final long maxSteps;
+	private long steps;
+
+	private QueryBudget(long timeoutMs, long maxSteps) {
+		this.deadline = timeoutMs > 0 ? System.nanoTime() + timeoutMs * 1000000L : 0;
+		this.maxSteps = maxSteps;
+	}
+
+	/**
+	 * @param timeoutMs 0 for no time limit
+	 * @param maxSteps max number of chars read by the matchers, 0 for no limit
+	 * */
+	public static QueryBudget start(long timeoutMs, long maxSteps) {
+		if (timeoutMs <= 0 && maxSteps <= 0) {
+			return UNLIMITED;
+		}
+		return new QueryBudget(timeoutMs, maxSteps);
+	}
+
+	/**
+	 * @return text for Pattern.matcher which checks the budget
+	 * */
+	public CharSequence wrap(String text) {
+		if (this == UNLIMITED) {
+			return text;
+		}
+		return new Guarded(text, 0, text.length());
+	}
+
+	public long getSteps() {
+		return steps;
+	}
+
+	private void step() {
+		steps++;
+		if (maxSteps > 0 && steps > maxSteps) {
+			throw new Exceeded("Regexp steps limit " + maxSteps + " exceeded");
+		}
+		if (deadline != 0 && (steps & CLOCK_MASK) == 0 && System.nanoTime() > deadline) {
+			throw new Exceeded("Regexp time limit exceeded after " + steps + " steps");
+		}
+	}
+
+	private final class Guarded implements CharSequence {
+
+		private final String text;
+		private final int from;
+		private final int to;
+
+		private Guarded(String text, int from, int to) {
+			this.text = text;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public int length() {
+			return to - from;
+		}
+
+		@Override
+		public char charAt(int index) {
+			step();
+			return text.charAt(from + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length() || start > end) {
+				throw new IndexOutOfBoundsException("[" + start + ", " + end + ") of " + length());
+			}
+			return new Guarded(text, from + start, from + end);
+		}
+
+		@Override
+		public String toString() {
+			return text.substring(from, to);
+		}
+	}
+
+}
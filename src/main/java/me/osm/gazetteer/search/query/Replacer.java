@@ -11,4 +11,12 @@ public interface Replacer {
 
 	public Map<String, Collection<String>> replaceGroups(String hn);
 
+	/**
+	 * Same as {@link #replaceGroups(String)}, but the regexp reads
+	 * the text through CharSequence, see {@link QueryBudget#wrap(String)}
+	 * */
+	public default Map<String, Collection<String>> replaceGroups(CharSequence hn) {
+		return replaceGroups(hn.toString());
+	}
+
 }
@@ -8,49 +8,173 @@ import static org.apache.commons.lang3.StringUtils.substringBefore;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.tools.GroovyClass;
 
 import groovy.lang.GroovyClassLoader;
+import me.osm.gazetteer.search.query.SubstitutionPlan.UnsupportedTemplateException;
 
 public class ReplacersCompiler {
 
-	private final static GroovyClassLoader gcl = new GroovyClassLoader(ReplacersCompiler.class.getClassLoader());
-	private static final ReplacersFactory replacersFactory;
-	static {
-		gcl.addClasspath("lib");
+	private static final Logger log = LoggerFactory.getLogger(ReplacersCompiler.class);
+
+	public static final String FACTORY_SOURCE = "config/replacers/ReplacersFactory.groovy";
+
+	/**
+	 * Groovy factory is loaded only if some template needs it,
+	 * from the classes of the config bundle if there are any
+	 * */
+	private static final class GroovyFactoryHolder {
 		
-		try {
-			Class<?> clazz = gcl.parseClass(new File("config/replacers/ReplacersFactory.groovy"));
-			Object aScript = clazz.newInstance();
-			if(aScript instanceof ReplacersFactory) {
-				replacersFactory = (ReplacersFactory) aScript;
+		private final static GroovyClassLoader gcl = new GroovyClassLoader(ReplacersCompiler.class.getClassLoader());
+		private static final ReplacersFactory replacersFactory;
+		static {
+			gcl.addClasspath("lib");
+			
+			try {
+				Map<String, byte[]> classes = ConfigBundle.get().getFactoryClasses();
+				Class<?> clazz = classes.isEmpty() 
+						? gcl.parseClass(new File(FACTORY_SOURCE)) 
+						: loadFactory(classes);
+				Object aScript = clazz.newInstance();
+				if(aScript instanceof ReplacersFactory) {
+					replacersFactory = (ReplacersFactory) aScript;
+				}
+				else {
+					throw new RuntimeException("Can't load ReplacersFactory");
+				}
 			}
-			else {
-				throw new RuntimeException("Can't load ReplacersFactory");
+			catch (Exception e) {
+				throw new RuntimeException(e);
 			}
 		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
+	}
+	
+	/**
+	 * Define compiled factory classes, without Groovy compilation
+	 * */
+	private static Class<?> loadFactory(Map<String, byte[]> classes) throws ClassNotFoundException {
+		GroovyClassLoader loader = new GroovyClassLoader(GroovyFactoryHolder.gcl) {
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException {
+				byte[] bytes = classes.get(name);
+				if (bytes != null) {
+					return defineClass(name, bytes, 0, bytes.length);
+				}
+				return super.findClass(name);
+			}
+		};
+		
+		for (String name : classes.keySet()) {
+			Class<?> clazz = loader.loadClass(name);
+			if (ReplacersFactory.class.isAssignableFrom(clazz)) {
+				return clazz;
+			}
+		}
+		
+		throw new ClassNotFoundException("No ReplacersFactory in the config bundle");
+	}
+	
+	/**
+	 * Compile ReplacersFactory.groovy to be saved in the config bundle
+	 * 
+	 * @return class name to bytecode
+	 * */
+	public static Map<String, byte[]> compileFactory() {
+		CompilerConfiguration configuration = new CompilerConfiguration();
+		configuration.setClasspath("lib");
+		
+		CompilationUnit unit = new CompilationUnit(configuration, null, 
+				new GroovyClassLoader(ReplacersCompiler.class.getClassLoader()));
+		unit.addSource(new File(FACTORY_SOURCE));
+		unit.compile(Phases.CLASS_GENERATION);
+		
+		Map<String, byte[]> classes = new LinkedHashMap<>();
+		for (Object c : unit.getClasses()) {
+			GroovyClass groovyClass = (GroovyClass) c;
+			classes.put(groovyClass.getName(), groovyClass.getBytes());
+		}
+		return classes;
+	}
+	
+	/**
+	 * Create replacer with precompiled template, templates
+	 * with groovy code are handled by ReplacersFactory.groovy
+	 * */
+	public static Replacer createReplacer(String pattern, String template) {
+		return createReplacer(pattern, template, true);
+	}
+	
+	/**
+	 * @param precompile compile the template into substitution plan when possible,
+	 * otherwise it's evaluated by Groovy
+	 * */
+	public static Replacer createReplacer(String pattern, String template, boolean precompile) {
+		if (precompile) {
+			try {
+				return new PlanReplacer(pattern, SubstitutionPlan.compile(template));
+			}
+			catch (UnsupportedTemplateException e) {
+				log.debug("Use groovy template for {}: {}", pattern, e.getMessage());
+			}
 		}
+		
+		return GroovyFactoryHolder.replacersFactory.createReplacer(pattern, template);
 	}
 	
 	/**
 	 * Read replacers from file, following `@include` directives
 	 * and compile them.
+	 * 
+	 * Rules are taken from the compiled config bundle if it's up to date.
 	 * */
 	public static void compile(List<Replacer> replacers, File src) {
+		compile(replacers, src, true);
+	}
+
+	/**
+	 * @param precompile compile templates into substitution plans when possible,
+	 * otherwise all the templates are evaluated by Groovy
+	 * */
+	public static void compile(List<Replacer> replacers, File src, boolean precompile) {
+		for (String[] rule : ConfigBundle.get().getRules(src)) {
+			add(replacers, rule[0], rule[1], precompile);
+		}
+	}
+
+	/**
+	 * Read pattern and template pairs from file, following `@include` directives.
+	 * */
+	public static void readRules(List<String[]> rules, File src) {
 		try {
 			List<String> configContent = FileUtils.readLines(src, getEncoding(src));
-			compile(replacers, configContent);
+			readRules(rules, configContent);
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Build a structure which selects replacers
+	 * possibly matching a string, in one pass over it.
+	 * */
+	public static ReplacersPrefilter prefilter(List<Replacer> replacers) {
+		return new ReplacersPrefilter(replacers);
+	}
+
 	/**
 	 * Search for comment string with encoding:
 	 * `# coding: utf-8`
@@ -80,6 +204,16 @@ public class ReplacersCompiler {
 	public static void compile(List<Replacer> replacers,
 			List<String> text) {
 		
+		List<String[]> rules = new ArrayList<>();
+		readRules(rules, text);
+		for (String[] rule : rules) {
+			add(replacers, rule[0], rule[1], true);
+		}
+	}
+	
+	private static void readRules(List<String[]> rules,
+			List<String> text) {
+		
 		State state = new State();
 		
 		for(String line : text) {
@@ -98,7 +232,7 @@ public class ReplacersCompiler {
 					}
 					else {
 						state.multiline = false;
-						add(replacers, state.pattern, state.sb.toString());
+						rule(rules, state.pattern, state.sb.toString());
 						state.sb = new StringBuilder();
 					}
 				}
@@ -106,7 +240,7 @@ public class ReplacersCompiler {
 					state.sb.append(line).append("\n");
 				}
 				else {
-					add(replacers, state.pattern, state.template);
+					rule(rules, state.pattern, state.template);
 				}
 			}
 			else if(startsWith(line, "@")) {
@@ -118,24 +252,31 @@ public class ReplacersCompiler {
 						if (folder.isDirectory()) {
 							for(File f : folder.listFiles()) {
 								if (!f.isDirectory()) {
-									compile(replacers, f);
+									readRules(rules, f);
 								}
 							}
 						}
 					}
 					else {
-						compile(replacers, new File(include));
+						readRules(rules, new File(include));
 					}
 				}
 			}
 		}
 	}
 
-	private static void add(List<Replacer> replacers, String pattern,
+	private static void rule(List<String[]> rules, String pattern,
 			String template) {
+		if(StringUtils.isNotBlank(pattern)) {
+			rules.add(new String[] {pattern, template});
+		}
+	}
+
+	private static void add(List<Replacer> replacers, String pattern,
+			String template, boolean precompile) {
 		try {
 			if(StringUtils.isNotBlank(pattern)) {
-				replacers.add(replacersFactory.createReplacer(pattern, template));
+				replacers.add(createReplacer(pattern, template, precompile));
 			}
 		}
 		catch (Exception e) {
@@ -0,0 +1,92 @@
+package me.osm.gazetteer.search.query;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects replacers which could match a string without running their regexps.
+ *
+ * Replacers are tagged by the scripts they require (see {@link Scripts}),
+ * for every combination of scripts of an input string there is a routed
+ * subset of replacers, so rules for one language are not even
+ * considered for strings in another one.
+ *
+ * Requirements of the routed replacer patterns are checked by
+ * {@link PatternPrefilter} in one pass over the string.
+ *
+ * Patterns are expected to be compiled without flags, like
+ * config/replacers/ReplacersFactory.groovy does. Replacers with
+ * patterns which can't be analyzed are always selected.
+ *
+ * Immutable, thread safe.
+ * */
+public class ReplacersPrefilter {
+
+	private final List<Replacer> replacers;
+
+	/** Required scripts of every replacer */
+	private final int[] scripts;
+
+	/** Input scripts to indexes of applicable replacers */
+	private final int[][] routes = new int[Scripts.ALL + 1][];
+	private final PatternPrefilter[] prefilters = new PatternPrefilter[Scripts.ALL + 1];
+
+	ReplacersPrefilter(List<Replacer> replacers) {
+		this.replacers = new ArrayList<>(replacers);
+		this.scripts = new int[replacers.size()];
+		for (int i = 0; i < replacers.size(); i++) {
+			scripts[i] = Scripts.required(replacers.get(i).getPattern());
+		}
+
+		// Equal subsets share prefilter
+		Map<List<Integer>, PatternPrefilter> subsets = new HashMap<>();
+		for (int input = 0; input <= Scripts.ALL; input++) {
+			List<Integer> route = new ArrayList<>();
+			List<String> patterns = new ArrayList<>();
+			for (int i = 0; i < scripts.length; i++) {
+				if ((scripts[i] & ~input) == 0) {
+					route.add(i);
+					patterns.add(replacers.get(i).getPattern());
+				}
+			}
+
+			routes[input] = route.stream().mapToInt(Integer::intValue).toArray();
+			prefilters[input] = subsets.computeIfAbsent(route, k -> new PatternPrefilter(patterns, false));
+		}
+	}
+
+	/**
+	 * @return replacers which could match the text, in the original order
+	 * */
+	public List<Replacer> candidates(String text) {
+		return candidates(text, Scripts.classify(text));
+	}
+
+	/**
+	 * @param textScripts scripts of the text, see {@link Scripts#classify(CharSequence)}
+	 * @return replacers which could match the text, in the original order
+	 * */
+	public List<Replacer> candidates(String text, int textScripts) {
+		int[] route = routes[textScripts & Scripts.ALL];
+		if (route.length == 0) {
+			return Collections.emptyList();
+		}
+
+		BitSet found = prefilters[textScripts & Scripts.ALL].candidates(text);
+		List<Replacer> result = new ArrayList<>(found.cardinality());
+		for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+			result.add(replacers.get(route[i]));
+		}
+
+		return result;
+	}
+
+	public List<Replacer> getReplacers() {
+		return Collections.unmodifiableList(replacers);
+	}
+
+}
@@ -0,0 +1,98 @@
+package me.osm.gazetteer.search.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writing systems of strings and regexps as a bit mask.
+ *
+ * Used to skip replacers written for one language
+ * (say russian ordinals) on strings in another script.
+ * */
+public final class Scripts {
+
+	public static final int LATIN = 1;
+	public static final int CYRILLIC = 2;
+
+	// letters of any other script
+	public static final int OTHER = 4;
+
+	public static final int ALL = LATIN | CYRILLIC | OTHER;
+
+	private Scripts() {
+
+	}
+
+	/**
+	 * @return script bit of a letter, 0 for digits, spaces, punctuation etc.
+	 * */
+	public static int of(char c) {
+		if (c < 128) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ? LATIN : 0;
+		}
+		if (!Character.isLetter(c)) {
+			return 0;
+		}
+		switch (Character.UnicodeScript.of(c)) {
+		case LATIN:
+			return LATIN;
+		case CYRILLIC:
+			return CYRILLIC;
+		default:
+			return OTHER;
+		}
+	}
+
+	/**
+	 * @return scripts of the letters of the text
+	 * */
+	public static int classify(CharSequence text) {
+		int result = 0;
+		for (int i = 0; i < text.length() && result != ALL; i++) {
+			result |= of(text.charAt(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Scripts which must be present in any string matched by the pattern.
+	 *
+	 * Based on {@link PatternPrefilter.Requirements}, a requirement
+	 * contributes its script if all of its alternatives have letters
+	 * of that script. 0 means the pattern may match text in any script.
+	 * */
+	public static int required(String pattern) {
+		int result = 0;
+		for (Object r : PatternPrefilter.Requirements.extract(pattern)) {
+			if (r instanceof PatternPrefilter.CharClass) {
+				result |= ((PatternPrefilter.CharClass) r).script();
+			}
+			else {
+				@SuppressWarnings("unchecked")
+				Set<String> literals = (Set<String>) r;
+				int common = ALL;
+				for (String literal : literals) {
+					common &= classify(literal);
+				}
+				result |= common;
+			}
+		}
+		return result;
+	}
+
+	public static String toString(int scripts) {
+		List<String> names = new ArrayList<>(3);
+		if ((scripts & LATIN) != 0) {
+			names.add("latin");
+		}
+		if ((scripts & CYRILLIC) != 0) {
+			names.add("cyrillic");
+		}
+		if ((scripts & OTHER) != 0) {
+			names.add("other");
+		}
+		return names.isEmpty() ? "any" : String.join("+", names);
+	}
+
+}
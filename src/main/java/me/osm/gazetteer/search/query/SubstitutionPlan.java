@@ -0,0 +1,504 @@
+package me.osm.gazetteer.search.query;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Replacer template compiled into a list of literal and expression parts.
+ *
+ * Understands the subset of SimpleTemplateEngine syntax used by
+ * the replacers: ${...} expressions with groups[N], full, string and
+ * integer literals, SU.method(...) calls, method calls on values
+ * with . and ?. , + concatenation and ?: operator.
+ *
+ * Templates with scriptlets (&lt;% %&gt;), $name references or
+ * escapes are rejected by {@link #compile(String)}, they should be
+ * evaluated by Groovy.
+ *
+ * Values are rendered like GString does it, null as "null".
+ * */
+public final class SubstitutionPlan {
+
+	/**
+	 * Template uses syntax not supported by the plan
+	 * */
+	public static final class UnsupportedTemplateException extends Exception {
+
+		private static final long serialVersionUID = 3079522373617003811L;
+
+		public UnsupportedTemplateException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Part of the plan evaluated against match groups
+	 * */
+	private interface Expr {
+		Object eval(List<String> groups, String full);
+	}
+
+	private final Object[] parts;
+
+	private SubstitutionPlan(Object[] parts) {
+		this.parts = parts;
+	}
+
+	public static SubstitutionPlan compile(String template) throws UnsupportedTemplateException {
+		if (template == null) {
+			throw new UnsupportedTemplateException("Empty template");
+		}
+		if (template.contains("<%")) {
+			throw new UnsupportedTemplateException("Scriptlets are not supported");
+		}
+
+		List<Object> parts = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+
+		int i = 0;
+		while (i < template.length()) {
+			char c = template.charAt(i);
+			if (c == '$' && template.startsWith("${", i)) {
+				int end = findExpressionEnd(template, i + 2);
+				if (literal.length() > 0) {
+					parts.add(literal.toString());
+					literal.setLength(0);
+				}
+				parts.add(new Parser(template.substring(i + 2, end)).parse());
+				i = end + 1;
+			}
+			else if (c == '$' || c == '\\') {
+				throw new UnsupportedTemplateException("Unsupported character " + c);
+			}
+			else {
+				literal.append(c);
+				i++;
+			}
+		}
+
+		if (literal.length() > 0) {
+			parts.add(literal.toString());
+		}
+
+		return new SubstitutionPlan(parts.toArray());
+	}
+
+	private static int findExpressionEnd(String template, int from) throws UnsupportedTemplateException {
+		char quote = 0;
+		int depth = 0;
+		for (int i = from; i < template.length(); i++) {
+			char c = template.charAt(i);
+			if (quote != 0) {
+				if (c == '\\') {
+					i++;
+				}
+				else if (c == quote) {
+					quote = 0;
+				}
+			}
+			else if (c == '"' || c == '\'') {
+				quote = c;
+			}
+			else if (c == '{') {
+				depth++;
+			}
+			else if (c == '}') {
+				if (depth == 0) {
+					return i;
+				}
+				depth--;
+			}
+		}
+		throw new UnsupportedTemplateException("Not closed expression");
+	}
+
+	public String render(List<String> groups, String full) {
+		StringBuilder sb = new StringBuilder();
+		for (Object part : parts) {
+			if (part instanceof String) {
+				sb.append((String) part);
+			}
+			else {
+				sb.append(String.valueOf(((Expr) part).eval(groups, full)));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Groovy truth
+	 * */
+	private static boolean asBoolean(Object v) {
+		if (v == null) {
+			return false;
+		}
+		if (v instanceof Boolean) {
+			return (Boolean) v;
+		}
+		if (v instanceof CharSequence) {
+			return ((CharSequence) v).length() > 0;
+		}
+		if (v instanceof Number) {
+			return ((Number) v).doubleValue() != 0;
+		}
+		if (v instanceof Collection) {
+			return !((Collection<?>) v).isEmpty();
+		}
+		return true;
+	}
+
+	private static Object plus(Object l, Object r) {
+		if (l instanceof Integer && r instanceof Integer) {
+			return (Integer) l + (Integer) r;
+		}
+		return String.valueOf(l) + String.valueOf(r);
+	}
+
+	/**
+	 * Overloads of a method for one class
+	 * */
+	private static final class Candidates {
+
+		private final Class<?> clazz;
+		private final Method[] methods;
+
+		Candidates(Class<?> clazz, Method[] methods) {
+			this.clazz = clazz;
+			this.methods = methods;
+		}
+	}
+
+	/**
+	 * Method call with overloads resolved by the runtime types of the arguments
+	 * */
+	private static final class Call implements Expr {
+
+		private final Expr target;
+		private final boolean safe;
+		private final String name;
+		private final Expr[] args;
+
+		private final Method[] staticCandidates;
+
+		// Candidates for the class of the last target, shared by threads
+		private volatile Candidates last;
+
+		/**
+		 * @param target null for StringUtils static method
+		 * */
+		Call(Expr target, boolean safe, String name, Expr[] args) throws UnsupportedTemplateException {
+			this.target = target;
+			this.safe = safe;
+			this.name = name;
+			this.args = args;
+
+			if (target == null) {
+				staticCandidates = candidates(StringUtils.class, name, args.length, true);
+				if (staticCandidates.length == 0) {
+					throw new UnsupportedTemplateException("Unknown method SU." + name);
+				}
+			}
+			else {
+				staticCandidates = null;
+			}
+		}
+
+		@Override
+		public Object eval(List<String> groups, String full) {
+			Object self = null;
+			Method[] methods = staticCandidates;
+
+			if (target != null) {
+				self = target.eval(groups, full);
+				if (self == null) {
+					if (safe) {
+						return null;
+					}
+					throw new NullPointerException("Cannot invoke method " + name + "() on null object");
+				}
+
+				Class<?> clazz = self.getClass();
+				Candidates c = last;
+				if (c == null || c.clazz != clazz) {
+					c = new Candidates(clazz, candidates(clazz, name, args.length, false));
+					last = c;
+				}
+				methods = c.methods;
+			}
+
+			Object[] values = new Object[args.length];
+			for (int i = 0; i < args.length; i++) {
+				values[i] = args[i].eval(groups, full);
+			}
+
+			for (Method m : methods) {
+				if (applicable(m, values)) {
+					try {
+						return m.invoke(self, values);
+					}
+					catch (InvocationTargetException e) {
+						if (e.getCause() instanceof RuntimeException) {
+							throw (RuntimeException) e.getCause();
+						}
+						throw new RuntimeException(e.getCause());
+					}
+					catch (IllegalAccessException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+
+			throw new IllegalArgumentException("No method " + name + " for " + Arrays.toString(values));
+		}
+
+		private static Method[] candidates(Class<?> clazz, String name, int arity, boolean statics) {
+			List<Method> result = new ArrayList<>();
+			for (Method m : clazz.getMethods()) {
+				if (m.getName().equals(name) && m.getParameterCount() == arity
+						&& Modifier.isStatic(m.getModifiers()) == statics && !m.isVarArgs()) {
+					result.add(m);
+				}
+			}
+
+			// The most specific first
+			result.sort(Comparator.comparingInt(Call::specificity));
+			return result.toArray(new Method[result.size()]);
+		}
+
+		private static int specificity(Method m) {
+			int score = 0;
+			for (Class<?> p : m.getParameterTypes()) {
+				if (p == String.class || p == int.class || p == boolean.class) {
+					score += 0;
+				}
+				else if (p == CharSequence.class || p == Integer.class || p == Boolean.class) {
+					score += 1;
+				}
+				else {
+					score += 2;
+				}
+			}
+			return score;
+		}
+
+		private static boolean applicable(Method m, Object[] values) {
+			Class<?>[] params = m.getParameterTypes();
+			for (int i = 0; i < params.length; i++) {
+				Class<?> p = params[i];
+				Object v = values[i];
+				if (p == int.class) {
+					if (!(v instanceof Integer)) {
+						return false;
+					}
+				}
+				else if (p == boolean.class) {
+					if (!(v instanceof Boolean)) {
+						return false;
+					}
+				}
+				else if (p.isPrimitive()) {
+					return false;
+				}
+				else if (v != null && !p.isInstance(v)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Recursive descent parser for ${...} expressions
+	 * */
+	private static final class Parser {
+
+		private final String s;
+		private int pos = 0;
+
+		Parser(String s) {
+			this.s = s;
+		}
+
+		Expr parse() throws UnsupportedTemplateException {
+			Expr expr = elvis();
+			skipSpaces();
+			if (pos != s.length()) {
+				throw unsupported();
+			}
+			return expr;
+		}
+
+		private Expr elvis() throws UnsupportedTemplateException {
+			Expr left = concat();
+			skipSpaces();
+			if (s.startsWith("?:", pos)) {
+				pos += 2;
+				Expr right = elvis();
+				return (g, f) -> {
+					Object v = left.eval(g, f);
+					return asBoolean(v) ? v : right.eval(g, f);
+				};
+			}
+			return left;
+		}
+
+		private Expr concat() throws UnsupportedTemplateException {
+			Expr left = postfix();
+			skipSpaces();
+			while (pos < s.length() && s.charAt(pos) == '+') {
+				pos++;
+				Expr l = left;
+				Expr r = postfix();
+				left = (g, f) -> plus(l.eval(g, f), r.eval(g, f));
+				skipSpaces();
+			}
+			return left;
+		}
+
+		private Expr postfix() throws UnsupportedTemplateException {
+			Expr expr = primary();
+			while (true) {
+				skipSpaces();
+				boolean safe = s.startsWith("?.", pos);
+				if (safe || (pos < s.length() && s.charAt(pos) == '.')) {
+					pos += safe ? 2 : 1;
+					String name = identifier();
+					expr = new Call(expr, safe, name, arguments());
+				}
+				else {
+					return expr;
+				}
+			}
+		}
+
+		private Expr primary() throws UnsupportedTemplateException {
+			skipSpaces();
+			if (pos >= s.length()) {
+				throw unsupported();
+			}
+
+			char c = s.charAt(pos);
+			if (c == '"' || c == '\'') {
+				String literal = stringLiteral(c);
+				return (g, f) -> literal;
+			}
+			if (Character.isDigit(c)) {
+				Integer literal = integer();
+				return (g, f) -> literal;
+			}
+			if (c == '(') {
+				pos++;
+				Expr inner = elvis();
+				expect(')');
+				return inner;
+			}
+
+			String name = identifier();
+			switch (name) {
+			case "groups":
+				skipSpaces();
+				expect('[');
+				skipSpaces();
+				int index = integer();
+				expect(']');
+				return (g, f) -> index < g.size() ? g.get(index) : null;
+			case "full":
+				return (g, f) -> f;
+			case "SU":
+				skipSpaces();
+				expect('.');
+				String method = identifier();
+				return new Call(null, false, method, arguments());
+			default:
+				throw unsupported();
+			}
+		}
+
+		private Expr[] arguments() throws UnsupportedTemplateException {
+			skipSpaces();
+			expect('(');
+			List<Expr> args = new ArrayList<>();
+			skipSpaces();
+			if (pos < s.length() && s.charAt(pos) == ')') {
+				pos++;
+				return new Expr[0];
+			}
+			while (true) {
+				args.add(elvis());
+				skipSpaces();
+				if (pos < s.length() && s.charAt(pos) == ',') {
+					pos++;
+				}
+				else {
+					expect(')');
+					return args.toArray(new Expr[args.size()]);
+				}
+			}
+		}
+
+		private String stringLiteral(char quote) throws UnsupportedTemplateException {
+			pos++;
+			int start = pos;
+			while (pos < s.length() && s.charAt(pos) != quote) {
+				char c = s.charAt(pos);
+				if (c == '\\' || (c == '$' && quote == '"')) {
+					throw unsupported();
+				}
+				pos++;
+			}
+			if (pos >= s.length()) {
+				throw unsupported();
+			}
+			return s.substring(start, pos++);
+		}
+
+		private int integer() throws UnsupportedTemplateException {
+			int start = pos;
+			while (pos < s.length() && Character.isDigit(s.charAt(pos))) {
+				pos++;
+			}
+			if (start == pos) {
+				throw unsupported();
+			}
+			return Integer.parseInt(s.substring(start, pos));
+		}
+
+		private String identifier() throws UnsupportedTemplateException {
+			skipSpaces();
+			int start = pos;
+			while (pos < s.length() && Character.isJavaIdentifierPart(s.charAt(pos))) {
+				pos++;
+			}
+			if (start == pos || !Character.isJavaIdentifierStart(s.charAt(start))) {
+				throw unsupported();
+			}
+			return s.substring(start, pos);
+		}
+
+		private void expect(char c) throws UnsupportedTemplateException {
+			if (pos >= s.length() || s.charAt(pos) != c) {
+				throw unsupported();
+			}
+			pos++;
+		}
+
+		private void skipSpaces() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private UnsupportedTemplateException unsupported() {
+			return new UnsupportedTemplateException("Unsupported expression ${" + s + "} at " + pos);
+		}
+	}
+
+}
@@ -0,0 +1,289 @@
+package me.osm.gazetteer.search.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Finds stop and optional terms in a string.
+ *
+ * Terms which are plain literals, optionally surrounded by \b
+ * and literal alternations like \b(a|b|c)\b are compiled
+ * into a trie and matched in one pass over the string.
+ *
+ * The rest of the patterns are joined into one case insensitive
+ * regexp, which runs only if {@link PatternPrefilter} says some of them
+ * could match.
+ *
+ * Matches are case insensitive for ASCII letters, like
+ * Pattern.CASE_INSENSITIVE. From overlapping matches the leftmost one
+ * is taken, trie terms prefer the longest alternative.
+ *
+ * Immutable, thread safe.
+ * */
+public final class TermMatcher {
+
+	private static final TermMatcher EMPTY = new TermMatcher(new Node(), 0, Collections.emptyList());
+
+	private static final class Node {
+		private final Map<Character, Node> next = new HashMap<>();
+
+		// term ends here, with or without word boundaries around it
+		private boolean plain;
+		private boolean bounded;
+	}
+
+	private final Node trie;
+	private final int trieTerms;
+
+	private final Pattern residual;
+	private final PatternPrefilter residualPrefilter;
+
+	private TermMatcher(Node trie, int trieTerms, List<String> residualPatterns) {
+		this.trie = trie;
+		this.trieTerms = trieTerms;
+		this.residual = joinPatterns(residualPatterns);
+		this.residualPrefilter = new PatternPrefilter(residualPatterns, true);
+	}
+
+	public static TermMatcher compile(Collection<String> patterns) {
+		if (patterns == null || patterns.isEmpty()) {
+			return EMPTY;
+		}
+
+		Node trie = new Node();
+		int trieTerms = 0;
+		List<String> residual = new ArrayList<>();
+
+		for (String pattern : patterns) {
+			boolean bounded = pattern.length() > 4
+					&& pattern.startsWith("\\b") && pattern.endsWith("\\b") && !pattern.endsWith("\\\\b");
+
+			List<String> literals = literals(bounded ? pattern.substring(2, pattern.length() - 2) : pattern);
+			if (literals == null) {
+				residual.add(pattern);
+				continue;
+			}
+
+			for (String literal : literals) {
+				Node node = trie;
+				for (char c : PatternPrefilter.lowerAscii(literal).toCharArray()) {
+					node = node.next.computeIfAbsent(c, k -> new Node());
+				}
+				if (bounded) {
+					node.bounded = true;
+				}
+				else {
+					node.plain = true;
+				}
+				trieTerms++;
+			}
+		}
+
+		return new TermMatcher(trie, trieTerms, residual);
+	}
+
+	/**
+	 * @return plain literal or alternatives of a group
+	 * like (a|b) or (?:a|b), null for anything else
+	 * */
+	private static List<String> literals(String pattern) {
+		String body = pattern;
+		if (body.startsWith("(?:") && body.endsWith(")")) {
+			body = body.substring(3, body.length() - 1);
+		}
+		else if (body.startsWith("(") && body.endsWith(")") && !body.startsWith("(?")) {
+			body = body.substring(1, body.length() - 1);
+		}
+		else {
+			String literal = PatternPrefilter.Requirements.plainLiteral(body);
+			return StringUtils.isEmpty(literal) ? null : Collections.singletonList(literal);
+		}
+
+		List<String> result = new ArrayList<>();
+		for (String alt : StringUtils.splitPreserveAllTokens(body, '|')) {
+			// escaped | or nested groups
+			if (alt.endsWith("\\")) {
+				return null;
+			}
+			String literal = PatternPrefilter.Requirements.plainLiteral(alt);
+			if (StringUtils.isEmpty(literal)) {
+				return null;
+			}
+			result.add(literal);
+		}
+		return result;
+	}
+
+	public boolean isEmpty() {
+		return trieTerms == 0 && residual == null;
+	}
+
+	/**
+	 * @return matched parts of the text in order of occurrence
+	 * */
+	public List<String> findAll(CharSequence text) {
+		List<int[]> spans = spans(text);
+		List<String> result = new ArrayList<>(spans.size());
+		String str = text.toString();
+		for (int[] s : spans) {
+			result.add(str.substring(s[0], s[1]));
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all the matches from the text in one pass
+	 *
+	 * @param input text, may be wrapped by {@link QueryBudget#wrap(String)}
+	 * @param removed matched parts are added here, may be null
+	 * @return text without matched parts
+	 * */
+	public String remove(CharSequence input, Collection<String> removed) {
+		List<int[]> spans = spans(input);
+		String text = input.toString();
+		if (spans.isEmpty()) {
+			return text;
+		}
+
+		StringBuilder sb = new StringBuilder(text.length());
+		int last = 0;
+		for (int[] s : spans) {
+			sb.append(text, last, s[0]);
+			if (removed != null) {
+				removed.add(text.substring(s[0], s[1]));
+			}
+			last = s[1];
+		}
+		sb.append(text, last, text.length());
+		return sb.toString();
+	}
+
+	/**
+	 * @param input only the residual regexp reads the text through it
+	 * */
+	private List<int[]> spans(CharSequence input) {
+		if (input == null) {
+			return Collections.emptyList();
+		}
+		String text = input.toString();
+
+		List<int[]> trieSpans = trieTerms > 0 ? trieSpans(text) : Collections.emptyList();
+
+		List<int[]> regexSpans = Collections.emptyList();
+		if (residual != null && !residualPrefilter.candidates(text).isEmpty()) {
+			regexSpans = new ArrayList<>();
+			Matcher matcher = residual.matcher(input);
+			while (matcher.find()) {
+				regexSpans.add(new int[]{matcher.start(), matcher.end()});
+			}
+		}
+
+		if (regexSpans.isEmpty()) {
+			return trieSpans;
+		}
+		if (trieSpans.isEmpty()) {
+			return regexSpans;
+		}
+
+		// Merge, leftmost wins, on the same start the longest
+		List<int[]> result = new ArrayList<>(trieSpans.size() + regexSpans.size());
+		int i = 0;
+		int j = 0;
+		int end = 0;
+		while (i < trieSpans.size() || j < regexSpans.size()) {
+			int[] s;
+			if (j >= regexSpans.size() || (i < trieSpans.size() && before(trieSpans.get(i), regexSpans.get(j)))) {
+				s = trieSpans.get(i++);
+			}
+			else {
+				s = regexSpans.get(j++);
+			}
+
+			if (s[0] >= end) {
+				result.add(s);
+				end = s[1];
+			}
+		}
+		return result;
+	}
+
+	private static boolean before(int[] a, int[] b) {
+		return a[0] < b[0] || (a[0] == b[0] && a[1] >= b[1]);
+	}
+
+	/**
+	 * Leftmost longest not overlapping trie matches
+	 * */
+	private List<int[]> trieSpans(String text) {
+		List<int[]> result = new ArrayList<>();
+
+		int i = 0;
+		while (i < text.length()) {
+			boolean boundaryBefore = isBoundary(text, i);
+
+			int matchEnd = -1;
+			Node node = trie;
+			for (int k = i; k < text.length(); k++) {
+				node = node.next.get(lowerAscii(text.charAt(k)));
+				if (node == null) {
+					break;
+				}
+				if (node.plain || (node.bounded && boundaryBefore && isBoundary(text, k + 1))) {
+					matchEnd = k + 1;
+				}
+			}
+
+			if (matchEnd > 0) {
+				result.add(new int[]{i, matchEnd});
+				i = matchEnd;
+			}
+			else {
+				i++;
+			}
+		}
+
+		return result;
+	}
+
+	private static char lowerAscii(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Same as \b of java.util.regex
+	 * */
+	private static boolean isBoundary(String text, int pos) {
+		boolean left = pos > 0 && isWord(text.charAt(pos - 1));
+		boolean right = pos < text.length() && isWord(text.charAt(pos));
+		return left != right;
+	}
+
+	private static boolean isWord(char c) {
+		return c == '_' || Character.isLetterOrDigit(c);
+	}
+
+	/**
+	 * One case insensitive regexp for all the patterns
+	 * */
+	private static Pattern joinPatterns(List<String> patterns) {
+		if(patterns.isEmpty()) {
+			return null;
+		}
+
+		List<String> t = new ArrayList<>(patterns.size());
+		for(String s : patterns) {
+			t.add("(" + s + ")");
+		}
+
+		return Pattern.compile(StringUtils.join(t, "|"), Pattern.CASE_INSENSITIVE);
+	}
+
+}
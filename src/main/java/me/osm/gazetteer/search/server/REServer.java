@@ -20,6 +20,7 @@ import me.osm.gazetteer.search.api.SearchAPI;
 import me.osm.gazetteer.search.api.osmdoc.OSMDocAPI;
 import me.osm.gazetteer.search.api.osmdoc.TagStatisticsAPI;
 import me.osm.gazetteer.search.imp.osmdoc.OSMDoc;
+import me.osm.gazetteer.search.query.QueryAnalyzerImpl;
 import me.osm.gazetteer.search.server.postprocessor.AllowOriginPP;
 import me.osm.gazetteer.search.server.postprocessor.LastModifiedHeaderPostprocessor;
 import me.osm.gazetteer.search.server.postprocessor.MarkHeaderPostprocessor;
@@ -63,6 +64,8 @@ public class REServer {
 				.addPostprocessor(new MarkHeaderPostprocessor())
 				.addPreprocessor(new BasikAuthPreprocessor(getRealmName(), getAdminPasswordHash()));
 		
+		QueryAnalyzerImpl.setRegexBudget(options.getQueryBudgetMs(), options.getQueryBudgetSteps());
+		
 		SearchAPI searchAPI = injector.getInstance(SearchAPI.class);
 		
 		OSMDocFacade osmdocFacade = OSMDoc.get(options.getOsmdocPath()).getFacade();
@@ -0,0 +1,118 @@
+package me.osm.gazetteer.search.util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded concurrent memoization cache.
+ *
+ * Keeps two generations of entries. When the current one is full
+ * it becomes the previous one, and the old previous generation is dropped.
+ * Entries found in the previous generation are moved to the current one,
+ * so frequently used keys survive, roughly like LRU but without locks
+ * on reads.
+ *
+ * Cached values are shared between threads and must be immutable.
+ * */
+public class MemoCache<K, V> {
+
+	private final String name;
+	private final int generationSize;
+
+	private volatile Map<K, V> current;
+	private volatile Map<K, V> previous;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxSize approximate max number of cached entries
+	 * */
+	public MemoCache(String name, int maxSize) {
+		this.name = name;
+		this.generationSize = Math.max(1, maxSize / 2);
+		this.current = new ConcurrentHashMap<>();
+		this.previous = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Get cached value or compute it. Value might be computed
+	 * more than once for the same key by concurrent callers.
+	 * */
+	public V get(K key, Function<K, V> compute) {
+		Map<K, V> cur = current;
+		V value = cur.get(key);
+		if (value != null) {
+			hits.increment();
+			return value;
+		}
+
+		value = previous.get(key);
+		if (value != null) {
+			hits.increment();
+		}
+		else {
+			misses.increment();
+			value = compute.apply(key);
+			if (value == null) {
+				return null;
+			}
+		}
+
+		cur.put(key, value);
+		if (cur.size() >= generationSize) {
+			rotate(cur);
+		}
+
+		return value;
+	}
+
+	private synchronized void rotate(Map<K, V> full) {
+		// Other thread already did it
+		if (current != full) {
+			return;
+		}
+
+		evictions.add(previous.size());
+		previous = full;
+		current = new ConcurrentHashMap<>();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public int size() {
+		return current.size() + previous.size();
+	}
+
+	public double getHitRate() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	public void clear() {
+		current = new ConcurrentHashMap<>();
+		previous = new ConcurrentHashMap<>();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%s cache: %d hits, %d misses, %.1f%% hit rate, %d entries, %d evicted",
+				name, getHits(), getMisses(), getHitRate() * 100, size(), getEvictions());
+	}
+
+}
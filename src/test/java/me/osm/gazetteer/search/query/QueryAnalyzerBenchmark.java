@@ -0,0 +1,76 @@
+package me.osm.gazetteer.search.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures time and heap allocations of {@link QueryAnalyzerImpl#getQuery(String)}.
+ *
+ * Allocations are taken from com.sun.management.ThreadMXBean,
+ * so there is no need in a profiler to compare the numbers.
+ *
+ * Usage: QueryAnalyzerBenchmark [queries file, one query per line] [iterations]
+ *
+ * Isn't packaged, run it with the test classpath:
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=me.osm.gazetteer.search.query.QueryAnalyzerBenchmark
+ * */
+public class QueryAnalyzerBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(QueryAnalyzerBenchmark.class);
+
+	private static final String[] DEFAULT_QUERIES = {
+		"москва", "москва тверская", "москва тверская 12", "москва, ул. тверская, д. 12 к 3",
+		"1-я тверская-ямская улица 12 строение 1", "8-я улица соколиной горы",
+		"санкт-петербург невский проспект 28", "Ленинградский просп., 39с79",
+		"проспект 60-летия октября 7а", "улица Ёлочная", "кв 12 оф 3 улица 8 марта 5",
+		"main street 12b", "Rue de la Paix", "Straße des 17. Juni", "10 Downing St, London",
+		"K1A 0B1 ottawa", "(корп 2) 123456 первая парковая", "м", "мо", "мос"
+	};
+
+	public static void main(String[] args) throws IOException {
+		List<String> queries = args.length > 0
+				? Files.readAllLines(new File(args[0]).toPath(), StandardCharsets.UTF_8)
+				: Arrays.asList(DEFAULT_QUERIES);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		QueryAnalyzerImpl analyzer = new QueryAnalyzerImpl();
+
+		// warm up
+		run(analyzer, queries, Math.max(1, iterations / 4));
+
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+
+		long tokens = run(analyzer, queries, iterations);
+
+		long nanos = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		long total = (long) iterations * queries.size();
+		log.info("{} queries, {} tokens: {} us/query, {} bytes/query", total, tokens,
+				String.format("%.2f", nanos / 1000.0 / total), allocated / total);
+	}
+
+	private static long run(QueryAnalyzerImpl analyzer, List<String> queries, int iterations) {
+		long tokens = 0;
+		for (int i = 0; i < iterations; i++) {
+			for (String q : queries) {
+				tokens += analyzer.getQuery(q).countTokens();
+			}
+		}
+		return tokens;
+	}
+
+}
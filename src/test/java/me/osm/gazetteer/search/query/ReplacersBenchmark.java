@@ -0,0 +1,123 @@
+package me.osm.gazetteer.search.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares precompiled replacers with the Groovy ones.
+ *
+ * Checks that both produce the same groups for every input
+ * and prints time spent by each implementation.
+ *
+ * Usage: ReplacersBenchmark [inputs file, one string per line] [iterations]
+ *
+ * Isn't packaged, run it with the test classpath:
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=me.osm.gazetteer.search.query.ReplacersBenchmark
+ * */
+public class ReplacersBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(ReplacersBenchmark.class);
+
+	private static final String[] RULES = {
+		"config/replacers/index/hnIndexReplasers",
+		"config/replacers/index/streetsReplacers",
+		"config/replacers/index/localityReplacers",
+		"config/replacers/search/hnSearchReplacers",
+		"config/replacers/search/requiredSearchReplacers"
+	};
+
+	private static final String[] DEFAULT_INPUTS = {
+		"8-я улица соколиной горы", "улица 50-летия победы", "проспект 60-летия октября",
+		"улица 1905 года", "улица 8 марта", "20-ти бакинских комиссаров",
+		"первая парковая улица", "третья улица строителей", "2-й верхний михайловский проезд",
+		"12к3", "12 корпус 3", "д. 5 к 2", "15/2", "15-а", "7а", "123а корп. 5а", "10 стр. 2",
+		"ул. а. с. пушкина", "в. и. ленина", "ленинградский проспект", "main street", "12b",
+		"1-я тверская-ямская улица 12 строение 1", ""
+	};
+
+	public static void main(String[] args) throws IOException {
+		List<String> inputs = args.length > 0
+				? Files.readAllLines(new File(args[0]).toPath(), StandardCharsets.UTF_8)
+				: Arrays.asList(DEFAULT_INPUTS);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		long mismatches = 0;
+		for (String rules : RULES) {
+			List<Replacer> groovy = new ArrayList<>();
+			ReplacersCompiler.compile(groovy, new File(rules), false);
+
+			List<Replacer> compiled = new ArrayList<>();
+			ReplacersCompiler.compile(compiled, new File(rules), true);
+
+			long precompiled = compiled.stream().filter(r -> r instanceof PlanReplacer).count();
+			log.info("{}: {} replacers, {} precompiled", rules, compiled.size(), precompiled);
+
+			for (int i = 0; i < groovy.size(); i++) {
+				for (String input : inputs) {
+					String expected = apply(groovy.get(i), input);
+					String actual = apply(compiled.get(i), input);
+					if (!Objects.equals(expected, actual)) {
+						mismatches++;
+						log.warn("Mismatch for {} on '{}': groovy {}, compiled {}",
+								groovy.get(i).getPattern(), input, expected, actual);
+					}
+				}
+			}
+
+			log.info("{}: groovy {} ms, compiled {} ms", rules,
+					time(groovy, inputs, iterations), time(compiled, inputs, iterations));
+		}
+
+		log.info("{} mismatches", mismatches);
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static String apply(Replacer replacer, String input) {
+		try {
+			Map<String, ?> groups = replacer.replaceGroups(input);
+			return groups.toString() + " " + replacer.replace(input);
+		}
+		catch (Exception e) {
+			return e.getClass().getSimpleName();
+		}
+	}
+
+	private static long time(List<Replacer> replacers, List<String> inputs, int iterations) {
+		// warm up
+		run(replacers, inputs, Math.max(1, iterations / 10));
+
+		long start = System.nanoTime();
+		run(replacers, inputs, iterations);
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long run(List<Replacer> replacers, List<String> inputs, int iterations) {
+		long size = 0;
+		for (int i = 0; i < iterations; i++) {
+			for (Replacer r : replacers) {
+				for (String input : inputs) {
+					try {
+						size += r.replaceGroups(input).size();
+					}
+					catch (Exception e) {
+						size++;
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+}